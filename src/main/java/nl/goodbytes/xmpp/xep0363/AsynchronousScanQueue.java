@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scans uploads for malware after the upload request has been answered.
+ *
+ * Uploads that are submitted remain in the staging area of the repository ('pending') until they have been scanned by
+ * a bounded pool of workers. Uploads in which no malware was detected are then published. All others are deleted.
+ *
+ * Uploads that were scanned while they were received (see {@link InlineScan}) are not submitted: all that remains for
+ * those is to obtain the verdict, which is available shortly after the last byte was received.
+ *
+ * Pending uploads are not persisted. The acceptance of an upload that is submitted is therefore best-effort: when the
+ * application stops before the upload has been scanned, the upload is lost, even though its upload request was answered
+ * with success. While an upload is pending, its data is retained by the repository (see
+ * {@link Repository#retainUnpublished(SecureUniqueId)}), which prevents it from being removed as an abandoned upload.
+ *
+ * The state of the queue is logged periodically, while it is in use.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public class AsynchronousScanQueue
+{
+    private static final Logger Log = LoggerFactory.getLogger( AsynchronousScanQueue.class );
+
+    /**
+     * The time after which a client is asked to retry a request for data that is pending, when no scans have completed yet.
+     */
+    public static final Duration DEFAULT_RETRY_AFTER = Duration.ofSeconds( 5 );
+
+    /**
+     * The interval at which the state of the queue is logged.
+     */
+    public static final Duration STATUS_INTERVAL = Duration.ofMinutes( 5 );
+
+    private final MalwareScanner malwareScanner;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ScheduledExecutorService statusExecutor;
+
+    // The amount of processed uploads at the moment the state of the queue was last logged.
+    private long lastLoggedScanCount;
+
+    // The moment at which each pending upload was submitted.
+    private final Map<SecureUniqueId, Long> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder scans = new LongAdder();
+
+    private final LongAdder detections = new LongAdder();
+
+    private final LongAdder failures = new LongAdder();
+
+    private final LongAdder latencyNanos = new LongAdder();
+
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param malwareScanner The scanner that scans the uploads.
+     * @param workers        The amount of uploads that are scanned concurrently.
+     * @param queueSize      The maximum amount of uploads that wait to be scanned.
+     */
+    public AsynchronousScanQueue( final MalwareScanner malwareScanner, final int workers, final int queueSize )
+    {
+        if ( workers <= 0 || queueSize <= 0 )
+        {
+            throw new IllegalArgumentException( "The amount of workers and the queue size must be positive." );
+        }
+        this.malwareScanner = malwareScanner;
+        this.executor = new ThreadPoolExecutor( workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>( queueSize ), new ThreadFactoryBuilder().setNameFormat( "xmppfileupload-scan-%d" ).setDaemon( true ).build() );
+        this.statusExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactoryBuilder().setNameFormat( "xmppfileupload-scan-status" ).setDaemon( true ).build() );
+        this.statusExecutor.scheduleWithFixedDelay( this::logStatus, STATUS_INTERVAL.toMillis(), STATUS_INTERVAL.toMillis(), TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Logs the state of the queue, unless it has been idle since the state was last logged.
+     */
+    void logStatus()
+    {
+        final long scanCount = getScanCount();
+        final int pendingCount = getPendingCount();
+        if ( scanCount == lastLoggedScanCount && pendingCount == 0 )
+        {
+            return;
+        }
+        lastLoggedScanCount = scanCount;
+        Log.info( "Asynchronous malware scans: {} uploads pending ({} waiting for a worker). Since start: {} uploads processed, of which {} contained malware, and {} could not be scanned. Latency: {} ms on average, {} ms at most.",
+                  pendingCount, getQueueDepth(), scanCount, getMalwareDetectedCount(), getFailedScanCount(), getAverageLatency().toMillis(), getMaxLatency().toMillis() );
+    }
+
+    /**
+     * Queues an upload to be scanned, and to be published when no malware is detected.
+     *
+     * @param repository The repository that holds the (unpublished) data of the upload.
+     * @param slot       The slot of the upload.
+     * @return true if the upload was queued, false if the queue is full.
+     */
+    public boolean submit( final Repository repository, final Slot slot )
+    {
+        final SecureUniqueId uuid = slot.getUuid();
+        pending.put( uuid, System.nanoTime() );
+        repository.retainUnpublished( uuid );
+        try
+        {
+            executor.execute( () -> process( repository, slot ) );
+            return true;
+        }
+        catch ( RejectedExecutionException e )
+        {
+            repository.releaseUnpublished( uuid );
+            pending.remove( uuid );
+            Log.debug( "Unable to queue the upload of slot {} to be scanned. {} uploads are pending.", uuid, pending.size() );
+            return false;
+        }
+    }
+
+    private void process( final Repository repository, final Slot slot )
+    {
+        final SecureUniqueId uuid = slot.getUuid();
+        try
+        {
+            try
+            {
+                malwareScanner.scan( uuid );
+            }
+            catch ( MalwareDetectedException e )
+            {
+                detections.increment();
+                repository.delete( uuid );
+                Log.warn( "Malware detected in the upload of slot {}. The upload is deleted.", uuid );
+                return;
+            }
+            catch ( Throwable t )
+            {
+                failures.increment();
+                repository.delete( uuid );
+                Log.info( "Unable to scan the upload of slot {} for malware. The upload is deleted.", uuid, t );
+                return;
+            }
+
+            try
+            {
+                repository.publish( slot );
+                Log.debug( "Published the upload of slot {}, in which no malware was detected.", uuid );
+            }
+            catch ( IOException e )
+            {
+                repository.delete( uuid );
+                Log.warn( "Unable to publish the upload of slot {}. The upload is deleted.", uuid, e );
+            }
+        }
+        catch ( IOException e )
+        {
+            Log.warn( "Unable to delete the upload of slot {}.", uuid, e );
+        }
+        finally
+        {
+            repository.releaseUnpublished( uuid );
+
+            // Data is no longer pending only after it has been published (or deleted), to prevent it from being reported as absent in between.
+            final Long submitted = pending.remove( uuid );
+            if ( submitted != null )
+            {
+                final long latency = System.nanoTime() - submitted;
+                scans.increment();
+                latencyNanos.add( latency );
+                maxLatencyNanos.accumulateAndGet( latency, Math::max );
+            }
+        }
+    }
+
+    /**
+     * Checks if an upload has been received, but has not been scanned yet.
+     */
+    public boolean isPending( final SecureUniqueId uuid )
+    {
+        return pending.containsKey( uuid );
+    }
+
+    /**
+     * Returns a duration after which a pending upload is expected to have been scanned.
+     */
+    public Duration getRetryAfter()
+    {
+        final Duration average = getAverageLatency();
+        if ( average.isZero() )
+        {
+            return DEFAULT_RETRY_AFTER;
+        }
+        return Duration.ofSeconds( Math.max( 1, (long) Math.ceil( average.toMillis() / 1000.0 ) ) );
+    }
+
+    /**
+     * Returns the amount of uploads that have been received, but that have not been scanned yet.
+     */
+    public int getPendingCount()
+    {
+        return pending.size();
+    }
+
+    /**
+     * Returns the amount of uploads that wait for a worker to scan them.
+     */
+    public int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the amount of uploads that were processed since this instance was created.
+     */
+    public long getScanCount()
+    {
+        return scans.sum();
+    }
+
+    /**
+     * Returns the amount of uploads in which malware was detected since this instance was created.
+     */
+    public long getMalwareDetectedCount()
+    {
+        return detections.sum();
+    }
+
+    /**
+     * Returns the amount of uploads that could not be scanned since this instance was created.
+     */
+    public long getFailedScanCount()
+    {
+        return failures.sum();
+    }
+
+    /**
+     * Returns the average duration between the submission of an upload, and its publication or deletion.
+     */
+    public Duration getAverageLatency()
+    {
+        final long count = scans.sum();
+        return count == 0 ? Duration.ZERO : Duration.ofNanos( latencyNanos.sum() / count );
+    }
+
+    /**
+     * Returns the longest duration between the submission of an upload, and its publication or deletion.
+     */
+    public Duration getMaxLatency()
+    {
+        return Duration.ofNanos( maxLatencyNanos.get() );
+    }
+
+    /**
+     * Stops accepting uploads, and waits a while for queued uploads to be processed. Uploads that are not processed by
+     * then remain unpublished.
+     */
+    public void shutdown()
+    {
+        statusExecutor.shutdownNow();
+        executor.shutdown();
+        try
+        {
+            if ( !executor.awaitTermination( 10, TimeUnit.SECONDS ) )
+            {
+                executor.shutdownNow();
+                Log.warn( "Stopped scanning uploads for malware. {} uploads were not scanned, and will not be published.", pending.size() );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        logStatus();
+    }
+}
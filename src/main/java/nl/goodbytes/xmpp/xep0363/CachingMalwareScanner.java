@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A scanner that remembers which content was found to be free of malware, to avoid scanning identical content (eg:
+ * media that is forwarded between chats) again.
+ *
+ * Content is identified by its hash, as calculated by the repository while it is being uploaded (see
+ * {@link Repository#getUnpublishedDigest(SecureUniqueId)}). A verdict is re-used only as long as the signatures of the
+ * scanner that it is based on have not changed. No verdicts are re-used when the version of the signatures is unknown.
+ *
+ * When combined with a {@link CircuitBreakingMalwareScanner}, this scanner is to wrap the circuit breaker, so that the
+ * circuit breaker records the outcome of scans that are actually performed only. Content that is accepted without a
+ * verdict (see {@link FailOpenMalwareScanner}) must never be recorded as free of malware, thus this scanner must not
+ * wrap a scanner that fails open.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public class CachingMalwareScanner implements MalwareScanner
+{
+    private static final Logger Log = LoggerFactory.getLogger(CachingMalwareScanner.class);
+
+    private final MalwareScanner delegate;
+
+    // Maps the hash of content that is free of malware to the version of the signatures that it was scanned with.
+    private final Cache<String, String> verdicts;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param delegate The scanner that scans content of which no verdict is known.
+     * @param maxSize  The maximum amount of verdicts that are remembered.
+     */
+    public CachingMalwareScanner(final MalwareScanner delegate, final long maxSize)
+    {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum size of the verdict cache must be positive: " + maxSize);
+        }
+        this.delegate = delegate;
+        this.verdicts = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    }
+
+    @Override
+    public void initialize() throws IOException
+    {
+        delegate.initialize();
+    }
+
+    @Override
+    public void destroy()
+    {
+        delegate.destroy();
+        verdicts.invalidateAll();
+    }
+
+    @Override
+    public void scan(final SecureUniqueId uuid) throws MalwareDetectedException, IOException
+    {
+        final String digest = getDigest(uuid);
+        final String version = delegate.getSignatureVersion();
+        if (isKnownClean(digest, version)) {
+            Log.debug("Skipping the scan of slot '{}': identical content was found to be free of malware.", uuid);
+            return;
+        }
+
+        delegate.scan(uuid);
+        recordClean(digest, version);
+    }
+
+    @Override
+    public InlineScan startInlineScan(final SecureUniqueId uuid)
+    {
+        final InlineScan scan = delegate.startInlineScan(uuid);
+        if (scan == null) {
+            return null;
+        }
+
+        // The hash of the content is known only after all of it has been received.
+        return new InlineScan()
+        {
+            @Override
+            public void update(final byte[] data, final int offset, final int length)
+            {
+                scan.update(data, offset, length);
+            }
+
+            @Override
+            public boolean verify() throws MalwareDetectedException, IOException
+            {
+                final String digest = getDigest(uuid);
+                final String version = delegate.getSignatureVersion();
+                if (isKnownClean(digest, version)) {
+                    Log.debug("Not waiting for the verdict of the scan of slot '{}': identical content was found to be free of malware.", uuid);
+                    scan.close();
+                    return true;
+                }
+
+                if (!scan.verify()) {
+                    return false;
+                }
+                recordClean(digest, version);
+                return true;
+            }
+
+            @Override
+            public void close()
+            {
+                scan.close();
+            }
+        };
+    }
+
+    @Override
+    public String getSignatureVersion()
+    {
+        return delegate.getSignatureVersion();
+    }
+
+    private static String getDigest(final SecureUniqueId uuid)
+    {
+        final Repository repository = RepositoryManager.getInstance().getRepository();
+        return repository == null ? null : repository.getUnpublishedDigest(uuid);
+    }
+
+    private boolean isKnownClean(final String digest, final String version)
+    {
+        if (digest == null || version == null) {
+            return false;
+        }
+        if (version.equals(verdicts.getIfPresent(digest))) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        return false;
+    }
+
+    private void recordClean(final String digest, final String version)
+    {
+        if (digest != null && version != null) {
+            verdicts.put(digest, version);
+        }
+    }
+
+    /**
+     * Returns the amount of scans that were skipped, as identical content was found to be free of malware before.
+     */
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the amount of scans for content of which no (valid) verdict was known.
+     */
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the amount of verdicts that are currently remembered.
+     */
+    public long getSize()
+    {
+        return verdicts.size();
+    }
+}
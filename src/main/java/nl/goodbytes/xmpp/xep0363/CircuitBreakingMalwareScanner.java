@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A scanner that stops using another scanner for a while when that fails or is slow for a large part of the recent
+ * scans, rather than having every upload wait for it.
+ *
+ * The outcome of the most recent scans is recorded. A scan fails when it throws an exception other than
+ * {@link MalwareDetectedException}, and is slow when it takes longer than the slow scan threshold (which includes the
+ * time needed to transfer the data to the scanner). For scans of data while it is being received, this is the time from
+ * the start of the upload until the verdict. When enough of the recent scans failed or were slow, the circuit 'opens':
+ * scans are not performed until the open duration has passed. Then, one scan is performed as a probe. The circuit
+ * closes again when that succeeds. Otherwise, it remains open for another period. Only the outcome of the probe
+ * decides this: scans that were started before the circuit opened do not.
+ *
+ * Scans that are not performed (as the circuit is open) fail with an {@link IOException}, causing the upload to be
+ * rejected. To accept such uploads without a verdict instead, wrap this scanner in a {@link FailOpenMalwareScanner}.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public class CircuitBreakingMalwareScanner implements MalwareScanner
+{
+    private static final Logger Log = LoggerFactory.getLogger(CircuitBreakingMalwareScanner.class);
+
+    public enum State
+    {
+        /** Scans are performed. */
+        CLOSED,
+
+        /** Scans are not performed. */
+        OPEN,
+
+        /** One scan is performed as a probe, others are not. */
+        HALF_OPEN
+    }
+
+    // The kind of scan that is allowed to be performed.
+    private enum Permit
+    {
+        DENIED,
+        REGULAR,
+        PROBE
+    }
+
+    public static final Duration DEFAULT_SLOW_SCAN_THRESHOLD = Duration.ofSeconds(30);
+
+    public static final Duration DEFAULT_OPEN_DURATION = Duration.ofSeconds(30);
+
+    /**
+     * The amount of recent scans of which the outcome is recorded.
+     */
+    public static final int WINDOW_SIZE = 20;
+
+    /**
+     * The minimum amount of recorded scans needed to open the circuit.
+     */
+    public static final int MINIMUM_SCANS = 5;
+
+    /**
+     * The share of recorded scans that failed or were slow, at or above which the circuit opens.
+     */
+    public static final double FAILURE_RATE_THRESHOLD = 0.5;
+
+    private final MalwareScanner delegate;
+
+    private final Duration slowScanThreshold;
+
+    private final Duration openDuration;
+
+    // The outcome of the most recent scans (true when failed or slow), as a ring buffer.
+    private final boolean[] outcomes = new boolean[WINDOW_SIZE];
+
+    private int recorded = 0;
+
+    private int next = 0;
+
+    private State state = State.CLOSED;
+
+    private long openedAt;
+
+    private final LongAdder trips = new LongAdder();
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param delegate          The scanner that performs the scans.
+     * @param slowScanThreshold The duration after which a scan is considered to be slow.
+     * @param openDuration      The duration during which no scans are performed after the circuit opened.
+     */
+    public CircuitBreakingMalwareScanner(final MalwareScanner delegate, final Duration slowScanThreshold, final Duration openDuration)
+    {
+        if (slowScanThreshold.isNegative() || slowScanThreshold.isZero() || openDuration.isNegative() || openDuration.isZero()) {
+            throw new IllegalArgumentException("The slow scan threshold and open duration must be positive.");
+        }
+        this.delegate = delegate;
+        this.slowScanThreshold = slowScanThreshold;
+        this.openDuration = openDuration;
+    }
+
+    public CircuitBreakingMalwareScanner(final MalwareScanner delegate)
+    {
+        this(delegate, DEFAULT_SLOW_SCAN_THRESHOLD, DEFAULT_OPEN_DURATION);
+    }
+
+    @Override
+    public void initialize() throws IOException
+    {
+        delegate.initialize();
+    }
+
+    @Override
+    public void destroy()
+    {
+        delegate.destroy();
+    }
+
+    @Override
+    public void scan(final SecureUniqueId uuid) throws MalwareDetectedException, IOException
+    {
+        final Permit permit = tryAcquire();
+        if (permit == Permit.DENIED) {
+            rejected.increment();
+            throw new IOException("Unable to scan the upload of slot '" + uuid + "' for malware: the circuit breaker is open.");
+        }
+
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegate.scan(uuid);
+            failed = false;
+        } catch (MalwareDetectedException e) {
+            failed = false;
+            throw e;
+        } finally {
+            // Also records errors, as a probe that is not recorded would keep the circuit half-open indefinitely.
+            record(permit, failed, start);
+        }
+    }
+
+    @Override
+    public InlineScan startInlineScan(final SecureUniqueId uuid)
+    {
+        // A probe is performed by a regular scan, which is also what uploads that cannot be scanned inline fall back to.
+        if (getState() != State.CLOSED) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        final InlineScan scan = delegate.startInlineScan(uuid);
+        if (scan == null) {
+            return null;
+        }
+        return new InlineScan()
+        {
+            @Override
+            public void update(final byte[] data, final int offset, final int length)
+            {
+                scan.update(data, offset, length);
+            }
+
+            @Override
+            public boolean verify() throws MalwareDetectedException, IOException
+            {
+                boolean failed = true;
+                boolean verdict = false;
+                try {
+                    verdict = scan.verify();
+                    failed = false;
+                    return verdict;
+                } catch (MalwareDetectedException e) {
+                    failed = false;
+                    verdict = true;
+                    throw e;
+                } finally {
+                    // When no verdict is reached, the outcome is recorded by the scan of the stored data that follows.
+                    if (failed || verdict) {
+                        record(Permit.REGULAR, failed, start);
+                    }
+                }
+            }
+
+            @Override
+            public void close()
+            {
+                scan.close();
+            }
+        };
+    }
+
+    @Override
+    public String getSignatureVersion()
+    {
+        return delegate.getSignatureVersion();
+    }
+
+    /**
+     * Checks if a scan can be performed, transitioning from the open to the half-open state when the open duration has
+     * passed. The scan that causes that transition is the probe.
+     */
+    private synchronized Permit tryAcquire()
+    {
+        switch (state) {
+            case CLOSED:
+                return Permit.REGULAR;
+            case OPEN:
+                if (System.nanoTime() - openedAt < openDuration.toNanos()) {
+                    return Permit.DENIED;
+                }
+                state = State.HALF_OPEN;
+                Log.info("Probing the malware scanner, after it was unavailable for {}.", openDuration);
+                return Permit.PROBE;
+            default:
+                // A probe is in progress.
+                return Permit.DENIED;
+        }
+    }
+
+    private synchronized void record(final Permit permit, final boolean failed, final long start)
+    {
+        final boolean slow = System.nanoTime() - start > slowScanThreshold.toNanos();
+        final boolean unsuccessful = failed || slow;
+        if (slow && !failed) {
+            Log.debug("A malware scan took longer than {}.", slowScanThreshold);
+        }
+
+        if (permit == Permit.PROBE) {
+            if (unsuccessful) {
+                open();
+            } else {
+                Log.info("The malware scanner is available again. Closing the circuit breaker.");
+                state = State.CLOSED;
+                recorded = 0;
+                next = 0;
+            }
+            return;
+        }
+        if (state != State.CLOSED) {
+            // A scan that started before the circuit opened.
+            return;
+        }
+
+        outcomes[next] = unsuccessful;
+        next = (next + 1) % WINDOW_SIZE;
+        recorded = Math.min(recorded + 1, WINDOW_SIZE);
+        if (recorded >= MINIMUM_SCANS) {
+            int count = 0;
+            for (int i = 0; i < recorded; i++) {
+                if (outcomes[i]) {
+                    count++;
+                }
+            }
+            if (count >= recorded * FAILURE_RATE_THRESHOLD) {
+                open();
+            }
+        }
+    }
+
+    private void open()
+    {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        recorded = 0;
+        next = 0;
+        trips.increment();
+        Log.warn("The malware scanner is failing or slow. Not using it for {}.", openDuration);
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    /**
+     * Returns the amount of times that the circuit opened.
+     */
+    public long getTripCount()
+    {
+        return trips.sum();
+    }
+
+    /**
+     * Returns the amount of scans that were not performed, as the circuit was open.
+     */
+    public long getRejectedCount()
+    {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+/**
+ * Writes one or more parts of data from the repository to the body of a response.
+ *
+ * When registered as the WriteListener of a response, data is written only when the network can accept it, which
+ * prevents a thread from being occupied for the duration of a (slow) download. When used with a blocking stream, all
+ * data is written by a single invocation of {@link #onWritePossible()}.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+class DownloadWriteListener implements WriteListener
+{
+    private static final Logger Log = LoggerFactory.getLogger( DownloadWriteListener.class );
+
+    /**
+     * A section of the data that is to be written, optionally preceded by arbitrary bytes (eg: a multipart header).
+     */
+    static class Part
+    {
+        final byte[] prefix;
+        final long position;
+        final long length;
+
+        Part( @Nullable byte[] prefix, long position, long length )
+        {
+            this.prefix = prefix;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    private final Repository repository;
+    private final SecureUniqueId uuid;
+    private final boolean encoded;
+    private final ServletOutputStream out;
+    private final List<Part> parts;
+    private final AsyncContext async;
+    private byte[] suffix;
+
+    private final byte[] buffer = new byte[ 8 * 1024 ];
+    private int partIndex = 0;
+    private boolean prefixWritten = false;
+    private ReadableByteChannel channel;
+    private long remaining;
+
+    /**
+     * @param repository The repository from which to read data.
+     * @param uuid       Identifier of the data.
+     * @param encoded    true to write the data as it is stored (see {@link Repository#getEncodedChannel(SecureUniqueId)}), false to write it as it was uploaded.
+     * @param out        The body of the response.
+     * @param parts      The parts of the data to write.
+     * @param suffix     Bytes to write after all parts have been written (can be null).
+     * @param async      The context that is to be completed when all data has been written, or null if the stream is a blocking stream.
+     */
+    DownloadWriteListener( Repository repository, SecureUniqueId uuid, boolean encoded, ServletOutputStream out, List<Part> parts, @Nullable byte[] suffix, @Nullable AsyncContext async )
+    {
+        this.repository = repository;
+        this.uuid = uuid;
+        this.encoded = encoded;
+        this.out = out;
+        this.parts = parts;
+        this.suffix = suffix;
+        this.async = async;
+    }
+
+    @Override
+    public void onWritePossible() throws IOException
+    {
+        // Every write must be preceded by a check that confirms that the stream is ready to accept it.
+        while ( out.isReady() )
+        {
+            if ( partIndex == parts.size() )
+            {
+                if ( suffix != null )
+                {
+                    out.write( suffix );
+                    suffix = null;
+                    continue;
+                }
+                if ( async != null )
+                {
+                    async.complete();
+                }
+                return;
+            }
+
+            final Part part = parts.get( partIndex );
+            if ( !prefixWritten )
+            {
+                prefixWritten = true;
+                if ( part.prefix != null )
+                {
+                    out.write( part.prefix );
+                    continue;
+                }
+            }
+
+            if ( channel == null )
+            {
+                // Encoded data is always written in full, as ranges apply to the data as it was uploaded.
+                channel = encoded ? repository.getEncodedChannel( uuid ) : repository.getReadableChannel( uuid, part.position );
+                remaining = part.length;
+            }
+
+            if ( remaining == 0 )
+            {
+                closeChannel();
+                partIndex++;
+                prefixWritten = false;
+                continue;
+            }
+
+            final int bytesRead = channel.read( ByteBuffer.wrap( buffer, 0, (int) Math.min( buffer.length, remaining ) ) );
+            if ( bytesRead == -1 )
+            {
+                throw new EOFException( "Data of " + uuid + " ended prematurely: " + remaining + " bytes are missing." );
+            }
+            out.write( buffer, 0, bytesRead );
+            remaining -= bytesRead;
+        }
+    }
+
+    @Override
+    public void onError( Throwable t )
+    {
+        Log.info( "... unable to write data of {} to the response.", uuid, t );
+        closeChannel();
+        if ( async != null )
+        {
+            async.complete();
+        }
+    }
+
+    private void closeChannel()
+    {
+        if ( channel != null )
+        {
+            try
+            {
+                channel.close();
+            }
+            catch ( IOException e )
+            {
+                Log.debug( "Unable to close channel of {}.", uuid, e );
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A scanner that accepts uploads without a verdict when another scanner is unable to scan them (eg: because it is
+ * unavailable, or because a {@link CircuitBreakingMalwareScanner} stopped using it), rather than having them rejected.
+ *
+ * Uploads in which malware is detected are always rejected. As uploads that are accepted by this scanner have not been
+ * found to be free of malware, this scanner is to wrap all other scanners (including a {@link CachingMalwareScanner}).
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public class FailOpenMalwareScanner implements MalwareScanner
+{
+    private static final Logger Log = LoggerFactory.getLogger(FailOpenMalwareScanner.class);
+
+    private final MalwareScanner delegate;
+
+    private final LongAdder acceptedWithoutVerdict = new LongAdder();
+
+    /**
+     * @param delegate The scanner that performs the scans.
+     */
+    public FailOpenMalwareScanner(final MalwareScanner delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void initialize() throws IOException
+    {
+        delegate.initialize();
+    }
+
+    @Override
+    public void destroy()
+    {
+        delegate.destroy();
+    }
+
+    @Override
+    public void scan(final SecureUniqueId uuid) throws MalwareDetectedException
+    {
+        try {
+            delegate.scan(uuid);
+        } catch (IOException | RuntimeException e) {
+            onUnavailable(uuid, e);
+        }
+    }
+
+    @Override
+    public InlineScan startInlineScan(final SecureUniqueId uuid)
+    {
+        final InlineScan scan = delegate.startInlineScan(uuid);
+        if (scan == null) {
+            return null;
+        }
+        return new InlineScan()
+        {
+            @Override
+            public void update(final byte[] data, final int offset, final int length)
+            {
+                scan.update(data, offset, length);
+            }
+
+            @Override
+            public boolean verify() throws MalwareDetectedException
+            {
+                try {
+                    return scan.verify();
+                } catch (IOException | RuntimeException e) {
+                    onUnavailable(uuid, e);
+                    return true;
+                }
+            }
+
+            @Override
+            public void close()
+            {
+                scan.close();
+            }
+        };
+    }
+
+    @Override
+    public String getSignatureVersion()
+    {
+        return delegate.getSignatureVersion();
+    }
+
+    private void onUnavailable(final SecureUniqueId uuid, final Exception cause)
+    {
+        acceptedWithoutVerdict.increment();
+        Log.warn("Unable to scan the upload of slot '{}' for malware ({}). Accepting it without a verdict, as the scanner is configured to fail open.", uuid, cause.getMessage());
+        Log.debug("Scan failure of slot '{}':", uuid, cause);
+    }
+
+    /**
+     * Returns the amount of uploads that were accepted without a verdict, as they could not be scanned.
+     */
+    public long getAcceptedWithoutVerdictCount()
+    {
+        return acceptedWithoutVerdict.sum();
+    }
+}
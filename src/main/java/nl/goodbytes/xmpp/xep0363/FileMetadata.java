@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Describes data that is stored in a repository.
+ *
+ * Instances are immutable. They are determined once, when an upload completes, after which they can be stored alongside
+ * the data, to prevent them from having to be recalculated for every download.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public class FileMetadata
+{
+    private static final byte VERSION = 1;
+
+    private final String contentType;
+    private final long size;
+    private final Date creationDate;
+    private final String filename;
+    private final String eTag;
+    private final String digest;
+    private final String contentEncoding;
+    private final long encodedSize;
+
+    public FileMetadata( @Nullable String contentType, long size, @Nonnull Date creationDate, @Nullable String filename, @Nonnull String eTag )
+    {
+        this( contentType, size, creationDate, filename, eTag, null );
+    }
+
+    public FileMetadata( @Nullable String contentType, long size, @Nonnull Date creationDate, @Nullable String filename, @Nonnull String eTag, @Nullable String digest )
+    {
+        this( contentType, size, creationDate, filename, eTag, digest, null, -1 );
+    }
+
+    public FileMetadata( @Nullable String contentType, long size, @Nonnull Date creationDate, @Nullable String filename, @Nonnull String eTag, @Nullable String digest, @Nullable String contentEncoding, long encodedSize )
+    {
+        this.contentType = contentType;
+        this.size = size;
+        this.creationDate = creationDate;
+        this.filename = filename;
+        this.eTag = eTag;
+        this.digest = digest;
+        this.contentEncoding = contentEncoding;
+        this.encodedSize = encodedSize;
+    }
+
+    /**
+     * Returns a copy of this instance, describing the data after it has been encoded (eg: compressed) for storage.
+     *
+     * @param contentEncoding The encoding, as used in a HTTP Content-Encoding header (eg: 'gzip').
+     * @param encodedSize     The size of the data after it has been encoded.
+     */
+    public FileMetadata withContentEncoding( @Nonnull String contentEncoding, long encodedSize )
+    {
+        return new FileMetadata( contentType, size, creationDate, filename, eTag, digest, contentEncoding, encodedSize );
+    }
+
+    /**
+     * Creates a strong entity tag for data, based on its size and the moment it was stored. As stored data is never
+     * modified, this combination uniquely identifies its content.
+     */
+    public static String generateETag( long size, @Nonnull Date creationDate )
+    {
+        return "\"" + Long.toHexString( creationDate.getTime() ) + "-" + Long.toHexString( size ) + "\"";
+    }
+
+    @Nullable
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    @Nonnull
+    public Date getCreationDate()
+    {
+        return creationDate;
+    }
+
+    /**
+     * The name of the file, as provided by the entity that requested the slot for the upload.
+     */
+    @Nullable
+    public String getFilename()
+    {
+        return filename;
+    }
+
+    @Nonnull
+    public String getETag()
+    {
+        return eTag;
+    }
+
+    /**
+     * A hash of the content (as a hexadecimal string), if one was calculated when the data was stored.
+     */
+    @Nullable
+    public String getDigest()
+    {
+        return digest;
+    }
+
+    /**
+     * The encoding (as used in a HTTP Content-Encoding header) of the data as it is stored, or null when the data is
+     * stored as it was uploaded. {@link #getSize()} always returns the size of the data as it was uploaded.
+     */
+    @Nullable
+    public String getContentEncoding()
+    {
+        return contentEncoding;
+    }
+
+    /**
+     * The size of the data as it is stored, or -1 when the data is stored as it was uploaded.
+     */
+    public long getEncodedSize()
+    {
+        return encodedSize;
+    }
+
+    /**
+     * Returns a compact, binary representation of this instance.
+     *
+     * @see #fromBytes(byte[])
+     */
+    public byte[] toBytes() throws IOException
+    {
+        try ( final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+              final DataOutputStream out = new DataOutputStream( bos ) )
+        {
+            out.writeByte( VERSION );
+            writeString( out, contentType );
+            out.writeLong( size );
+            out.writeLong( creationDate.getTime() );
+            writeString( out, filename );
+            writeString( out, eTag );
+            writeString( out, digest );
+            writeString( out, contentEncoding );
+            out.writeLong( encodedSize );
+            out.flush();
+            return bos.toByteArray();
+        }
+    }
+
+    /**
+     * Parses the binary representation of an instance.
+     *
+     * @see #toBytes()
+     */
+    public static FileMetadata fromBytes( byte[] data ) throws IOException
+    {
+        try ( final DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) ) )
+        {
+            final byte version = in.readByte();
+            if ( version != VERSION )
+            {
+                throw new IOException( "Unsupported metadata version: " + version );
+            }
+            final String contentType = readString( in );
+            final long size = in.readLong();
+            final Date creationDate = new Date( in.readLong() );
+            final String filename = readString( in );
+            final String eTag = readString( in );
+            if ( eTag == null )
+            {
+                throw new IOException( "Metadata lacks an ETag value." );
+            }
+            final String digest = readString( in );
+            final String contentEncoding = readString( in );
+            final long encodedSize = in.readLong();
+            return new FileMetadata( contentType, size, creationDate, filename, eTag, digest, contentEncoding, encodedSize );
+        }
+    }
+
+    // DataOutput#writeUTF is limited to 64KB, which a (malicious) filename could exceed.
+    private static void writeString( DataOutputStream out, String value ) throws IOException
+    {
+        if ( value == null )
+        {
+            out.writeInt( -1 );
+            return;
+        }
+        final byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    private static String readString( DataInputStream in ) throws IOException
+    {
+        final int length = in.readInt();
+        if ( length < 0 )
+        {
+            return null;
+        }
+        final byte[] bytes = new byte[ length ];
+        in.readFully( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FileMetadata{" +
+            "contentType='" + contentType + '\'' +
+            ", size=" + size +
+            ", creationDate=" + creationDate +
+            ", filename='" + filename + '\'' +
+            ", eTag='" + eTag + '\'' +
+            ", digest='" + digest + '\'' +
+            ", contentEncoding='" + contentEncoding + '\'' +
+            ", encodedSize=" + encodedSize +
+            '}';
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A range of bytes (inclusive on both ends) of a representation, as requested in a HTTP 'Range' header.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ * @see <a href="https://www.rfc-editor.org/rfc/rfc7233">RFC 7233: Hypertext Transfer Protocol (HTTP/1.1): Range Requests</a>
+ */
+public class HttpRange
+{
+    /**
+     * The maximum number of (coalesced) ranges that is processed. Requests for more ranges are served in full.
+     */
+    public static final int MAX_RANGES = 16;
+
+    private final long first;
+    private final long last;
+
+    public HttpRange( long first, long last )
+    {
+        if ( first < 0 || last < first )
+        {
+            throw new IllegalArgumentException( "Invalid range: " + first + "-" + last );
+        }
+        this.first = first;
+        this.last = last;
+    }
+
+    public long getFirst()
+    {
+        return first;
+    }
+
+    public long getLast()
+    {
+        return last;
+    }
+
+    public long getLength()
+    {
+        return last - first + 1;
+    }
+
+    /**
+     * Returns the value of a 'Content-Range' header that describes this range.
+     *
+     * @param size The total size of the representation.
+     * @return A Content-Range header value.
+     */
+    public String toContentRange( long size )
+    {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+
+    /**
+     * Parses the value of a HTTP 'Range' header.
+     *
+     * The returned ranges are sorted, and overlapping or adjacent ranges are coalesced.
+     *
+     * @param header The value of the Range header (can be null).
+     * @param size   The total size of the representation that the ranges apply to.
+     * @return the satisfiable ranges, an empty list if none of the ranges is satisfiable, or null if the header is to be ignored (because it is absent, malformed, holds no ranges, uses an unsupported unit or requests too many ranges).
+     */
+    @Nullable
+    public static List<HttpRange> parse( @Nullable final String header, final long size )
+    {
+        if ( header == null || !header.trim().startsWith( "bytes=" ) || size < 0 )
+        {
+            return null;
+        }
+
+        final List<HttpRange> result = new ArrayList<>();
+        boolean hasSpec = false;
+        for ( final String spec : header.trim().substring( "bytes=".length() ).split( "," ) )
+        {
+            final String value = spec.trim();
+            if ( value.isEmpty() )
+            {
+                continue; // RFC 7230, section 7: empty list elements are allowed.
+            }
+            hasSpec = true;
+
+            final int dash = value.indexOf( '-' );
+            if ( dash < 0 )
+            {
+                return null;
+            }
+
+            final long first;
+            final long last;
+            try
+            {
+                final String start = value.substring( 0, dash ).trim();
+                final String end = value.substring( dash + 1 ).trim();
+                if ( start.isEmpty() )
+                {
+                    // Suffix range: the final N bytes.
+                    final long suffix = parseNonNegative( end );
+                    if ( suffix == 0 )
+                    {
+                        continue; // Not satisfiable.
+                    }
+                    first = Math.max( 0, size - suffix );
+                    last = size - 1;
+                }
+                else
+                {
+                    first = parseNonNegative( start );
+                    final long requestedLast = end.isEmpty() ? Long.MAX_VALUE : parseNonNegative( end );
+                    if ( requestedLast < first )
+                    {
+                        return null; // Syntactically invalid: the entire header is to be ignored.
+                    }
+                    last = Math.min( requestedLast, size - 1 );
+                }
+            }
+            catch ( NumberFormatException e )
+            {
+                return null;
+            }
+
+            if ( first >= size )
+            {
+                continue; // Not satisfiable.
+            }
+            result.add( new HttpRange( first, last ) );
+        }
+
+        // A header that holds nothing but empty list elements is malformed (RFC 7233 requires at least one range).
+        if ( !hasSpec )
+        {
+            return null;
+        }
+
+        final List<HttpRange> coalesced = coalesce( result );
+        if ( coalesced.size() > MAX_RANGES )
+        {
+            return null;
+        }
+        return coalesced;
+    }
+
+    @Nonnull
+    static List<HttpRange> coalesce( @Nonnull final List<HttpRange> ranges )
+    {
+        final List<HttpRange> sorted = new ArrayList<>( ranges );
+        sorted.sort( Comparator.comparingLong( HttpRange::getFirst ) );
+
+        final List<HttpRange> result = new ArrayList<>();
+        for ( final HttpRange range : sorted )
+        {
+            final int lastIndex = result.size() - 1;
+            if ( lastIndex >= 0 && range.getFirst() <= result.get( lastIndex ).getLast() + 1 )
+            {
+                final HttpRange previous = result.get( lastIndex );
+                result.set( lastIndex, new HttpRange( previous.getFirst(), Math.max( previous.getLast(), range.getLast() ) ) );
+            }
+            else
+            {
+                result.add( range );
+            }
+        }
+        return result;
+    }
+
+    private static long parseNonNegative( final String value )
+    {
+        // Long.parseLong accepts a leading sign, which is not allowed here.
+        if ( value.isEmpty() || !Character.isDigit( value.charAt( 0 ) ) )
+        {
+            throw new NumberFormatException( "Not a non-negative integer: " + value );
+        }
+        return Long.parseLong( value );
+    }
+
+    @Override
+    public boolean equals( Object o )
+    {
+        if ( this == o )
+        {
+            return true;
+        }
+        if ( o == null || getClass() != o.getClass() )
+        {
+            return false;
+        }
+        final HttpRange that = (HttpRange) o;
+        return first == that.first && last == that.last;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Long.hashCode( first ) * 31 + Long.hashCode( last );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HttpRange{" +
+            "first=" + first +
+            ", last=" + last +
+            '}';
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363;
+
+import java.io.IOException;
+
+/**
+ * A scan for malware of data that is provided to the scanner while it is being received, rather than after it has been
+ * stored. This avoids reading the data a second time, and allows a verdict to be available shortly after the last byte
+ * was received.
+ *
+ * Failures to provide data to the scanner do not affect the upload itself. Instead, {@link #verify()} reports that no
+ * verdict was reached, after which the stored data is to be scanned by {@link MalwareScanner#scan(SecureUniqueId)}.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ * @see MalwareScanner#startInlineScan(SecureUniqueId)
+ */
+public interface InlineScan extends AutoCloseable
+{
+    /**
+     * Provides the next chunk of received data to the scanner.
+     *
+     * Implementations must not block, as this is typically invoked by a thread that processes non-blocking I/O. The data
+     * is not to be retained after this method returns, as the caller may reuse the buffer.
+     *
+     * @param data   The buffer that holds the data.
+     * @param offset The offset of the data in the buffer.
+     * @param length The amount of bytes of data.
+     */
+    void update(final byte[] data, final int offset, final int length);
+
+    /**
+     * Completes the scan, after all data has been provided. Blocks until a verdict is available.
+     *
+     * @return true when the data was found to be free of malware, false when the data could not be scanned while it was
+     *         received (and is to be scanned after it has been stored instead).
+     * @throws MalwareDetectedException when the data contains malware.
+     * @throws IOException when the data could not be scanned.
+     */
+    boolean verify() throws MalwareDetectedException, IOException;
+
+    /**
+     * Releases the resources of the scan. Aborts the scan when it has not been completed. Invoking this more than once
+     * has no further effect.
+     */
+    @Override
+    void close();
+}
@@ -19,13 +19,34 @@ package nl.goodbytes.xmpp.xep0363;
 
 import com.google.common.collect.ImmutableMap;
 import nl.goodbytes.xmpp.xep0363.clamav.ClamavMalwareScanner;
+import nl.goodbytes.xmpp.xep0363.repository.AbstractFileSystemRepository;
+import nl.goodbytes.xmpp.xep0363.repository.CompressingRepository;
+import nl.goodbytes.xmpp.xep0363.repository.DeduplicatingRepository;
 import nl.goodbytes.xmpp.xep0363.repository.DirectoryRepository;
+import nl.goodbytes.xmpp.xep0363.repository.RepositoryLayout;
+import nl.goodbytes.xmpp.xep0363.repository.RepositoryPurger;
+import nl.goodbytes.xmpp.xep0363.repository.SegmentedRepository;
+import nl.goodbytes.xmpp.xep0363.repository.SpaceThreshold;
 import nl.goodbytes.xmpp.xep0363.repository.TempDirectoryRepository;
+import nl.goodbytes.xmpp.xep0363.repository.TieredRepository;
 import nl.goodbytes.xmpp.xep0363.slot.DefaultSlotProvider;
 import org.apache.commons.cli.*;
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
 import org.eclipse.jetty.ee8.servlet.ServletContextHandler;
+import org.eclipse.jetty.ee8.servlet.ServletHolder;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.AbstractHTTP2ServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.jivesoftware.whack.ExternalComponentManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +56,7 @@ import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 /**
@@ -45,6 +67,32 @@ import java.util.*;
 public class Launcher
 {
     private static final Logger Log = LoggerFactory.getLogger( Launcher.class );
+
+    /**
+     * The default maximum amount of platform threads that is used by the webserver.
+     */
+    public static final int DEFAULT_MAX_THREADS = 200;
+
+    /**
+     * The default maximum amount of uploads that wait to be scanned for malware, when uploads are scanned asynchronously.
+     */
+    public static final int DEFAULT_ASYNC_SCAN_QUEUE_SIZE = 1000;
+
+    /**
+     * The default maximum amount of concurrent HTTP/2 streams (requests) per connection.
+     */
+    public static final int DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS = 128;
+
+    /**
+     * The default initial HTTP/2 flow-control window, in bytes, of a stream (a single request).
+     */
+    public static final int DEFAULT_HTTP2_STREAM_WINDOW = 512 * 1024;
+
+    /**
+     * The default initial HTTP/2 flow-control window, in bytes, of a session (all streams of a connection combined).
+     */
+    public static final int DEFAULT_HTTP2_SESSION_WINDOW = 1024 * 1024;
+
     private final String xmppHost;
     private final Integer xmppPort;
     private final String webContextRoot;
@@ -63,27 +111,47 @@ public class Launcher
     private final boolean wildcardCORS;
     private final String contentSecurityPolicy;
     private final MalwareScanner malwareScanner;
+    private final int asyncScanWorkers;
+    private final int asyncScanQueueSize;
+    private final boolean virtualThreads;
+    private final Integer maxThreads;
+    private final boolean http2;
+    private final Integer http2MaxConcurrentStreams;
+    private final Integer http2StreamWindow;
+    private final Integer http2SessionWindow;
+    private final Path keyStore;
+    private final String keyStorePassword;
 
-    public Launcher( String xmppHost, Integer xmppPort, String domain, String sharedSecret, String webProtocol, String webHost, Integer webPort, String webContextRoot, String announcedWebProtocol, String announcedWebHost, Integer announcedWebPort, String announcedWebContextRoot, Repository repository, Long maxFileSize, boolean wildcardCORS, String contentSecurityPolicy, MalwareScanner malwareScanner)
+    private Launcher( final Builder builder )
     {
-        this.xmppHost = xmppHost != null ? xmppHost : "localhost";
-        this.xmppPort = xmppPort != null ? xmppPort : 5275;
-        this.domain = domain != null ? domain : "upload";
-        this.sharedSecret = sharedSecret;
-        this.webProtocol = webProtocol != null ? webProtocol : "http";
-        this.webHost = webHost != null ? webHost : getPublicAddress();
-        this.webPort = webPort != null ? webPort : 12121;
-        this.webContextRoot = webContextRoot != null ? (webContextRoot.startsWith( "/" ) ? webContextRoot : "/" + webContextRoot) : "/";
-        this.announcedWebProtocol = announcedWebProtocol != null ? announcedWebProtocol : this.webProtocol;
-        this.announcedWebHost = announcedWebHost != null ? announcedWebHost : this.webHost;
-        this.announcedWebPort = announcedWebPort != null ? announcedWebPort : this.webPort;
-        this.announcedWebContextRoot = announcedWebContextRoot != null ? announcedWebContextRoot : this.webContextRoot;
-        this.repository = repository != null ? repository : new TempDirectoryRepository();
+        this.xmppHost = builder.xmppHost != null ? builder.xmppHost : "localhost";
+        this.xmppPort = builder.xmppPort != null ? builder.xmppPort : 5275;
+        this.domain = builder.domain != null ? builder.domain : "upload";
+        this.sharedSecret = builder.sharedSecret;
+        this.webProtocol = builder.webProtocol != null ? builder.webProtocol : ( builder.keyStore != null ? "https" : "http" );
+        this.webHost = builder.webHost != null ? builder.webHost : getPublicAddress();
+        this.webPort = builder.webPort != null ? builder.webPort : 12121;
+        this.webContextRoot = builder.webContextRoot != null ? (builder.webContextRoot.startsWith( "/" ) ? builder.webContextRoot : "/" + builder.webContextRoot) : "/";
+        this.announcedWebProtocol = builder.announcedWebProtocol != null ? builder.announcedWebProtocol : this.webProtocol;
+        this.announcedWebHost = builder.announcedWebHost != null ? builder.announcedWebHost : this.webHost;
+        this.announcedWebPort = builder.announcedWebPort != null ? builder.announcedWebPort : this.webPort;
+        this.announcedWebContextRoot = builder.announcedWebContextRoot != null ? builder.announcedWebContextRoot : this.webContextRoot;
+        this.repository = builder.repository != null ? builder.repository : new TempDirectoryRepository();
         this.slotProvider = new DefaultSlotProvider();
-        this.maxFileSize = maxFileSize != null ? maxFileSize : SlotManager.DEFAULT_MAX_FILE_SIZE;
-        this.wildcardCORS = wildcardCORS;
-        this.contentSecurityPolicy = contentSecurityPolicy != null ? contentSecurityPolicy : "default-src 'none'; frame-ancestors 'none';";
-        this.malwareScanner = malwareScanner;
+        this.maxFileSize = builder.maxFileSize != null ? builder.maxFileSize : SlotManager.DEFAULT_MAX_FILE_SIZE;
+        this.wildcardCORS = builder.wildcardCORS;
+        this.contentSecurityPolicy = builder.contentSecurityPolicy != null ? builder.contentSecurityPolicy : "default-src 'none'; frame-ancestors 'none';";
+        this.malwareScanner = builder.malwareScanner;
+        this.asyncScanWorkers = builder.asyncScanWorkers != null ? builder.asyncScanWorkers : 0;
+        this.asyncScanQueueSize = builder.asyncScanQueueSize != null ? builder.asyncScanQueueSize : DEFAULT_ASYNC_SCAN_QUEUE_SIZE;
+        this.virtualThreads = builder.virtualThreads;
+        this.maxThreads = builder.maxThreads != null ? builder.maxThreads : DEFAULT_MAX_THREADS;
+        this.http2 = builder.http2;
+        this.http2MaxConcurrentStreams = builder.http2MaxConcurrentStreams != null ? builder.http2MaxConcurrentStreams : DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS;
+        this.http2StreamWindow = builder.http2StreamWindow != null ? builder.http2StreamWindow : DEFAULT_HTTP2_STREAM_WINDOW;
+        this.http2SessionWindow = builder.http2SessionWindow != null ? builder.http2SessionWindow : DEFAULT_HTTP2_SESSION_WINDOW;
+        this.keyStore = builder.keyStore;
+        this.keyStorePassword = builder.keyStorePassword;
     }
 
     public static void main( String[] args )
@@ -214,6 +282,178 @@ public class Launcher
         );
         options.addOptionGroup( repoType );
 
+        options.addOption(
+                Option.builder()
+                        .longOpt( "shardedLayout" )
+                        .desc( "Store files in two levels of subdirectories of the repository (named after a hash of each file name), rather than all in one directory. Files that were stored in the other layout remain available." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "migrateLayout" )
+                        .desc( "Requires shardedLayout. Moves all files that are stored directly in the repository directory to the sharded layout, in the background, while the application is running." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "compress" )
+                        .desc( "Store files of which the content type indicates that they compress well (eg: text documents) compressed. These are sent compressed to clients that accept it." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "deduplicate" )
+                        .desc( "Store identical files only once, by linking to data with the same content hash. Requires a file system that supports hard links." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "coldTier" )
+                        .hasArg()
+                        .desc( "Requires fileRepo. Moves files that are no longer frequently read from the repository directory to this directory, in the background. Provide the desired path as a value." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "tierMigrationAge" )
+                        .hasArg()
+                        .desc( "Requires coldTier. Files that have not been read for this duration are moved to the cold tier. Provide an ISO-8601 duration (eg: 'P1D'). Defaults to one day." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "hotWatermark" )
+                        .hasArg()
+                        .desc( "Requires coldTier. When the used space of the file store of the repository directory exceeds this amount of bytes or percentage (eg: '90%'), the oldest files are moved to the cold tier regardless of their age." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "segmentStoreMaxFileSize" )
+                        .hasArg()
+                        .desc( "Files of up to this amount of bytes are appended to a few large segment files, rather than being stored in a file of their own. Defaults to 0 (disabled)." )
+                        .type( Long.class )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "segmentSize" )
+                        .hasArg()
+                        .desc( "The size (in bytes) at which a segment file is sealed, after which a new segment file is started. Defaults to " + SegmentedRepository.DEFAULT_SEGMENT_SIZE + "." )
+                        .type( Long.class )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "metadataCacheSize" )
+                        .hasArg()
+                        .desc( "The maximum amount of files for which metadata (size, content type, etc) is cached in memory. Use 0 to disable the cache. Defaults to " + AbstractFileSystemRepository.DEFAULT_METADATA_CACHE_SIZE + "." )
+                        .type( Long.class )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "contentCacheSize" )
+                        .hasArg()
+                        .desc( "The maximum amount of bytes of file content that is cached in (direct) memory, to serve frequently downloaded small files without reading them from disk. Defaults to 0 (disabled)." )
+                        .type( Long.class )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "contentCacheMaxFileSize" )
+                        .hasArg()
+                        .desc( "The size, in bytes, of the largest file of which content is cached in memory. Defaults to " + AbstractFileSystemRepository.DEFAULT_CONTENT_CACHE_MAX_FILE_SIZE + "." )
+                        .type( Long.class )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "maxFileAge" )
+                        .hasArg()
+                        .desc( "The maximum age of stored files, as an ISO-8601 duration (eg: 'P30D' for thirty days, 'PT12H' for twelve hours). Older files are no longer served, and are deleted. Defaults to no limit." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "highWatermark" )
+                        .hasArg()
+                        .desc( "The amount of used space on the file system that holds the repository, above which the oldest files are evicted. Either an amount of bytes, or a percentage of the file system capacity (eg: '90%'). When no watermark or maximum repository size is configured, files are purged when the repository uses more space than what is left available." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "lowWatermark" )
+                        .hasArg()
+                        .desc( "The amount of used space on the file system to which usage is reduced, once eviction has started. Either an amount of bytes, or a percentage of the file system capacity (eg: '80%'). Defaults to the high watermark." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "maxRepositorySize" )
+                        .hasArg()
+                        .desc( "The maximum amount of bytes that can be used by files in the repository. The oldest files are evicted when this is exceeded. Defaults to no limit." )
+                        .type( Long.class )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "evictionBatchSize" )
+                        .hasArg()
+                        .desc( "The maximum amount of files that is evicted per second, which limits the impact of eviction on other file system activity. Defaults to " + RepositoryPurger.DEFAULT_EVICTION_BATCH_SIZE + "." )
+                        .type( Integer.class )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "purgeInterval" )
+                        .hasArg()
+                        .desc( "The interval at which the repository is purged, as an ISO-8601 duration. Defaults to 'PT5M' (five minutes)." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "purgeJitter" )
+                        .hasArg()
+                        .desc( "The maximum random delay that is added to each purge interval, as an ISO-8601 duration (eg: 'PT30S'). Defaults to no delay." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "purgeBudget" )
+                        .hasArg()
+                        .desc( "The maximum duration of a purge, as an ISO-8601 duration (eg: 'PT10S'). Remaining work is done by the next purge. Defaults to no limit." )
+                        .build()
+        );
+
+        options.addOption(
+                Option.builder()
+                        .longOpt( "deletionThreads" )
+                        .hasArg()
+                        .desc( "The amount of threads that delete files in parallel while purging the repository. Defaults to " + RepositoryPurger.DEFAULT_DELETION_THREADS + "." )
+                        .type( Integer.class )
+                        .build()
+        );
+
         options.addOption(
                 Option.builder()
                         .longOpt( "maxFileSize" )
@@ -256,6 +496,146 @@ public class Launcher
                 .build()
         );
 
+        options.addOption(
+            Option.builder()
+                .longOpt( "clamavInlineScan" )
+                .desc( "Requires clamavHost. Provides uploaded data to the ClamAV malware scanner while it is being received, rather than reading it again after it has been stored." )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "clamavMaxConcurrentScans" )
+                .hasArg()
+                .desc( "Requires clamavHost. The maximum amount of uploads that are scanned concurrently (each using a connection to the ClamAV malware scanner). Defaults to 10." )
+                .type( Integer.class )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "scanFailOpen" )
+                .desc( "Requires clamavHost. Accepts uploads without scanning them when the ClamAV malware scanner fails or is unavailable. By default, such uploads are rejected." )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "scanSlowThreshold" )
+                .hasArg()
+                .desc( "Requires clamavHost. Scans that take longer than this duration count as failures. When half or more of the recent scans failed, the ClamAV malware scanner is not used for a while. Provide an ISO-8601 duration (eg: 'PT30S'). Defaults to 30 seconds." )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "scanCircuitOpenDuration" )
+                .hasArg()
+                .desc( "Requires clamavHost. The duration for which the ClamAV malware scanner is not used after half or more of the recent scans failed. Provide an ISO-8601 duration (eg: 'PT30S'). Defaults to 30 seconds." )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "scanVerdictCacheSize" )
+                .hasArg()
+                .desc( "Requires clamavHost. Remembers the content hash of up to this amount of uploads that were found to be free of malware, to skip scanning identical uploads until the virus database of the ClamAV malware scanner changes." )
+                .type( Long.class )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "asyncScanWorkers" )
+                .hasArg()
+                .desc( "Requires clamavHost. Scans uploads for malware using this amount of workers after the upload request has been answered, rather than before. Until an upload has been scanned, requests for it are answered with 503 (Service Unavailable). Uploads that have not been scanned when the application stops are lost." )
+                .type( Integer.class )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "asyncScanQueueSize" )
+                .hasArg()
+                .desc( "Requires asyncScanWorkers. The maximum amount of uploads that wait to be scanned. Uploads in excess of this are scanned before the upload request is answered. Defaults to " + DEFAULT_ASYNC_SCAN_QUEUE_SIZE + "." )
+                .type( Integer.class )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "clamavQueueTimeout" )
+                .hasArg()
+                .desc( "Requires clamavHost. The maximum duration that a scan waits for other scans to complete, after which the upload is rejected. Provide an ISO-8601 duration (eg: 'PT30S'). Defaults to 30 seconds." )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "virtualThreads" )
+                .desc( "Process web requests on virtual threads (requires Java 21 or later). When virtual threads are not available, a bounded pool of platform threads is used." )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "maxThreads" )
+                .hasArg()
+                .desc( "The maximum amount of platform threads that is used by the webserver. Defaults to " + DEFAULT_MAX_THREADS + "." )
+                .type( Integer.class )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "keyStore" )
+                .hasArg()
+                .desc( "Path to a Java keystore (JKS or PKCS12) holding the private key and certificate chain of the webserver. When provided, the webserver accepts TLS-encrypted connections only, and webProtocol defaults to https." )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "keyStorePassword" )
+                .hasArg()
+                .desc( "The password of the keystore, if any." )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "http2" )
+                .desc( "Accept HTTP/2 in addition to HTTP/1.1. With TLS, the protocol is negotiated with ALPN. Without TLS, HTTP/2 is accepted in cleartext (h2c), which is useful behind a reverse proxy." )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "http2MaxConcurrentStreams" )
+                .hasArg()
+                .desc( "The maximum amount of concurrent HTTP/2 streams (requests) per connection. Defaults to " + DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS + "." )
+                .type( Integer.class )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "http2StreamWindow" )
+                .hasArg()
+                .desc( "The initial HTTP/2 flow-control window, in bytes, of each stream. Defaults to " + DEFAULT_HTTP2_STREAM_WINDOW + "." )
+                .type( Integer.class )
+                .build()
+        );
+
+        options.addOption(
+            Option.builder()
+                .longOpt( "http2SessionWindow" )
+                .hasArg()
+                .desc( "The initial HTTP/2 flow-control window, in bytes, of each connection (all of its streams combined). Defaults to " + DEFAULT_HTTP2_SESSION_WINDOW + "." )
+                .type( Integer.class )
+                .build()
+        );
+
         try
         {
             final CommandLineParser parser = new DefaultParser();
@@ -285,8 +665,149 @@ public class Launcher
                 final String contentSecurityPolicy = line.hasOption("contentSecurityPolicy") ? line.getOptionValue("contentSecurityPolicy") : "default-src 'none'; frame-ancestors 'none';";
                 final String clamavHost = line.getOptionValue("clamavHost", null);
                 final Integer clamavPort = line.hasOption( "clamavPort" ) ? Integer.parseInt(line.getOptionValue( "clamavPort" )) : null;
+                final boolean clamavInlineScan = line.hasOption( "clamavInlineScan" );
+                final Integer clamavMaxConcurrentScans = line.hasOption( "clamavMaxConcurrentScans" ) ? Integer.parseInt(line.getOptionValue( "clamavMaxConcurrentScans" )) : null;
+                final Duration clamavQueueTimeout = parseDuration( line, "clamavQueueTimeout" );
+                if ( ( clamavInlineScan || clamavMaxConcurrentScans != null || clamavQueueTimeout != null ) && clamavHost == null ) {
+                    throw new ParseException( "The 'clamavInlineScan', 'clamavMaxConcurrentScans' and 'clamavQueueTimeout' options require the 'clamavHost' option." );
+                }
+                if ( clamavMaxConcurrentScans != null && clamavMaxConcurrentScans <= 0 ) {
+                    throw new ParseException( "Invalid value for 'clamavMaxConcurrentScans' option: must be a positive number." );
+                }
+                if ( clamavQueueTimeout != null && clamavQueueTimeout.isNegative() ) {
+                    throw new ParseException( "Invalid value for 'clamavQueueTimeout' option: cannot be negative." );
+                }
+                final Integer asyncScanWorkers = line.hasOption( "asyncScanWorkers" ) ? Integer.parseInt(line.getOptionValue( "asyncScanWorkers" )) : null;
+                final Integer asyncScanQueueSize = line.hasOption( "asyncScanQueueSize" ) ? Integer.parseInt(line.getOptionValue( "asyncScanQueueSize" )) : null;
+                if ( asyncScanWorkers != null && clamavHost == null ) {
+                    throw new ParseException( "The 'asyncScanWorkers' option requires the 'clamavHost' option." );
+                }
+                if ( asyncScanQueueSize != null && asyncScanWorkers == null ) {
+                    throw new ParseException( "The 'asyncScanQueueSize' option requires the 'asyncScanWorkers' option." );
+                }
+                if ( asyncScanWorkers != null && asyncScanWorkers <= 0 ) {
+                    throw new ParseException( "Invalid value for 'asyncScanWorkers' option: must be a positive number." );
+                }
+                if ( asyncScanQueueSize != null && asyncScanQueueSize <= 0 ) {
+                    throw new ParseException( "Invalid value for 'asyncScanQueueSize' option: must be a positive number." );
+                }
+                final boolean scanFailOpen = line.hasOption( "scanFailOpen" );
+                final Duration scanSlowThreshold = parseDuration( line, "scanSlowThreshold" );
+                final Duration scanCircuitOpenDuration = parseDuration( line, "scanCircuitOpenDuration" );
+                if ( ( scanFailOpen || scanSlowThreshold != null || scanCircuitOpenDuration != null ) && clamavHost == null ) {
+                    throw new ParseException( "The 'scanFailOpen', 'scanSlowThreshold' and 'scanCircuitOpenDuration' options require the 'clamavHost' option." );
+                }
+                if ( scanSlowThreshold != null && ( scanSlowThreshold.isZero() || scanSlowThreshold.isNegative() ) ) {
+                    throw new ParseException( "Invalid value for 'scanSlowThreshold' option: must be positive." );
+                }
+                if ( scanCircuitOpenDuration != null && ( scanCircuitOpenDuration.isZero() || scanCircuitOpenDuration.isNegative() ) ) {
+                    throw new ParseException( "Invalid value for 'scanCircuitOpenDuration' option: must be positive." );
+                }
+                final Long scanVerdictCacheSize = line.hasOption( "scanVerdictCacheSize" ) ? Long.parseLong(line.getOptionValue( "scanVerdictCacheSize" )) : null;
+                if ( scanVerdictCacheSize != null && clamavHost == null ) {
+                    throw new ParseException( "The 'scanVerdictCacheSize' option requires the 'clamavHost' option." );
+                }
+                if ( scanVerdictCacheSize != null && scanVerdictCacheSize <= 0 ) {
+                    throw new ParseException( "Invalid value for 'scanVerdictCacheSize' option: must be a positive number." );
+                }
+                final Long metadataCacheSize = line.hasOption( "metadataCacheSize" ) ? Long.parseLong(line.getOptionValue( "metadataCacheSize" )) : null;
+                if ( metadataCacheSize != null && metadataCacheSize < 0 ) {
+                    throw new ParseException( "Invalid value for 'metadataCacheSize' option: must not be negative." );
+                }
+                final Long contentCacheSize = line.hasOption( "contentCacheSize" ) ? Long.parseLong(line.getOptionValue( "contentCacheSize" )) : null;
+                if ( contentCacheSize != null && contentCacheSize < 0 ) {
+                    throw new ParseException( "Invalid value for 'contentCacheSize' option: must not be negative." );
+                }
+                final Long contentCacheMaxFileSize = line.hasOption( "contentCacheMaxFileSize" ) ? Long.parseLong(line.getOptionValue( "contentCacheMaxFileSize" )) : null;
+                final Duration maxFileAge = parseDuration( line, "maxFileAge" );
+                final Duration purgeInterval = parseDuration( line, "purgeInterval" );
+                if ( purgeInterval != null && ( purgeInterval.isZero() || purgeInterval.isNegative() ) ) {
+                    throw new ParseException( "Invalid value for 'purgeInterval' option: must be positive." );
+                }
+                final Duration purgeJitter = parseDuration( line, "purgeJitter" );
+                final Duration purgeBudget = parseDuration( line, "purgeBudget" );
+                final Integer deletionThreads = line.hasOption( "deletionThreads" ) ? Integer.parseInt(line.getOptionValue( "deletionThreads" )) : null;
+                if ( deletionThreads != null && deletionThreads <= 0 ) {
+                    throw new ParseException( "Invalid value for 'deletionThreads' option: must be a positive number." );
+                }
+                final SpaceThreshold highWatermark;
+                final SpaceThreshold lowWatermark;
+                try {
+                    highWatermark = line.hasOption( "highWatermark" ) ? SpaceThreshold.parse( line.getOptionValue( "highWatermark" ) ) : null;
+                    lowWatermark = line.hasOption( "lowWatermark" ) ? SpaceThreshold.parse( line.getOptionValue( "lowWatermark" ) ) : null;
+                } catch ( IllegalArgumentException e ) {
+                    throw new ParseException( "Invalid watermark value: " + e.getMessage() );
+                }
+                final Long maxRepositorySize = line.hasOption( "maxRepositorySize" ) ? Long.parseLong(line.getOptionValue( "maxRepositorySize" )) : null;
+                if ( maxRepositorySize != null && maxRepositorySize < 0 ) {
+                    throw new ParseException( "Invalid value for 'maxRepositorySize' option: must not be negative." );
+                }
+                final Integer evictionBatchSize = line.hasOption( "evictionBatchSize" ) ? Integer.parseInt(line.getOptionValue( "evictionBatchSize" )) : null;
+                if ( evictionBatchSize != null && evictionBatchSize <= 0 ) {
+                    throw new ParseException( "Invalid value for 'evictionBatchSize' option: must be a positive number." );
+                }
+                final boolean shardedLayout = line.hasOption( "shardedLayout" );
+                final boolean migrateLayout = line.hasOption( "migrateLayout" );
+                if ( migrateLayout && !shardedLayout ) {
+                    throw new ParseException( "The 'migrateLayout' option requires the 'shardedLayout' option." );
+                }
+                final Duration tierMigrationAge = parseDuration( line, "tierMigrationAge" );
+                if ( tierMigrationAge != null && tierMigrationAge.isNegative() ) {
+                    throw new ParseException( "Invalid value for 'tierMigrationAge' option: cannot be negative." );
+                }
+                final SpaceThreshold hotWatermark;
+                try {
+                    hotWatermark = line.hasOption( "hotWatermark" ) ? SpaceThreshold.parse( line.getOptionValue( "hotWatermark" ) ) : null;
+                } catch ( IllegalArgumentException e ) {
+                    throw new ParseException( "Invalid watermark value: " + e.getMessage() );
+                }
+                if ( line.hasOption( "coldTier" ) && !line.hasOption( "fileRepo" ) ) {
+                    throw new ParseException( "The 'coldTier' option requires the 'fileRepo' option." );
+                }
+                if ( ( tierMigrationAge != null || hotWatermark != null ) && !line.hasOption( "coldTier" ) ) {
+                    throw new ParseException( "The 'tierMigrationAge' and 'hotWatermark' options require the 'coldTier' option." );
+                }
+                final Long segmentStoreMaxFileSize = line.hasOption( "segmentStoreMaxFileSize" ) ? Long.parseLong(line.getOptionValue( "segmentStoreMaxFileSize" )) : null;
+                final Long segmentSize = line.hasOption( "segmentSize" ) ? Long.parseLong(line.getOptionValue( "segmentSize" )) : null;
+                final boolean compress = line.hasOption( "compress" );
+                final boolean deduplicate = line.hasOption( "deduplicate" );
+                final boolean virtualThreads = line.hasOption( "virtualThreads" );
+                final Integer maxThreads = line.hasOption( "maxThreads" ) ? Integer.parseInt(line.getOptionValue( "maxThreads" )) : null;
+                if ( maxThreads != null && maxThreads <= 0 ) {
+                    throw new ParseException( "Invalid value for 'maxThreads' option: must be a positive number." );
+                }
+                final boolean http2 = line.hasOption( "http2" );
+                final Integer http2MaxConcurrentStreams = line.hasOption( "http2MaxConcurrentStreams" ) ? Integer.parseInt(line.getOptionValue( "http2MaxConcurrentStreams" )) : null;
+                if ( http2MaxConcurrentStreams != null && http2MaxConcurrentStreams <= 0 ) {
+                    throw new ParseException( "Invalid value for 'http2MaxConcurrentStreams' option: must be a positive number." );
+                }
+                final Integer http2StreamWindow = line.hasOption( "http2StreamWindow" ) ? Integer.parseInt(line.getOptionValue( "http2StreamWindow" )) : null;
+                if ( http2StreamWindow != null && http2StreamWindow <= 0 ) {
+                    throw new ParseException( "Invalid value for 'http2StreamWindow' option: must be a positive number." );
+                }
+                final Integer http2SessionWindow = line.hasOption( "http2SessionWindow" ) ? Integer.parseInt(line.getOptionValue( "http2SessionWindow" )) : null;
+                if ( http2SessionWindow != null && http2SessionWindow <= 0 ) {
+                    throw new ParseException( "Invalid value for 'http2SessionWindow' option: must be a positive number." );
+                }
+                final String keyStorePassword = line.getOptionValue( "keyStorePassword" );
+                final Path keyStore;
+                if ( line.hasOption( "keyStore" ) )
+                {
+                    try {
+                        keyStore = Paths.get( line.getOptionValue( "keyStore" ) );
+                    } catch ( InvalidPathException e ) {
+                        throw new ParseException( "Invalid value for 'keyStore' option: " + e.getMessage() );
+                    }
+                    if ( !keyStore.toFile().isFile() ) {
+                        throw new ParseException( "Invalid value for 'keyStore' option: file does not exist: " + keyStore );
+                    }
+                }
+                else
+                {
+                    keyStore = null;
+                }
 
-                final Repository repository;
+                final AbstractFileSystemRepository repository;
                 if ( line.hasOption( "tempFileRepo" ) )
                 {
                     repository = new TempDirectoryRepository();
@@ -300,21 +821,152 @@ public class Launcher
                     } catch ( InvalidPathException e ) {
                         throw new ParseException( "Invalid value for 'fileRepo' option: " + e.getMessage() );
                     }
-                    repository = new DirectoryRepository( path );
+                    if ( line.hasOption( "coldTier" ) )
+                    {
+                        final Path coldPath;
+                        try {
+                            coldPath = Paths.get( line.getOptionValue( "coldTier" ) );
+                        } catch ( InvalidPathException e ) {
+                            throw new ParseException( "Invalid value for 'coldTier' option: " + e.getMessage() );
+                        }
+                        final TieredRepository tieredRepository = new TieredRepository( path, coldPath );
+                        if ( tierMigrationAge != null )
+                        {
+                            tieredRepository.setMigrationAge( tierMigrationAge );
+                        }
+                        tieredRepository.setHotWatermark( hotWatermark );
+                        repository = tieredRepository;
+                    }
+                    else
+                    {
+                        repository = new DirectoryRepository( path );
+                    }
                 }
                 else
                 {
-                    repository = null;
+                    repository = new TempDirectoryRepository();
+                }
+
+                if ( metadataCacheSize != null )
+                {
+                    repository.setMetadataCacheSize( metadataCacheSize );
+                }
+                if ( contentCacheSize != null )
+                {
+                    repository.setContentCacheSize( contentCacheSize );
+                }
+                if ( contentCacheMaxFileSize != null )
+                {
+                    repository.setContentCacheMaxFileSize( contentCacheMaxFileSize );
+                }
+                final RepositoryLayout layout = repository.getLayout();
+                layout.setSharded( shardedLayout );
+                layout.setMigrateOnInitialize( migrateLayout );
+                final RepositoryPurger purger = repository.getPurger();
+                purger.setMaxFileAge( maxFileAge );
+                if ( purgeInterval != null )
+                {
+                    purger.setPurgeInterval( purgeInterval );
+                }
+                purger.setPurgeJitter( purgeJitter );
+                purger.setPurgeBudget( purgeBudget );
+                if ( deletionThreads != null )
+                {
+                    purger.setDeletionThreads( deletionThreads );
+                }
+                purger.setHighWatermark( highWatermark );
+                purger.setLowWatermark( lowWatermark );
+                if ( maxRepositorySize != null )
+                {
+                    purger.setMaxBytes( maxRepositorySize );
+                }
+                if ( evictionBatchSize != null )
+                {
+                    purger.setEvictionBatchSize( evictionBatchSize );
+                }
+
+                // Small files are stored in segments, larger files are stored (possibly compressed, and then deduplicated) by the repository itself.
+                Repository storage = repository;
+                if ( deduplicate )
+                {
+                    storage = new DeduplicatingRepository( storage );
+                }
+                if ( compress )
+                {
+                    storage = new CompressingRepository( storage );
+                }
+                if ( segmentStoreMaxFileSize != null && segmentStoreMaxFileSize != 0 )
+                {
+                    try {
+                        final SegmentedRepository segmentedRepository = new SegmentedRepository( storage, segmentStoreMaxFileSize );
+                        if ( segmentSize != null )
+                        {
+                            segmentedRepository.setSegmentSize( segmentSize );
+                        }
+                        storage = segmentedRepository;
+                    } catch ( IllegalArgumentException e ) {
+                        throw new ParseException( "Invalid segment store configuration: " + e.getMessage() );
+                    }
                 }
 
                 final MalwareScanner clamav;
                 if ( clamavHost != null ) {
-                    clamav = new ClamavMalwareScanner(clamavHost, clamavPort == null ? 3310 : clamavPort, Duration.ofSeconds(2));
+                    final ClamavMalwareScanner clamavMalwareScanner = new ClamavMalwareScanner(clamavHost, clamavPort == null ? 3310 : clamavPort, Duration.ofSeconds(2));
+                    clamavMalwareScanner.setInlineScan( clamavInlineScan );
+                    if ( clamavMaxConcurrentScans != null ) {
+                        clamavMalwareScanner.setMaxConcurrentScans( clamavMaxConcurrentScans );
+                    }
+                    if ( clamavQueueTimeout != null ) {
+                        clamavMalwareScanner.setQueueTimeout( clamavQueueTimeout );
+                    }
+                    // The circuit breaker records the outcome of scans that are actually performed, thus is wrapped by the cache.
+                    MalwareScanner scanner = new CircuitBreakingMalwareScanner( clamavMalwareScanner,
+                        scanSlowThreshold != null ? scanSlowThreshold : CircuitBreakingMalwareScanner.DEFAULT_SLOW_SCAN_THRESHOLD,
+                        scanCircuitOpenDuration != null ? scanCircuitOpenDuration : CircuitBreakingMalwareScanner.DEFAULT_OPEN_DURATION );
+                    if ( scanVerdictCacheSize != null ) {
+                        // The cache identifies content by a hash that is calculated while it is being uploaded.
+                        repository.setHashUploads( true );
+                        scanner = new CachingMalwareScanner( scanner, scanVerdictCacheSize );
+                    }
+
+                    // Wraps the cache, so that uploads that are accepted without a verdict are never recorded as clean.
+                    if ( scanFailOpen ) {
+                        scanner = new FailOpenMalwareScanner( scanner );
+                    }
+                    clamav = scanner;
                 } else {
                     clamav = null;
                 }
 
-                final Launcher launcher = new Launcher( xmppHost, xmppPort, domain, sharedSecret, webProtocol, webHost, webPort, webContextRoot, announcedWebProtocol, announcedWebHost, announcedWebPort, announcedWebContextRoot, repository, maxFileSize, wildcardCORS, contentSecurityPolicy, clamav );
+                final Launcher launcher = new Launcher.Builder()
+                    .xmppHost( xmppHost )
+                    .xmppPort( xmppPort )
+                    .domain( domain )
+                    .sharedSecret( sharedSecret )
+                    .webProtocol( webProtocol )
+                    .webHost( webHost )
+                    .webPort( webPort )
+                    .webContextRoot( webContextRoot )
+                    .announcedWebProtocol( announcedWebProtocol )
+                    .announcedWebHost( announcedWebHost )
+                    .announcedWebPort( announcedWebPort )
+                    .announcedWebContextRoot( announcedWebContextRoot )
+                    .repository( storage )
+                    .maxFileSize( maxFileSize )
+                    .wildcardCORS( wildcardCORS )
+                    .contentSecurityPolicy( contentSecurityPolicy )
+                    .malwareScanner( clamav )
+                    .asyncScanWorkers( asyncScanWorkers )
+                    .asyncScanQueueSize( asyncScanQueueSize )
+                    .virtualThreads( virtualThreads )
+                    .maxThreads( maxThreads )
+                    .http2( http2 )
+                    .http2MaxConcurrentStreams( http2MaxConcurrentStreams )
+                    .http2StreamWindow( http2StreamWindow )
+                    .http2SessionWindow( http2SessionWindow )
+                    .keyStore( keyStore )
+                    .keyStorePassword( keyStorePassword )
+                    .build();
                 launcher.start();
             }
         }
@@ -328,6 +980,22 @@ public class Launcher
         }
     }
 
+    private static Duration parseDuration( CommandLine line, String option ) throws ParseException
+    {
+        if ( !line.hasOption( option ) )
+        {
+            return null;
+        }
+        try
+        {
+            return Duration.parse( line.getOptionValue( option ) );
+        }
+        catch ( DateTimeParseException e )
+        {
+            throw new ParseException( "Invalid value for '" + option + "' option: " + e.getMessage() );
+        }
+    }
+
     private static String getPublicAddress()
     {
         final Deque<String> hostnames = new ArrayDeque<>();
@@ -386,6 +1054,88 @@ public class Launcher
         return hostnames.getFirst();
     }
 
+    /**
+     * Creates the thread pool that is used by the webserver.
+     *
+     * The pool of platform threads is always bounded. When virtual threads are requested and supported, the blocking
+     * parts of request processing are executed on virtual threads instead, while the (bounded) platform threads are
+     * used only for Jetty's internal tasks, such as selecting on network connections.
+     */
+    QueuedThreadPool createThreadPool()
+    {
+        final QueuedThreadPool threadPool = new QueuedThreadPool( maxThreads );
+        threadPool.setName( "xmppfileupload-web" );
+
+        if ( virtualThreads )
+        {
+            if ( VirtualThreads.areSupported() )
+            {
+                threadPool.setVirtualThreadsExecutor( VirtualThreads.getNamedVirtualThreadsExecutor( "xmppfileupload-web-virtual" ) );
+                Log.info( "Webserver will process requests on virtual threads." );
+            }
+            else
+            {
+                Log.warn( "Virtual threads are not supported by this Java runtime (Java 21 or later is required). Webserver will process requests on at most {} platform threads.", maxThreads );
+            }
+        }
+        else
+        {
+            Log.info( "Webserver will process requests on at most {} platform threads.", maxThreads );
+        }
+        return threadPool;
+    }
+
+    /**
+     * Creates the network connector of the webserver, which always accepts HTTP/1.1, optionally HTTP/2, and (when a
+     * keystore is configured) requires TLS.
+     */
+    ServerConnector createConnector( final Server jetty )
+    {
+        final HttpConfiguration httpConfiguration = new HttpConfiguration();
+        final HttpConnectionFactory http11 = new HttpConnectionFactory( httpConfiguration );
+
+        if ( keyStore == null )
+        {
+            if ( !http2 )
+            {
+                return new ServerConnector( jetty, http11 );
+            }
+            Log.info( "Webserver accepts HTTP/1.1 and cleartext HTTP/2 (h2c)." );
+            return new ServerConnector( jetty, http11, configure( new HTTP2CServerConnectionFactory( httpConfiguration ) ) );
+        }
+
+        httpConfiguration.addCustomizer( new SecureRequestCustomizer() );
+        final SslContextFactory.Server sslContextFactory = new SslContextFactory.Server();
+        sslContextFactory.setKeyStorePath( keyStore.toString() );
+        if ( keyStorePassword != null )
+        {
+            sslContextFactory.setKeyStorePassword( keyStorePassword );
+        }
+
+        if ( !http2 )
+        {
+            return new ServerConnector( jetty, new SslConnectionFactory( sslContextFactory, http11.getProtocol() ), http11 );
+        }
+
+        // HTTP/2 over TLS blacklists a number of cipher suites. Prefer those that are allowed.
+        sslContextFactory.setCipherComparator( HTTP2Cipher.COMPARATOR );
+
+        // The order of the connection factories determines the preference of protocols during ALPN negotiation.
+        final ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory();
+        alpn.setDefaultProtocol( http11.getProtocol() );
+        Log.info( "Webserver accepts HTTP/2 and HTTP/1.1 over TLS." );
+        return new ServerConnector( jetty, new SslConnectionFactory( sslContextFactory, alpn.getProtocol() ), alpn, configure( new HTTP2ServerConnectionFactory( httpConfiguration ) ), http11 );
+    }
+
+    private AbstractHTTP2ServerConnectionFactory configure( final AbstractHTTP2ServerConnectionFactory factory )
+    {
+        factory.setMaxConcurrentStreams( http2MaxConcurrentStreams );
+        factory.setInitialStreamRecvWindow( http2StreamWindow );
+        factory.setInitialSessionRecvWindow( http2SessionWindow );
+        Log.info( "HTTP/2 max concurrent streams per connection: {}, stream window: {} bytes, session window: {} bytes.", http2MaxConcurrentStreams, http2StreamWindow, http2SessionWindow );
+        return factory;
+    }
+
     public void start()
     {
         final String local = webProtocol + "://" + webHost + ":" + webPort + webContextRoot;
@@ -416,24 +1166,27 @@ public class Launcher
 
             if (malwareScanner != null) {
                 Log.info("Starting malware scanner...");
-                MalwareScannerManager.getInstance().initialize(malwareScanner);
+                MalwareScannerManager.getInstance().initialize(malwareScanner, asyncScanWorkers, asyncScanQueueSize);
             }
 
             Log.info( "Starting webserver..." );
 
-            jetty = new Server();
+            jetty = new Server( createThreadPool() );
 
-            final ServerConnector connector = new ServerConnector(jetty);
+            final ServerConnector connector = createConnector( jetty );
             connector.setHost( webHost );
             connector.setPort( webPort );
             jetty.addConnector( connector );
 
             final ServletContextHandler servletContextHandler = new ServletContextHandler();
-            servletContextHandler.addServlet( Servlet.class, webContextRoot ).setInitParameters(ImmutableMap.of(
+            final ServletHolder servletHolder = servletContextHandler.addServlet( Servlet.class, webContextRoot );
+            servletHolder.setInitParameters(ImmutableMap.of(
                 "wildcardCORS", String.valueOf(wildcardCORS),
                 "contentSecurityPolicy", contentSecurityPolicy
                 )
             );
+            // Allows transfers to be processed with non-blocking I/O, not occupying a thread while waiting for the network.
+            servletHolder.setAsyncSupported( true );
 
             jetty.setHandler( servletContextHandler );
             jetty.start();
@@ -481,6 +1234,7 @@ public class Launcher
                     manager.removeComponent( domain );
                 }
 
+                MalwareScannerManager.getInstance().destroy();
                 RepositoryManager.getInstance().destroy();
             }
             catch ( Exception e )
@@ -489,4 +1243,229 @@ public class Launcher
             }
         }
     }
+
+    /**
+     * Collects the configuration of a {@link Launcher}. Values that are not set (or set to null) are replaced by defaults.
+     */
+    public static class Builder
+    {
+        private String xmppHost;
+        private Integer xmppPort;
+        private String domain;
+        private String sharedSecret;
+        private String webProtocol;
+        private String webHost;
+        private Integer webPort;
+        private String webContextRoot;
+        private String announcedWebProtocol;
+        private String announcedWebHost;
+        private Integer announcedWebPort;
+        private String announcedWebContextRoot;
+        private Repository repository;
+        private Long maxFileSize;
+        private boolean wildcardCORS;
+        private String contentSecurityPolicy;
+        private MalwareScanner malwareScanner;
+        private Integer asyncScanWorkers;
+        private Integer asyncScanQueueSize;
+        private boolean virtualThreads;
+        private Integer maxThreads;
+        private boolean http2;
+        private Integer http2MaxConcurrentStreams;
+        private Integer http2StreamWindow;
+        private Integer http2SessionWindow;
+        private Path keyStore;
+        private String keyStorePassword;
+
+        public Builder xmppHost( final String xmppHost )
+        {
+            this.xmppHost = xmppHost;
+            return this;
+        }
+
+        public Builder xmppPort( final Integer xmppPort )
+        {
+            this.xmppPort = xmppPort;
+            return this;
+        }
+
+        public Builder domain( final String domain )
+        {
+            this.domain = domain;
+            return this;
+        }
+
+        public Builder sharedSecret( final String sharedSecret )
+        {
+            this.sharedSecret = sharedSecret;
+            return this;
+        }
+
+        public Builder webProtocol( final String webProtocol )
+        {
+            this.webProtocol = webProtocol;
+            return this;
+        }
+
+        public Builder webHost( final String webHost )
+        {
+            this.webHost = webHost;
+            return this;
+        }
+
+        public Builder webPort( final Integer webPort )
+        {
+            this.webPort = webPort;
+            return this;
+        }
+
+        public Builder webContextRoot( final String webContextRoot )
+        {
+            this.webContextRoot = webContextRoot;
+            return this;
+        }
+
+        public Builder announcedWebProtocol( final String announcedWebProtocol )
+        {
+            this.announcedWebProtocol = announcedWebProtocol;
+            return this;
+        }
+
+        public Builder announcedWebHost( final String announcedWebHost )
+        {
+            this.announcedWebHost = announcedWebHost;
+            return this;
+        }
+
+        public Builder announcedWebPort( final Integer announcedWebPort )
+        {
+            this.announcedWebPort = announcedWebPort;
+            return this;
+        }
+
+        public Builder announcedWebContextRoot( final String announcedWebContextRoot )
+        {
+            this.announcedWebContextRoot = announcedWebContextRoot;
+            return this;
+        }
+
+        public Builder repository( final Repository repository )
+        {
+            this.repository = repository;
+            return this;
+        }
+
+        public Builder maxFileSize( final Long maxFileSize )
+        {
+            this.maxFileSize = maxFileSize;
+            return this;
+        }
+
+        public Builder wildcardCORS( final boolean wildcardCORS )
+        {
+            this.wildcardCORS = wildcardCORS;
+            return this;
+        }
+
+        public Builder contentSecurityPolicy( final String contentSecurityPolicy )
+        {
+            this.contentSecurityPolicy = contentSecurityPolicy;
+            return this;
+        }
+
+        public Builder malwareScanner( final MalwareScanner malwareScanner )
+        {
+            this.malwareScanner = malwareScanner;
+            return this;
+        }
+
+        public Builder asyncScanWorkers( final Integer asyncScanWorkers )
+        {
+            if ( asyncScanWorkers != null && asyncScanWorkers <= 0 )
+            {
+                throw new IllegalArgumentException( "Argument 'asyncScanWorkers' must be positive: " + asyncScanWorkers );
+            }
+            this.asyncScanWorkers = asyncScanWorkers;
+            return this;
+        }
+
+        public Builder asyncScanQueueSize( final Integer asyncScanQueueSize )
+        {
+            if ( asyncScanQueueSize != null && asyncScanQueueSize <= 0 )
+            {
+                throw new IllegalArgumentException( "Argument 'asyncScanQueueSize' must be positive: " + asyncScanQueueSize );
+            }
+            this.asyncScanQueueSize = asyncScanQueueSize;
+            return this;
+        }
+
+        public Builder virtualThreads( final boolean virtualThreads )
+        {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        public Builder maxThreads( final Integer maxThreads )
+        {
+            if ( maxThreads != null && maxThreads <= 0 )
+            {
+                throw new IllegalArgumentException( "Argument 'maxThreads' must be positive: " + maxThreads );
+            }
+            this.maxThreads = maxThreads;
+            return this;
+        }
+
+        public Builder http2( final boolean http2 )
+        {
+            this.http2 = http2;
+            return this;
+        }
+
+        public Builder http2MaxConcurrentStreams( final Integer http2MaxConcurrentStreams )
+        {
+            if ( http2MaxConcurrentStreams != null && http2MaxConcurrentStreams <= 0 )
+            {
+                throw new IllegalArgumentException( "Argument 'http2MaxConcurrentStreams' must be positive: " + http2MaxConcurrentStreams );
+            }
+            this.http2MaxConcurrentStreams = http2MaxConcurrentStreams;
+            return this;
+        }
+
+        public Builder http2StreamWindow( final Integer http2StreamWindow )
+        {
+            if ( http2StreamWindow != null && http2StreamWindow <= 0 )
+            {
+                throw new IllegalArgumentException( "Argument 'http2StreamWindow' must be positive: " + http2StreamWindow );
+            }
+            this.http2StreamWindow = http2StreamWindow;
+            return this;
+        }
+
+        public Builder http2SessionWindow( final Integer http2SessionWindow )
+        {
+            if ( http2SessionWindow != null && http2SessionWindow <= 0 )
+            {
+                throw new IllegalArgumentException( "Argument 'http2SessionWindow' must be positive: " + http2SessionWindow );
+            }
+            this.http2SessionWindow = http2SessionWindow;
+            return this;
+        }
+
+        public Builder keyStore( final Path keyStore )
+        {
+            this.keyStore = keyStore;
+            return this;
+        }
+
+        public Builder keyStorePassword( final String keyStorePassword )
+        {
+            this.keyStorePassword = keyStorePassword;
+            return this;
+        }
+
+        public Launcher build()
+        {
+            return new Launcher( this );
+        }
+    }
 }
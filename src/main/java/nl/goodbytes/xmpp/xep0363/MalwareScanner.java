@@ -24,4 +24,26 @@ public interface MalwareScanner
     void destroy();
 
     void scan(final SecureUniqueId uuid) throws MalwareDetectedException, IOException;
+
+    /**
+     * Starts a scan of data that is provided to the scanner while it is being received.
+     *
+     * @param uuid The identifier of the slot for which data is to be received.
+     * @return a scan, or null when data is to be scanned after it has been stored, by {@link #scan(SecureUniqueId)}.
+     */
+    default InlineScan startInlineScan(final SecureUniqueId uuid)
+    {
+        return null;
+    }
+
+    /**
+     * Returns the version of the signatures (eg: of a virus database) that are used to detect malware. A verdict is
+     * valid only for the version of the signatures that it was based on.
+     *
+     * @return the version, or null when it is unknown.
+     */
+    default String getSignatureVersion()
+    {
+        return null;
+    }
 }
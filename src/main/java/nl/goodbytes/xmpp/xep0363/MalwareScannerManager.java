@@ -32,17 +32,56 @@ public class MalwareScannerManager
 
     private MalwareScanner malwareScanner;
 
+    private AsynchronousScanQueue scanQueue;
+
     public boolean isEnabled() {
         return this.malwareScanner != null;
     }
 
     public void initialize(final MalwareScanner malwareScanner) throws IOException
+    {
+        initialize(malwareScanner, 0, 0);
+    }
+
+    /**
+     * Initializes the manager with a scanner.
+     *
+     * @param malwareScanner The scanner that scans uploads.
+     * @param asyncWorkers   When positive, uploads are scanned by this amount of workers after the upload request has been answered. When zero, uploads are scanned before the upload request is answered.
+     * @param asyncQueueSize The maximum amount of uploads that wait for a worker. Uploads in excess of this are scanned before the upload request is answered.
+     */
+    public void initialize(final MalwareScanner malwareScanner, final int asyncWorkers, final int asyncQueueSize) throws IOException
     {
         if (this.malwareScanner != null) {
             throw new IllegalArgumentException("Already initialized.");
         }
         this.malwareScanner = malwareScanner;
         this.malwareScanner.initialize();
+        if (asyncWorkers > 0) {
+            this.scanQueue = new AsynchronousScanQueue(malwareScanner, asyncWorkers, asyncQueueSize);
+        }
+    }
+
+    public boolean isAsynchronous() {
+        return this.scanQueue != null;
+    }
+
+    /**
+     * Returns the queue of uploads that are scanned after the upload request has been answered, or null if uploads are
+     * scanned before the upload request is answered.
+     */
+    public AsynchronousScanQueue getScanQueue()
+    {
+        return this.scanQueue;
+    }
+
+    /**
+     * Checks if an upload has been received, but is not available yet, as it has not been scanned for malware.
+     */
+    public boolean isPending(final SecureUniqueId uuid)
+    {
+        final AsynchronousScanQueue queue = this.scanQueue;
+        return queue != null && queue.isPending(uuid);
     }
 
     public MalwareScanner getMalwareScanner()
@@ -52,6 +91,10 @@ public class MalwareScannerManager
 
     public void destroy()
     {
+        if (this.scanQueue != null) {
+            this.scanQueue.shutdown();
+            this.scanQueue = null;
+        }
         if (this.malwareScanner != null) {
             this.malwareScanner.destroy();
             this.malwareScanner = null;
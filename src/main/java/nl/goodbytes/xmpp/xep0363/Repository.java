@@ -20,6 +20,9 @@ package nl.goodbytes.xmpp.xep0363;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * Stores uploaded files for later retrieval.
@@ -40,11 +43,66 @@ public interface Repository
 
     long getSize( SecureUniqueId uuid );
 
+    // Returns all metadata of stored data in one go, or null when no data is stored for the identifier.
+    FileMetadata getMetadata( SecureUniqueId uuid );
+
+    // Invoked after data for a slot has been written completely and verified. Makes the data available for reading, and records its metadata.
+    FileMetadata publish( Slot slot ) throws IOException;
+
     // For reading data.
     InputStream getInputStream( SecureUniqueId uuid ) throws IOException;
 
-    // For writing data.
+    // For reading data without copying it through the heap. Implementations backed by files should return a FileChannel.
+    default ReadableByteChannel getReadableChannel( SecureUniqueId uuid ) throws IOException
+    {
+        return Channels.newChannel( getInputStream( uuid ) );
+    }
+
+    // For reading data, starting at a particular position. Implementations should seek rather than skip, where possible.
+    default ReadableByteChannel getReadableChannel( SecureUniqueId uuid, long position ) throws IOException
+    {
+        final InputStream in = getInputStream( uuid );
+        try
+        {
+            in.skipNBytes( position );
+        }
+        catch ( IOException e )
+        {
+            in.close();
+            throw e;
+        }
+        return Channels.newChannel( in );
+    }
+
+    // For reading data as it is stored: encoded (eg: compressed) when its metadata has a content encoding, otherwise as uploaded.
+    default ReadableByteChannel getEncodedChannel( SecureUniqueId uuid ) throws IOException
+    {
+        return getReadableChannel( uuid );
+    }
+
+    // Returns the complete data as a read-only buffer when it is held in memory, or null otherwise.
+    default ByteBuffer getCachedContent( SecureUniqueId uuid ) throws IOException
+    {
+        return null;
+    }
+
+    // For writing data. Written data is not available for reading until it is published.
     OutputStream getOutputStream( SecureUniqueId uuid ) throws IOException;
 
+    // For reading data that has been written, but that has not yet been published (eg: to scan it for malware).
+    InputStream getUnpublishedInputStream( SecureUniqueId uuid ) throws IOException;
+
+    // Returns a hash (hexadecimal SHA-256) of data that has been written, but that has not yet been published, or null when it was not calculated.
+    default String getUnpublishedDigest( SecureUniqueId uuid )
+    {
+        return null;
+    }
+
+    // Prevents data that has been written, but that has not yet been published, from being removed as an abandoned upload (eg: while it waits to be scanned for malware).
+    default void retainUnpublished( SecureUniqueId uuid ) {}
+
+    // Allows data that was retained to be removed as an abandoned upload again, should it not be published (or deleted).
+    default void releaseUnpublished( SecureUniqueId uuid ) {}
+
     boolean delete(SecureUniqueId uuid) throws IOException;
 }
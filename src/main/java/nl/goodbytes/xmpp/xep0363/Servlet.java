@@ -17,19 +17,30 @@
 
 package nl.goodbytes.xmpp.xep0363;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.ee8.nested.HttpOutput;
+import org.eclipse.jetty.util.Callback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,7 +84,7 @@ public class Servlet extends HttpServlet
         if (Boolean.parseBoolean(getInitParameter("wildcardCORS"))) {
             response.setHeader("Access-Control-Allow-Origin", "*");
             response.setHeader("Access-Control-Allow-Methods", "PUT, GET, HEAD, OPTIONS");
-            response.setHeader("Access-Control-Allow-Headers", "Overwrite, Destination, Content-Type, Depth, User-Agent, X-File-Size, X-Requested-With, If-Modified-Since, X-File-Name, Cache-Control");
+            response.setHeader("Access-Control-Allow-Headers", "Overwrite, Destination, Content-Type, Depth, User-Agent, X-File-Size, X-Requested-With, If-Modified-Since, X-File-Name, Cache-Control, Range, If-Range");
         }
 
         final String contentSecurityPolicy = getInitParameter("contentSecurityPolicy");
@@ -109,58 +120,300 @@ public class Servlet extends HttpServlet
             return;
         }
 
-        if ( !repository.contains( uuid ) )
+        final FileMetadata metadata = repository.getMetadata( uuid );
+        if ( metadata == null && MalwareScannerManager.getInstance().isPending( uuid ) )
+        {
+            final long retryAfter = MalwareScannerManager.getInstance().getScanQueue().getRetryAfter().getSeconds();
+            resp.setHeader( "Retry-After", String.valueOf( retryAfter ) );
+            resp.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The upload is being scanned for malware." );
+            Log.info( "... responded with SERVICE_UNAVAILABLE. The data for {} has been received, but has not been scanned for malware yet.", uuid );
+            return;
+        }
+        if ( metadata == null )
         {
             resp.sendError( HttpServletResponse.SC_NOT_FOUND );
             Log.info( "... responded with NOT_FOUND. The repository does not contain a path to the UUID that is parsed from request URI: {}", uuid.toString() );
             return;
         }
 
+        // Data that is stored compressed is sent as-is to clients that accept its encoding, unless a range is requested.
+        final String contentEncoding = metadata.getContentEncoding();
+        final boolean sendEncoded = contentEncoding != null && req.getHeader( "Range" ) == null && acceptsEncoding( req.getHeader( "Accept-Encoding" ), contentEncoding );
+        if ( contentEncoding != null )
+        {
+            resp.setHeader( "Vary", "Accept-Encoding" );
+        }
+
+        final String etag = sendEncoded ? getEncodedETag( metadata.getETag(), contentEncoding ) : metadata.getETag();
         final String eTagRequest = req.getHeader( "If-None-Match" );
-        if ( eTagRequest != null )
+        if ( eTagRequest != null && eTagRequest.equals( etag ) )
         {
-            final String calculatedETagHash = repository.calculateETagHash( uuid );
-            if ( eTagRequest.equals( calculatedETagHash ) )
-            {
-                resp.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
-                Log.info( "... responded with NOT_MODIFIED. Provided ETag value matches the hash in the repository." );
-                return;
-            }
+            resp.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+            Log.info( "... responded with NOT_MODIFIED. Provided ETag value matches the hash in the repository." );
+            return;
         }
 
-        final String contentType = repository.getContentType( uuid );
+        final String contentType = metadata.getContentType();
         if ( contentType != null && !contentType.isEmpty() )
         {
             resp.setContentType( contentType );
             Log.debug( "... setting content type '{}'.", contentType );
         }
 
-        final long size = repository.getSize( uuid );
-        if ( size > 0 && size <= Integer.MAX_VALUE )
+        final long size = metadata.getSize();
+
+        resp.setHeader( "Accept-Ranges", "bytes" );
+        resp.setHeader( "Cache-Control", "max-age=31536000" );
+        resp.setHeader( "ETag", etag );
+        Log.debug( "... setting ETag '{}'.", etag );
+
+        final List<HttpRange> ranges = getRequestedRanges( req, size, etag );
+        if ( ranges != null && ranges.isEmpty() )
         {
-            resp.setContentLength( (int) size );
-            Log.debug( "... setting content length '{}'.", size );
+            resp.setHeader( "Content-Range", "bytes */" + size );
+            resp.setStatus( HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE );
+            Log.info( "... responded with REQUESTED_RANGE_NOT_SATISFIABLE. None of the requested ranges ({}) overlap with the data ({} bytes).", req.getHeader( "Range" ), size );
+            return;
         }
 
-        resp.setHeader( "Cache-Control", "max-age=31536000" );
-        final String etag = repository.calculateETagHash( uuid );
-        if ( etag != null )
+        final List<DownloadWriteListener.Part> parts = new ArrayList<>();
+        byte[] suffix = null;
+        if ( ranges == null )
+        {
+            final long length = sendEncoded ? metadata.getEncodedSize() : size;
+            if ( sendEncoded )
+            {
+                resp.setHeader( "Content-Encoding", contentEncoding );
+                Log.debug( "... setting content encoding '{}'.", contentEncoding );
+            }
+            if ( length >= 0 )
+            {
+                resp.setContentLengthLong( length );
+                Log.debug( "... setting content length '{}'.", length );
+            }
+            parts.add( new DownloadWriteListener.Part( null, 0, length ) );
+        }
+        else if ( ranges.size() == 1 )
         {
-            resp.setHeader( "ETag", etag );
-            Log.debug( "... setting ETag '{}'.", etag );
+            final HttpRange range = ranges.get( 0 );
+            resp.setStatus( HttpServletResponse.SC_PARTIAL_CONTENT );
+            resp.setHeader( "Content-Range", range.toContentRange( size ) );
+            resp.setContentLengthLong( range.getLength() );
+            parts.add( new DownloadWriteListener.Part( null, range.getFirst(), range.getLength() ) );
+        }
+        else
+        {
+            // Multiple ranges are sent as a multipart/byteranges body (RFC 7233, appendix A).
+            final String boundary = UUID.randomUUID().toString().replace( "-", "" );
+            final String partContentType = contentType != null && !contentType.isEmpty() ? contentType : "application/octet-stream";
+            long contentLength = 0;
+            for ( final HttpRange range : ranges )
+            {
+                final byte[] partHeader = ( "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + partContentType + "\r\n"
+                    + "Content-Range: " + range.toContentRange( size ) + "\r\n"
+                    + "\r\n" ).getBytes( StandardCharsets.US_ASCII );
+                parts.add( new DownloadWriteListener.Part( partHeader, range.getFirst(), range.getLength() ) );
+                contentLength += partHeader.length + range.getLength();
+            }
+            suffix = ( "\r\n--" + boundary + "--\r\n" ).getBytes( StandardCharsets.US_ASCII );
+            contentLength += suffix.length;
+
+            resp.setStatus( HttpServletResponse.SC_PARTIAL_CONTENT );
+            resp.setContentType( "multipart/byteranges; boundary=" + boundary );
+            resp.setContentLengthLong( contentLength );
         }
 
-        try ( final InputStream in = new BufferedInputStream( repository.getInputStream( uuid ) );
-              final OutputStream out = resp.getOutputStream() )
+        if ( "HEAD".equals( req.getMethod() ) )
         {
-            final byte[] buffer = new byte[ 1024 * 4 ];
-            int bytesRead;
-            while ( ( bytesRead = in.read( buffer ) ) != -1 )
+            Log.info( "... responded with {} and did not include data in the response body (HEAD request).", ranges == null ? "OK" : "PARTIAL_CONTENT" );
+            return;
+        }
+
+        final ServletOutputStream out = resp.getOutputStream();
+        if ( ranges == null && out instanceof HttpOutput )
+        {
+            // Have Jetty move the data to the network, instead of copying it through a byte array.
+            final ByteBuffer cached = sendEncoded ? null : repository.getCachedContent( uuid );
+            final ReadableByteChannel in = cached != null ? null : sendEncoded ? repository.getEncodedChannel( uuid ) : repository.getReadableChannel( uuid );
+            if ( req.isAsyncSupported() )
+            {
+                final AsyncContext async = req.startAsync();
+                async.setTimeout( 0 ); // Rely on the idle timeout of the connection instead.
+                final Callback callback = new Callback()
+                {
+                    @Override
+                    public void succeeded()
+                    {
+                        close( in );
+                        async.complete();
+                        Log.info( "... responded with OK and included the {}data in the response body.", cached != null ? "(cached) " : "" );
+                    }
+
+                    @Override
+                    public void failed( Throwable x )
+                    {
+                        close( in );
+                        async.complete();
+                        Log.info( "... unable to write data of {} to the response.", uuid, x );
+                    }
+                };
+                if ( cached != null )
+                {
+                    ( (HttpOutput) out ).sendContent( cached, callback );
+                }
+                else
+                {
+                    ( (HttpOutput) out ).sendContent( in, callback );
+                }
+            }
+            else
             {
-                out.write( buffer, 0, bytesRead );
+                try
+                {
+                    if ( cached != null )
+                    {
+                        ( (HttpOutput) out ).sendContent( cached );
+                    }
+                    else
+                    {
+                        ( (HttpOutput) out ).sendContent( in );
+                    }
+                }
+                finally
+                {
+                    close( in );
+                }
+                Log.info( "... responded with OK and included the {}data in the response body.", cached != null ? "(cached) " : "" );
             }
+            return;
+        }
+
+        if ( req.isAsyncSupported() )
+        {
+            final AsyncContext async = req.startAsync();
+            async.setTimeout( 0 ); // Rely on the idle timeout of the connection instead.
+            out.setWriteListener( new DownloadWriteListener( repository, uuid, sendEncoded, out, parts, suffix, async ) );
+            Log.info( "... responding with {} and including {} part(s) of the data in the response body.", ranges == null ? "OK" : "PARTIAL_CONTENT", parts.size() );
         }
-        Log.info( "... responded with OK and included the data in the response body." );
+        else
+        {
+            final DownloadWriteListener writer = new DownloadWriteListener( repository, uuid, sendEncoded, out, parts, suffix, null );
+            try
+            {
+                writer.onWritePossible();
+            }
+            catch ( IOException e )
+            {
+                writer.onError( e );
+                throw e;
+            }
+            Log.info( "... responded with {} and included {} part(s) of the data in the response body.", ranges == null ? "OK" : "PARTIAL_CONTENT", parts.size() );
+        }
+    }
+
+    private static void close( final Closeable closeable )
+    {
+        if ( closeable != null )
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch ( IOException e )
+            {
+                Log.debug( "Unable to close resource.", e );
+            }
+        }
+    }
+
+    /**
+     * Checks if a content encoding is acceptable, based on the value of an 'Accept-Encoding' header (RFC 7231, section 5.3.4).
+     */
+    private static boolean acceptsEncoding( final String acceptEncoding, final String contentEncoding )
+    {
+        if ( acceptEncoding == null )
+        {
+            return false;
+        }
+
+        boolean result = false;
+        for ( final String element : acceptEncoding.split( "," ) )
+        {
+            final String[] parameters = element.split( ";" );
+            final String coding = parameters[ 0 ].trim();
+            double quality = 1;
+            for ( int i = 1; i < parameters.length; i++ )
+            {
+                final String parameter = parameters[ i ].trim();
+                if ( parameter.startsWith( "q=" ) )
+                {
+                    try
+                    {
+                        quality = Double.parseDouble( parameter.substring( 2 ).trim() );
+                    }
+                    catch ( NumberFormatException e )
+                    {
+                        quality = 0;
+                    }
+                }
+            }
+
+            // An explicit preference for the coding takes precedence over the wildcard.
+            if ( coding.equalsIgnoreCase( contentEncoding ) )
+            {
+                return quality > 0;
+            }
+            if ( coding.equals( "*" ) )
+            {
+                result = quality > 0;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entity tag of the encoded representation of data. Each representation needs its own strong entity tag.
+     */
+    private static String getEncodedETag( final String etag, final String contentEncoding )
+    {
+        if ( etag.endsWith( "\"" ) )
+        {
+            return etag.substring( 0, etag.length() - 1 ) + "-" + contentEncoding + "\"";
+        }
+        return etag + "-" + contentEncoding;
+    }
+
+    /**
+     * Determines what ranges of the data are to be returned, based on the 'Range' and 'If-Range' headers of a request.
+     *
+     * @return the requested ranges (possibly an empty list when none are satisfiable), or null when the full data is to be returned.
+     */
+    private static List<HttpRange> getRequestedRanges( final HttpServletRequest req, final long size, final String etag )
+    {
+        final String range = req.getHeader( "Range" );
+        if ( range == null )
+        {
+            return null;
+        }
+
+        final String ifRange = req.getHeader( "If-Range" );
+        if ( ifRange != null )
+        {
+            // If-Range requires a strong comparison. As no Last-Modified header is sent, a HTTP-date never matches.
+            if ( etag == null || ifRange.trim().startsWith( "W/" ) || !ifRange.trim().equals( etag ) )
+            {
+                Log.debug( "... ignoring Range header, as If-Range value '{}' does not match ETag '{}'.", ifRange, etag );
+                return null;
+            }
+        }
+
+        final List<HttpRange> result = HttpRange.parse( range, size );
+        if ( result == null )
+        {
+            Log.debug( "... ignoring unsupported or malformed Range header '{}'.", range );
+        }
+        return result;
     }
 
     @Override
@@ -191,31 +444,192 @@ public class Servlet extends HttpServlet
             return;
         }
 
-        if ( req.getContentLength() != slot.getSize() )
+        if ( req.getContentLengthLong() != slot.getSize() )
         { // This can be faked by the client, but XEP says to be brutal.
             resp.sendError( HttpServletResponse.SC_BAD_REQUEST, "Content length in request does not correspond with slot size." );
-            Log.info( "... responded with BAD_REQUEST. Content length in request ({}) does not correspond with slot size ({}).", req.getContentLength(), slot.getSize() );
+            Log.info( "... responded with BAD_REQUEST. Content length in request ({}) does not correspond with slot size ({}).", req.getContentLengthLong(), slot.getSize() );
+            return;
+        }
+
+        // Data is written to a staging area of the repository. It does not become available until it is published.
+        final ServletInputStream in = req.getInputStream();
+        final InlineScan scan = startInlineScan( slot );
+        final OutputStream out = tee( new BufferedOutputStream( repository.getOutputStream( slot.getUuid() ) ), scan );
+        Log.debug("... receiving content ...");
+        if ( req.isAsyncSupported() )
+        {
+            final AsyncContext async = req.startAsync();
+            async.setTimeout( 0 ); // Rely on the idle timeout of the connection instead.
+            in.setReadListener( new UploadReadListener( in, out, slot,
+                received -> async.start( () -> {
+                    // Processing the upload (eg: scanning it for malware) can block, so is not done on the I/O thread.
+                    try
+                    {
+                        processUpload( req, resp, repository, slot, received, scan );
+                    }
+                    catch ( Throwable t )
+                    {
+                        failUpload( resp, repository, slot, scan, t );
+                    }
+                    finally
+                    {
+                        async.complete();
+                    }
+                } ),
+                t -> {
+                    discardUpload( repository, slot, scan, t );
+                    async.complete();
+                }
+            ) );
+        }
+        else
+        {
+            final long[] received = new long[ 1 ];
+            final UploadReadListener listener = new UploadReadListener( in, out, slot, r -> received[ 0 ] = r, t -> discardUpload( repository, slot, scan, t ) );
+            try
+            {
+                listener.onDataAvailable();
+                listener.onAllDataRead();
+            }
+            catch ( IOException e )
+            {
+                listener.onError( e );
+                throw e;
+            }
+            processUpload( req, resp, repository, slot, received[ 0 ], scan );
+        }
+    }
+
+    /**
+     * Starts scanning the data of a slot for malware while it is being received, if the malware scanner supports it.
+     *
+     * @return the scan, or null if data is not scanned while it is being received.
+     */
+    private static InlineScan startInlineScan( final Slot slot )
+    {
+        final MalwareScannerManager malwareScannerManager = MalwareScannerManager.getInstance();
+        if ( !malwareScannerManager.isEnabled() )
+        {
+            return null;
+        }
+        return malwareScannerManager.getMalwareScanner().startInlineScan( slot.getUuid() );
+    }
+
+    /**
+     * Returns a stream that writes to the provided stream, and that also provides all data to an inline malware scan.
+     */
+    private static OutputStream tee( final OutputStream out, final InlineScan scan )
+    {
+        if ( scan == null )
+        {
+            return out;
+        }
+        return new FilterOutputStream( out )
+        {
+            @Override
+            public void write( int b ) throws IOException
+            {
+                write( new byte[] { (byte) b }, 0, 1 );
+            }
+
+            @Override
+            public void write( byte[] b, int off, int len ) throws IOException
+            {
+                out.write( b, off, len );
+                scan.update( b, off, len );
+            }
+        };
+    }
+
+    private static void discardUpload( final Repository repository, final Slot slot, final InlineScan scan, final Throwable cause )
+    {
+        if ( scan != null )
+        {
+            scan.close();
+        }
+        try
+        {
+            repository.delete( slot.getUuid() );
+        }
+        catch ( IOException e )
+        {
+            Log.warn( "Unable to remove the partial upload for {}.", slot, e );
+        }
+        Log.info( "... unable to receive content. Removed the partial upload.", cause );
+    }
+
+    /**
+     * Removes the data of an upload that could not be processed, and responds to it, unless a response has already been sent.
+     * An inline scan of the upload is closed, as processing may have failed before the scan was completed.
+     */
+    private static void failUpload( final HttpServletResponse resp, final Repository repository, final Slot slot, final InlineScan scan, final Throwable cause )
+    {
+        Log.warn( "... unable to process the upload for {}.", slot, cause );
+        if ( scan != null )
+        {
+            scan.close();
+        }
+        try
+        {
+            repository.delete( slot.getUuid() );
+        }
+        catch ( IOException e )
+        {
+            Log.warn( "Unable to remove the data of the upload for {}.", slot, e );
+        }
+        if ( resp.isCommitted() )
+        {
             return;
         }
+        try
+        {
+            resp.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unable to process the upload." );
+            Log.info( "... responded with INTERNAL_SERVER_ERROR." );
+        }
+        catch ( IOException | IllegalStateException e )
+        {
+            Log.debug( "... unable to respond with INTERNAL_SERVER_ERROR.", e );
+        }
+    }
 
-        try ( final InputStream in = req.getInputStream();
-              final OutputStream out = new BufferedOutputStream( repository.getOutputStream( slot.getUuid() ) ) )
+    /**
+     * Verifies data that has been received in full, and publishes it when it meets all criteria.
+     */
+    private static void processUpload( final HttpServletRequest req, final HttpServletResponse resp, final Repository repository, final Slot slot, final long received, final InlineScan scan ) throws IOException
+    {
+        if ( received != slot.getSize() )
         {
-            Log.debug("... receiving content ...");
-            final byte[] buffer = new byte[ 1024 * 4 ];
-            int bytesRead;
-            while ( ( bytesRead = in.read( buffer ) ) != -1 )
+            if ( scan != null )
             {
-                out.write( buffer, 0, bytesRead );
+                scan.close();
             }
+            resp.sendError( HttpServletResponse.SC_BAD_REQUEST, "Amount of data in request does not correspond with slot size." );
+            repository.delete( slot.getUuid() );
+            Log.info( "... responded with BAD_REQUEST. Amount of data in request ({}) does not correspond with slot size ({}).", received, slot.getSize() );
+            return;
         }
 
         final MalwareScannerManager malwareScannerManager = MalwareScannerManager.getInstance();
+        if (scan == null && malwareScannerManager.isAsynchronous() && malwareScannerManager.getScanQueue().submit(repository, slot)) {
+            setLocation( resp, slot );
+            resp.setStatus( HttpServletResponse.SC_CREATED );
+            Log.info( "... responded with CREATED. The data is published after it has been scanned for malware." );
+            return;
+        }
         if (malwareScannerManager.isEnabled()) {
             try {
-                Log.debug("... scanning uploaded content for malware ...");
-                final MalwareScanner malwareScanner = malwareScannerManager.getMalwareScanner();
-                malwareScanner.scan(slot.getUuid());
+                boolean verified = false;
+                if (scan != null) {
+                    Log.debug("... awaiting the verdict of the malware scan of the received content ...");
+                    try (scan) {
+                        verified = scan.verify();
+                    }
+                }
+                if (!verified) {
+                    Log.debug("... scanning uploaded content for malware ...");
+                    final MalwareScanner malwareScanner = malwareScannerManager.getMalwareScanner();
+                    malwareScanner.scan(slot.getUuid());
+                }
                 Log.info("... malware scanning did not find malware ...");
             } catch (MalwareDetectedException e) {
                 resp.sendError( HttpServletResponse.SC_BAD_REQUEST, "Malware detected in the upload!" );
@@ -232,14 +646,30 @@ public class Servlet extends HttpServlet
 
         try
         {
-            resp.setHeader( "Location", SlotManager.getGetUrl(slot).toExternalForm() );
+            repository.publish( slot );
         }
-        catch ( URISyntaxException | MalformedURLException e )
+        catch ( IOException e )
         {
-            Log.warn( "Unable to calculate GET URL for {}", slot, e );
+            resp.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unable to store the upload." );
+            repository.delete( slot.getUuid() );
+            Log.warn( "... responded with INTERNAL_SERVER_ERROR. Unable to publish the data of {}.", slot, e );
+            return;
         }
 
+        setLocation( resp, slot );
         resp.setStatus( HttpServletResponse.SC_CREATED );
         Log.info( "... responded with CREATED. Stored data from the request body in the repository." );
     }
+
+    private static void setLocation( final HttpServletResponse resp, final Slot slot )
+    {
+        try
+        {
+            resp.setHeader( "Location", SlotManager.getGetUrl(slot).toExternalForm() );
+        }
+        catch ( URISyntaxException | MalformedURLException e )
+        {
+            Log.warn( "Unable to calculate GET URL for {}", slot, e );
+        }
+    }
 }
@@ -32,7 +32,7 @@ import javax.annotation.Nonnull;
  */
 public class SlotManager
 {
-    public static final long DEFAULT_MAX_FILE_SIZE = 50 * 1024 * 1024;
+    public static final long DEFAULT_MAX_FILE_SIZE = 50L * 1024 * 1024;
     private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
 
     private static SlotManager INSTANCE = null;
@@ -58,6 +58,11 @@ public class SlotManager
         this.slotProvider = slotProvider;
     }
 
+    public void destroy()
+    {
+        this.slotProvider = null;
+    }
+
     private String webProtocol;
     private String webHost;
     private Integer webPort;
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Copies the body of a PUT request to the repository.
+ *
+ * When registered as the ReadListener of a request, data is copied only when it is available, which prevents a thread
+ * from being occupied for the duration of a (slow) upload. When used with a blocking stream, the copy is performed by
+ * invoking {@link #onDataAvailable()} followed by {@link #onAllDataRead()}.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+class UploadReadListener implements ReadListener
+{
+    private static final Logger Log = LoggerFactory.getLogger( UploadReadListener.class );
+
+    /**
+     * The size of the buffer that is used to copy uploaded data to the repository. Memory usage per upload is constant,
+     * regardless of the size of the upload.
+     */
+    static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The interval (in bytes) at which the progress of an upload is logged.
+     */
+    static final long PROGRESS_LOG_INTERVAL = 64L * 1024 * 1024;
+
+    private final ServletInputStream in;
+    private final OutputStream out;
+    private final Slot slot;
+    private final Consumer<Long> onComplete;
+    private final Consumer<Throwable> onFailure;
+
+    private final byte[] buffer = new byte[ UPLOAD_BUFFER_SIZE ];
+    private final AtomicBoolean done = new AtomicBoolean( false );
+    private long received = 0;
+    private long watermark = PROGRESS_LOG_INTERVAL;
+
+    /**
+     * @param in         The body of the PUT request.
+     * @param out        Where the data is to be written to. Is closed by this instance.
+     * @param slot       The slot for which data is uploaded.
+     * @param onComplete Invoked with the amount of bytes that were received, after all data was copied, or when more data than announced for the slot was received.
+     * @param onFailure  Invoked when the data could not be copied.
+     */
+    UploadReadListener( ServletInputStream in, OutputStream out, Slot slot, Consumer<Long> onComplete, Consumer<Throwable> onFailure )
+    {
+        this.in = in;
+        this.out = out;
+        this.slot = slot;
+        this.onComplete = onComplete;
+        this.onFailure = onFailure;
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException
+    {
+        int bytesRead;
+        while ( !done.get() && in.isReady() && ( bytesRead = in.read( buffer ) ) != -1 )
+        {
+            out.write( buffer, 0, bytesRead );
+            received += bytesRead;
+            if ( received > slot.getSize() )
+            {
+                // Do not store more than what was announced. This is rejected by the consumer.
+                onAllDataRead();
+                return;
+            }
+            if ( received >= watermark )
+            {
+                Log.debug( "... received {} of {} bytes ({}%) ...", received, slot.getSize(), received * 100 / slot.getSize() );
+                watermark += PROGRESS_LOG_INTERVAL;
+            }
+        }
+    }
+
+    @Override
+    public void onAllDataRead() throws IOException
+    {
+        if ( done.compareAndSet( false, true ) )
+        {
+            out.close();
+            onComplete.accept( received );
+        }
+    }
+
+    @Override
+    public void onError( Throwable t )
+    {
+        if ( done.compareAndSet( false, true ) )
+        {
+            try
+            {
+                out.close();
+            }
+            catch ( IOException e )
+            {
+                Log.debug( "Unable to close the repository output stream of slot {}.", slot.getUuid(), e );
+            }
+            onFailure.accept( t );
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.clamav;
+
+import nl.goodbytes.xmpp.xep0363.InlineScan;
+import nl.goodbytes.xmpp.xep0363.MalwareDetectedException;
+import nl.goodbytes.xmpp.xep0363.SecureUniqueId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Scans data using the INSTREAM command of a Clamav daemon, while the data is being received.
+ *
+ * Every chunk of data that is provided is copied to a buffer, from which it is forwarded to the daemon by an executor,
+ * as the thread that provides the data (typically one that processes non-blocking I/O) must not block on the connection
+ * to the daemon. The buffer is bounded: when the daemon does not accept data as fast as it is received, the scan is
+ * abandoned rather than slowing down the upload.
+ *
+ * When the daemon cannot be reached, falls behind, or stops accepting data (eg: because the data exceeds its
+ * 'StreamMaxLength'), no verdict is reached, and the stored data is to be scanned instead.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+class ClamavInlineScan implements InlineScan
+{
+    private static final Logger Log = LoggerFactory.getLogger(ClamavInlineScan.class);
+
+    private static final byte[] COMMAND = "zINSTREAM\0".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The maximum size of a response of the daemon.
+     */
+    private static final int MAX_RESPONSE_LENGTH = 8 * 1024;
+
+    /**
+     * The maximum amount of bytes that are received, but that have not been forwarded to the daemon yet.
+     */
+    static final int MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+
+    private final ClamavMalwareScanner scanner;
+
+    private final SecureUniqueId uuid;
+
+    private final Executor executor;
+
+    private final Duration readTimeout;
+
+    private Socket socket;
+
+    private DataOutputStream out;
+
+    private volatile IOException failure;
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    // Chunks of data that are yet to be forwarded to the daemon. Guarded by 'this', as are the fields below.
+    private final Deque<byte[]> buffer = new ArrayDeque<>();
+
+    private long buffered = 0;
+
+    // Whether a task that forwards the buffered data to the daemon has been submitted to the executor, and has not finished.
+    private boolean forwarding = false;
+
+    private ClamavInlineScan(final ClamavMalwareScanner scanner, final SecureUniqueId uuid, final Executor executor, final Duration readTimeout)
+    {
+        this.scanner = scanner;
+        this.uuid = uuid;
+        this.executor = executor;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Connects to the daemon, and starts the INSTREAM command. The caller must have obtained a permit to scan from the
+     * scanner, which is released when the scan is closed.
+     *
+     * @param executor The executor that forwards received data to the daemon.
+     * @return A scan, or null when the daemon could not be reached.
+     */
+    static ClamavInlineScan start(final ClamavMalwareScanner scanner, final SecureUniqueId uuid, final Executor executor, final String hostname, final int port, final Duration connectTimeout, final Duration readTimeout)
+    {
+        final ClamavInlineScan scan = new ClamavInlineScan(scanner, uuid, executor, readTimeout);
+        try {
+            scan.socket = new Socket();
+            scan.socket.connect(new InetSocketAddress(hostname, port), (int) connectTimeout.toMillis());
+            scan.socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, readTimeout.toMillis()));
+            scan.out = new DataOutputStream(new BufferedOutputStream(scan.socket.getOutputStream()));
+            scan.out.write(COMMAND);
+            return scan;
+        } catch (IOException e) {
+            Log.info("Unable to start scanning the upload of slot '{}' while it is received. It will be scanned after it has been stored.", uuid, e);
+            scan.close();
+            return null;
+        }
+    }
+
+    /**
+     * Queues a copy of the data to be forwarded to the daemon. Does not block.
+     */
+    @Override
+    public void update(final byte[] data, final int offset, final int length)
+    {
+        if (failure != null || length == 0) {
+            return;
+        }
+        final byte[] chunk = Arrays.copyOfRange(data, offset, offset + length);
+        final boolean overflow;
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            overflow = buffered + length > MAX_BUFFERED_BYTES;
+            if (!overflow) {
+                buffer.add(chunk);
+                buffered += length;
+                if (forwarding) {
+                    return;
+                }
+                forwarding = true;
+            }
+        }
+        if (overflow) {
+            fail(new IOException("The Clamav daemon does not accept data as fast as it is received: more than " + MAX_BUFFERED_BYTES + " bytes are waiting to be forwarded to it."));
+            return;
+        }
+        try {
+            executor.execute(this::forward);
+        } catch (RejectedExecutionException e) {
+            fail(new IOException("Unable to forward data to the Clamav daemon.", e));
+        }
+    }
+
+    /**
+     * Writes buffered data to the daemon, until the buffer is empty.
+     */
+    private void forward()
+    {
+        try {
+            while (true) {
+                final byte[] chunk;
+                synchronized (this) {
+                    chunk = buffer.poll();
+                    if (chunk != null) {
+                        buffered -= chunk.length;
+                    }
+                }
+                if (chunk == null) {
+                    out.flush();
+                    synchronized (this) {
+                        if (buffer.isEmpty() || failure != null) {
+                            forwarding = false;
+                            notifyAll();
+                            return;
+                        }
+                    }
+                    continue;
+                }
+                out.writeInt(chunk.length);
+                out.write(chunk);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public boolean verify() throws MalwareDetectedException
+    {
+        if (failure == null) {
+            try {
+                awaitForwarded();
+                if (failure == null) {
+                    out.writeInt(0);
+                    out.flush();
+                    final String response = readResponse(socket.getInputStream());
+                    if (response.endsWith("FOUND")) {
+                        Log.warn("Detected malware in slot '{}': {}", uuid, response);
+                        throw new MalwareDetectedException();
+                    }
+                    if (response.endsWith("OK")) {
+                        return true;
+                    }
+                    fail(new IOException("Unexpected response of the Clamav daemon: " + response));
+                }
+            } catch (IOException e) {
+                fail(e);
+            } finally {
+                close();
+            }
+        }
+
+        Log.info("Unable to scan the upload of slot '{}' while it was received. The stored data is to be scanned instead.", uuid, failure);
+        return false;
+    }
+
+    /**
+     * Waits until all buffered data has been forwarded to the daemon, or forwarding failed.
+     */
+    private void awaitForwarded() throws IOException
+    {
+        final long deadline = System.nanoTime() + readTimeout.toNanos();
+        synchronized (this) {
+            while (forwarding && failure == null) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out after " + readTimeout + " waiting for the Clamav daemon to accept all data.");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the Clamav daemon to accept all data.", e);
+                }
+            }
+        }
+    }
+
+    private void fail(final IOException e)
+    {
+        synchronized (this) {
+            if (failure == null) {
+                failure = e;
+            }
+            buffer.clear();
+            buffered = 0;
+            notifyAll();
+        }
+        close();
+    }
+
+    @Override
+    public void close()
+    {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        scanner.release();
+        synchronized (this) {
+            buffer.clear();
+            buffered = 0;
+        }
+        if (socket != null) {
+            try {
+                // Also aborts a write that is blocked in the executor.
+                socket.close();
+            } catch (IOException e) {
+                Log.debug("Unable to close the connection to the Clamav daemon.", e);
+            }
+        }
+    }
+
+    /**
+     * Reads a null-terminated response.
+     */
+    private static String readResponse(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) > 0) {
+            if (response.size() >= MAX_RESPONSE_LENGTH) {
+                throw new IOException("Response of the Clamav daemon exceeds " + MAX_RESPONSE_LENGTH + " bytes.");
+            }
+            response.write(b);
+        }
+        return response.toString(StandardCharsets.US_ASCII).trim();
+    }
+}
@@ -15,6 +15,8 @@
  */
 package nl.goodbytes.xmpp.xep0363.clamav;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import nl.goodbytes.xmpp.xep0363.InlineScan;
 import nl.goodbytes.xmpp.xep0363.MalwareDetectedException;
 import nl.goodbytes.xmpp.xep0363.MalwareScanner;
 import nl.goodbytes.xmpp.xep0363.RepositoryManager;
@@ -27,19 +29,79 @@ import xyz.capybara.clamav.commands.scan.result.ScanResult;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Scans data for malware using a Clamav daemon.
+ *
+ * The amount of scans that are performed concurrently (and thus, the amount of connections to the daemon) is bounded.
+ * Scans in excess of that wait for a scan to complete. The availability of the daemon is checked periodically, in the
+ * background, rather than before every scan.
+ */
 public class ClamavMalwareScanner implements MalwareScanner
 {
     private static final Logger Log = LoggerFactory.getLogger(ClamavMalwareScanner.class);
 
+    /**
+     * The maximum duration to wait for the verdict of the daemon, after all data has been provided to it.
+     */
+    public static final Duration INLINE_SCAN_READ_TIMEOUT = Duration.ofMinutes(1);
+
+    /**
+     * The default maximum amount of concurrent scans. Matches the default amount of threads of the daemon ('MaxThreads').
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_SCANS = 10;
+
+    public static final Duration DEFAULT_QUEUE_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * The interval at which the availability of the daemon is checked.
+     */
+    public static final Duration HEALTH_CHECK_INTERVAL = Duration.ofSeconds(30);
+
     private final String hostname;
 
     private final int port;
 
     private final Duration connectTimeout;
 
-    private ClamavClient client;
+    private volatile ClamavClient client;
+
+    private volatile boolean healthy = false;
+
+    private volatile String signatureVersion = null;
+
+    private boolean inlineScan = false;
+
+    private int maxConcurrentScans = DEFAULT_MAX_CONCURRENT_SCANS;
+
+    private Duration queueTimeout = DEFAULT_QUEUE_TIMEOUT;
+
+    private Semaphore permits;
+
+    private ScheduledExecutorService healthCheckExecutor;
+
+    private volatile ExecutorService inlineScanExecutor;
+
+    // Scans of stored data. Only these wait for other scans to complete.
+    private final LongAdder scans = new LongAdder();
+
+    private final LongAdder inlineScans = new LongAdder();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final LongAdder queueWaitNanos = new LongAdder();
+
+    private final AtomicLong maxQueueWaitNanos = new AtomicLong();
 
     public ClamavMalwareScanner(final String hostname, final int port, final Duration connectTimeout)
     {
@@ -48,16 +110,78 @@ public class ClamavMalwareScanner implements MalwareScanner
         this.connectTimeout = connectTimeout.toMillis() > Integer.MAX_VALUE ? Duration.ofMillis(Integer.MAX_VALUE) : connectTimeout;
     }
 
+    /**
+     * Configures if data is provided to the daemon while it is being received, rather than after it has been stored.
+     * Must be invoked before {@link #initialize()}.
+     */
+    public void setInlineScan(final boolean inlineScan)
+    {
+        this.inlineScan = inlineScan;
+    }
+
+    public boolean isInlineScan()
+    {
+        return inlineScan;
+    }
+
+    /**
+     * Sets the maximum amount of scans that are performed concurrently. Must be invoked before {@link #initialize()}.
+     */
+    public void setMaxConcurrentScans(final int maxConcurrentScans)
+    {
+        if (maxConcurrentScans <= 0) {
+            throw new IllegalArgumentException("Maximum amount of concurrent scans must be positive: " + maxConcurrentScans);
+        }
+        this.maxConcurrentScans = maxConcurrentScans;
+    }
+
+    public int getMaxConcurrentScans()
+    {
+        return maxConcurrentScans;
+    }
+
+    /**
+     * Sets the maximum duration that a scan waits for other scans to complete, before it fails. Must be invoked before
+     * {@link #initialize()}.
+     */
+    public void setQueueTimeout(final Duration queueTimeout)
+    {
+        if (queueTimeout.isNegative()) {
+            throw new IllegalArgumentException("Queue timeout cannot be negative: " + queueTimeout);
+        }
+        this.queueTimeout = queueTimeout;
+    }
+
+    public Duration getQueueTimeout()
+    {
+        return queueTimeout;
+    }
+
     @Override
     public synchronized void initialize() throws IOException
     {
-        client = new ClamavClient(hostname, port);
-        if (!client.isReachable((int) connectTimeout.toMillis())) {
+        connect();
+        permits = new Semaphore(maxConcurrentScans, true);
+        healthCheckExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("xmppfileupload-clamav-health").setDaemon(true).build());
+        healthCheckExecutor.scheduleWithFixedDelay(this::checkHealth, HEALTH_CHECK_INTERVAL.toMillis(), HEALTH_CHECK_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        if (inlineScan) {
+            // Forwards data of inline scans to the daemon, off the threads that receive it. At most one thread is in use per scan.
+            inlineScanExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("xmppfileupload-clamav-inline-%d").setDaemon(true).build());
+        }
+    }
+
+    private synchronized void connect() throws IOException
+    {
+        final ClamavClient candidate = new ClamavClient(hostname, port);
+        if (!candidate.isReachable((int) connectTimeout.toMillis())) {
             throw new IOException("Clamav daemon not reachable on " + hostname + ":" + port);
         }
+        client = candidate;
+        healthy = true;
 
         try {
             final String version = client.version();
+            signatureVersion = parseSignatureVersion(version);
             Log.info("Successfully connected to Clamav daemon " + version + ".");
         } catch (Throwable t) {
             Log.debug("Unable to determine Clamav daemon version.");
@@ -65,24 +189,85 @@ public class ClamavMalwareScanner implements MalwareScanner
         }
     }
 
+    /**
+     * Verifies that the daemon is available, re-initializing the client when it is not.
+     */
+    private void checkHealth()
+    {
+        try {
+            client.ping();
+            if (!healthy) {
+                Log.info("The Clamav daemon is available again.");
+            }
+            healthy = true;
+            final String version = parseSignatureVersion(client.version());
+            if (version != null && !version.equals(signatureVersion)) {
+                Log.info("The virus database of the Clamav daemon changed to version {}.", version);
+            }
+            signatureVersion = version;
+        } catch (Throwable t) {
+            healthy = false;
+            Log.info("Unsuccessful ping of the Clamav daemon. Trying to re-initialize the client.", t);
+            try {
+                connect();
+            } catch (IOException e) {
+                Log.warn("Unable to re-initialize the Clamav client.", e);
+            }
+        }
+        Log.debug("Clamav scans: {} performed ({} inline), {} active, {} queued. Average queue wait: {}, maximum queue wait: {}.", getScanCount(), getInlineScanCount(), getActiveScanCount(), getQueuedScanCount(), getAverageQueueWait(), getMaxQueueWait());
+    }
+
+    /**
+     * Returns the version of the virus database from the response to the VERSION command of the daemon (eg: 'ClamAV
+     * 1.0.1/26827/Wed Mar  1 09:25:06 2023'), or null if it cannot be parsed.
+     */
+    static String parseSignatureVersion(final String version)
+    {
+        if (version == null) {
+            return null;
+        }
+        final String[] parts = version.split("/");
+        return parts.length >= 2 && !parts[1].isBlank() ? parts[1].trim() : null;
+    }
+
+    /**
+     * The version of the virus database is obtained when the daemon is connected to, and with every health check.
+     */
     @Override
-    public synchronized void destroy()
+    public String getSignatureVersion()
     {
+        return signatureVersion;
+    }
+
+    /**
+     * Checks the availability of the daemon without waiting for the next periodic check.
+     */
+    private void requestHealthCheck()
+    {
+        final ScheduledExecutorService executor = healthCheckExecutor;
+        if (executor != null && !executor.isShutdown()) {
+            executor.execute(this::checkHealth);
+        }
     }
 
     @Override
-    public void scan(final SecureUniqueId uuid) throws MalwareDetectedException, IOException
+    public synchronized void destroy()
     {
-        synchronized (this) {
-            try {
-                client.ping();
-            } catch (ClamavException e) {
-                Log.info("Unsuccessful ping of the Clamav daemon. Trying to re-initialize the client.", e);
-                initialize();
-            }
+        if (healthCheckExecutor != null) {
+            healthCheckExecutor.shutdownNow();
+            healthCheckExecutor = null;
         }
+        if (inlineScanExecutor != null) {
+            inlineScanExecutor.shutdownNow();
+            inlineScanExecutor = null;
+        }
+    }
 
-        try (final InputStream is = RepositoryManager.getInstance().getRepository().getInputStream(uuid)) {
+    @Override
+    public void scan(final SecureUniqueId uuid) throws MalwareDetectedException, IOException
+    {
+        acquire();
+        try (final InputStream is = RepositoryManager.getInstance().getRepository().getUnpublishedInputStream(uuid)) {
             final ScanResult scanResult = client.scan(is);
             if (!(scanResult instanceof ScanResult.OK)) {
                 if (scanResult instanceof ScanResult.VirusFound) {
@@ -91,6 +276,122 @@ public class ClamavMalwareScanner implements MalwareScanner
                 }
                 throw new MalwareDetectedException();
             }
+        } catch (ClamavException e) {
+            requestHealthCheck();
+            throw e;
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public InlineScan startInlineScan(final SecureUniqueId uuid)
+    {
+        final ExecutorService executor = inlineScanExecutor;
+        if (!inlineScan || !healthy || executor == null) {
+            return null;
+        }
+
+        // An inline scan occupies a connection for the duration of the upload. Rather than waiting, the data is scanned after it has been stored.
+        if (!permits.tryAcquire()) {
+            Log.debug("All {} connections to the Clamav daemon are in use. The upload of slot '{}' will be scanned after it has been stored.", maxConcurrentScans, uuid);
+            return null;
+        }
+        inlineScans.increment();
+        final InlineScan scan = ClamavInlineScan.start(this, uuid, executor, hostname, port, connectTimeout, INLINE_SCAN_READ_TIMEOUT);
+        if (scan == null) {
+            requestHealthCheck();
+        }
+        return scan;
+    }
+
+    /**
+     * Waits until a scan can be performed without exceeding the maximum amount of concurrent scans.
+     */
+    private void acquire() throws IOException
+    {
+        final long start = System.nanoTime();
+        queued.incrementAndGet();
+        try {
+            final boolean acquired = permits.tryAcquire(queueTimeout.toNanos(), TimeUnit.NANOSECONDS);
+            final long waited = System.nanoTime() - start;
+            maxQueueWaitNanos.accumulateAndGet(waited, Math::max);
+            if (!acquired) {
+                throw new IOException("Timed out after " + queueTimeout + " waiting for one of " + maxConcurrentScans + " concurrent scans to complete.");
+            }
+            scans.increment();
+            queueWaitNanos.add(waited);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a scan to complete.");
+        } finally {
+            queued.decrementAndGet();
         }
     }
+
+    /**
+     * Allows another scan to be performed. Invoked once for every scan that was started.
+     */
+    void release()
+    {
+        permits.release();
+    }
+
+    /**
+     * Returns true if the daemon was available when it was last checked.
+     */
+    public boolean isHealthy()
+    {
+        return healthy;
+    }
+
+    /**
+     * Returns the amount of scans that were started since the scanner was initialized, including inline scans.
+     */
+    public long getScanCount()
+    {
+        return scans.sum() + inlineScans.sum();
+    }
+
+    /**
+     * Returns the amount of inline scans that were started since the scanner was initialized.
+     */
+    public long getInlineScanCount()
+    {
+        return inlineScans.sum();
+    }
+
+    /**
+     * Returns the amount of scans that are currently being performed.
+     */
+    public int getActiveScanCount()
+    {
+        return permits == null ? 0 : maxConcurrentScans - permits.availablePermits();
+    }
+
+    /**
+     * Returns the amount of scans that are currently waiting for other scans to complete.
+     */
+    public int getQueuedScanCount()
+    {
+        return queued.get();
+    }
+
+    /**
+     * Returns the average duration that scans of stored data waited for other scans to complete. Inline scans do not
+     * wait, and are not included.
+     */
+    public Duration getAverageQueueWait()
+    {
+        final long count = scans.sum();
+        return count == 0 ? Duration.ZERO : Duration.ofNanos(queueWaitNanos.sum() / count);
+    }
+
+    /**
+     * Returns the longest duration that a scan waited for other scans to complete.
+     */
+    public Duration getMaxQueueWait()
+    {
+        return Duration.ofNanos(maxQueueWaitNanos.get());
+    }
 }
@@ -19,32 +19,55 @@ package nl.goodbytes.xmpp.xep0363.repository;
 
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 import java.io.BufferedInputStream;
-import java.io.File;
+import java.io.EOFException;
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileStore;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import nl.goodbytes.xmpp.xep0363.FileMetadata;
 import nl.goodbytes.xmpp.xep0363.Repository;
 import nl.goodbytes.xmpp.xep0363.SecureUniqueId;
+import nl.goodbytes.xmpp.xep0363.SecureUniqueIdFactory;
+import nl.goodbytes.xmpp.xep0363.Slot;
 
 /**
  * A repository of files, backed by a (presumably local) file system.
@@ -55,37 +78,210 @@ public abstract class AbstractFileSystemRepository implements Repository
 {
     private static final Logger Log = LoggerFactory.getLogger( AbstractFileSystemRepository.class );
 
-    private Timer timer;
+    /**
+     * The suffix of the name of the file that holds the metadata of the data in the file with the same name, minus the suffix.
+     */
+    public static final String METADATA_SUFFIX = ".meta";
+
+    /**
+     * The name of the directory (in the repository) that holds data of uploads that are in progress.
+     *
+     * Entries in the repository of which the name starts with a dot are reserved for internal use, and are never treated
+     * as published data.
+     */
+    public static final String STAGING_DIRECTORY = ".staging";
+
+    /**
+     * Data in the staging directory that has not been modified for this long belongs to an upload that was abandoned.
+     */
+    public static final long STAGING_EXPIRY_MILLIS = 60 * 60 * 1000;
+
+    public static final long DEFAULT_METADATA_CACHE_SIZE = 10000;
 
     protected Path repository;
 
+    public static final long DEFAULT_CONTENT_CACHE_MAX_FILE_SIZE = 256 * 1024;
+
+    private long metadataCacheSize = DEFAULT_METADATA_CACHE_SIZE;
+
+    private long contentCacheSize = 0;
+
+    private long contentCacheMaxFileSize = DEFAULT_CONTENT_CACHE_MAX_FILE_SIZE;
+
+    // Caches the metadata (or the absence of data) by identifier. An empty optional indicates that no data exists.
+    private Cache<SecureUniqueId, Optional<FileMetadata>> metadataCache;
+
+    // Caches the complete content of small files, in (off-heap) direct buffers. Null when content caching is disabled.
+    private Cache<SecureUniqueId, ByteBuffer> contentCache;
+
+    // Keeps track of the space used by published data, and purges data when needed.
+    private final RepositoryLayout layout = new RepositoryLayout( this );
+
+    private final RepositoryPurger purger = new RepositoryPurger( this );
+
+    // Store (some of) the published data on behalf of decorators of this repository.
+    private final List<StorageExtension> storageExtensions = new CopyOnWriteArrayList<>();
+
+    private boolean hashUploads = false;
+
+    // The hash of the content of uploads that are in progress (by the name of their staged file), calculated while the data is being written.
+    private final Map<String, String> stagedDigests = new ConcurrentHashMap<>();
+
+    // Uploads (by the name of their staged file) of which the data is not to be removed as abandoned, until it is published.
+    private final Set<String> retained = ConcurrentHashMap.newKeySet();
+
     protected abstract Path initializeRepository() throws IOException;
 
+    /**
+     * Sets the maximum amount of entries in the cache of metadata. Must be invoked before {@link #initialize()}.
+     *
+     * @param metadataCacheSize the maximum amount of cache entries. Use zero to disable caching.
+     */
+    public void setMetadataCacheSize( long metadataCacheSize )
+    {
+        if ( metadataCacheSize < 0 )
+        {
+            throw new IllegalArgumentException( "Metadata cache size cannot be negative: " + metadataCacheSize );
+        }
+        this.metadataCacheSize = metadataCacheSize;
+    }
+
+    public long getMetadataCacheSize()
+    {
+        return metadataCacheSize;
+    }
+
+    /**
+     * Sets the maximum amount of bytes of file content that is cached in memory. Must be invoked before {@link #initialize()}.
+     *
+     * The content is held in direct buffers, which count towards the JVM's direct memory limit (-XX:MaxDirectMemorySize),
+     * rather than towards its heap.
+     *
+     * @param contentCacheSize the maximum amount of bytes. Use zero to disable caching (the default).
+     */
+    public void setContentCacheSize( long contentCacheSize )
+    {
+        if ( contentCacheSize < 0 )
+        {
+            throw new IllegalArgumentException( "Content cache size cannot be negative: " + contentCacheSize );
+        }
+        this.contentCacheSize = contentCacheSize;
+    }
+
+    public long getContentCacheSize()
+    {
+        return contentCacheSize;
+    }
+
+    /**
+     * Sets the size of the largest file of which content is cached in memory. Must be invoked before {@link #initialize()}.
+     *
+     * @param contentCacheMaxFileSize a file size, in bytes.
+     */
+    public void setContentCacheMaxFileSize( long contentCacheMaxFileSize )
+    {
+        this.contentCacheMaxFileSize = Math.min( contentCacheMaxFileSize, Integer.MAX_VALUE );
+    }
+
+    public long getContentCacheMaxFileSize()
+    {
+        return contentCacheMaxFileSize;
+    }
+
+    /**
+     * Returns hit, miss and eviction statistics of the cache of file content.
+     */
+    public CacheStats getContentCacheStats()
+    {
+        return contentCache == null ? new CacheStats( 0, 0, 0, 0, 0, 0 ) : contentCache.stats();
+    }
+
+    /**
+     * Returns hit, miss and eviction statistics of the cache of metadata.
+     */
+    public CacheStats getMetadataCacheStats()
+    {
+        return metadataCache == null ? new CacheStats( 0, 0, 0, 0, 0, 0 ) : metadataCache.stats();
+    }
+
+    /**
+     * Registers an extension that stores (some of) the published data of this repository. Must be invoked before
+     * {@link #initialize()}.
+     */
+    void addStorageExtension( StorageExtension storageExtension )
+    {
+        storageExtensions.add( storageExtension );
+    }
+
+    /**
+     * Configures the repository to hash the content of every upload while it is being written. The hash is available
+     * through {@link #getUnpublishedDigest(SecureUniqueId)} (eg: to recognize data that has been scanned for malware
+     * before), and is recorded in the metadata of the data (see {@link FileMetadata#getDigest()}). Must be invoked
+     * before {@link #initialize()}.
+     *
+     * @param hashUploads true to hash every upload, otherwise false (the default).
+     */
+    public void setHashUploads( boolean hashUploads )
+    {
+        this.hashUploads = hashUploads;
+    }
+
+    public boolean isHashUploads()
+    {
+        return hashUploads;
+    }
+
+    /**
+     * Returns the component that determines where the files of this repository are stored.
+     */
+    public RepositoryLayout getLayout()
+    {
+        return layout;
+    }
+
+    /**
+     * Returns the component that keeps track of the space used by this repository, and that purges data from it.
+     */
+    public RepositoryPurger getPurger()
+    {
+        return purger;
+    }
+
     @Override
     public void initialize() throws IOException
     {
         repository = initializeRepository();
+        calculateUsage();
+        for ( final StorageExtension storageExtension : storageExtensions )
+        {
+            storageExtension.open();
+        }
+        metadataCache = CacheBuilder.newBuilder()
+            .maximumSize( metadataCacheSize )
+            .recordStats()
+            .build();
+        if ( contentCacheSize > 0 && contentCacheMaxFileSize > 0 )
+        {
+            contentCache = CacheBuilder.newBuilder()
+                .maximumWeight( contentCacheSize )
+                .weigher( ( SecureUniqueId uuid, ByteBuffer content ) -> content.capacity() )
+                .recordStats()
+                .build();
+        }
 
-        // Perform a synchronous purge before start, which ensurs that a) purging is possible, b) space is available.
-        purge();
-
-        // Schedule periodic asynchronous purges.
-        timer = new Timer( "xmppfileupload-cleanup", true );
-        timer.schedule( new TimerTask()
+        // Uploads that were in progress when the application stopped cannot be resumed. This includes uploads that were
+        // received completely, but that had not been scanned for malware yet (see AsynchronousScanQueue).
+        final Path staging = getStagingDirectory();
+        if ( Files.exists( staging ) )
         {
-            @Override
-            public void run()
-            {
-                try
-                {
-                    purge();
-                }
-                catch ( Exception e )
-                {
-                    Log.warn( "An unexpected error occurred while purging the repository.", e );
-                }
-            }
-        }, 5 * 60 * 1000, 5 * 60 * 1000 );
+            Log.debug( "Removing data of incomplete uploads from: {}", staging );
+            delete( staging );
+        }
+        Files.createDirectories( staging );
+
+        // Perform a synchronous purge before start, which ensures that a) purging is possible, b) space is available.
+        purger.start();
+        layout.start();
 
         Log.info( "Initialized repository in: {}", repository );
     }
@@ -93,17 +289,17 @@ public abstract class AbstractFileSystemRepository implements Repository
     @Override
     public void destroy()
     {
-        if ( timer != null )
+        purger.stop();
+        for ( final StorageExtension storageExtension : storageExtensions )
         {
-            timer.cancel();
+            storageExtension.close();
         }
     }
 
     @Override
     public boolean contains( SecureUniqueId uuid )
     {
-        final Path path = Paths.get( repository.toString(), uuid.toString() );
-        final boolean result = Files.exists( path );
+        final boolean result = getMetadata( uuid ) != null;
 
         Log.debug( "UUID '{}' {} exist in repository.", uuid, result ? "does" : "does not" );
         return result;
@@ -112,27 +308,311 @@ public abstract class AbstractFileSystemRepository implements Repository
     @Override
     public String calculateETagHash( SecureUniqueId uuid )
     {
-        final Path path = Paths.get( repository.toString(), uuid.toString() );
+        final FileMetadata metadata = getMetadata( uuid );
+        return metadata == null ? null : metadata.getETag();
+    }
+
+    @Override
+    public String getContentType( SecureUniqueId uuid )
+    {
+        final FileMetadata metadata = getMetadata( uuid );
+        return metadata == null ? null : metadata.getContentType();
+    }
+
+    @Override
+    public long getSize( SecureUniqueId uuid )
+    {
+        final FileMetadata metadata = getMetadata( uuid );
+        return metadata == null ? -1 : metadata.getSize();
+    }
+
+    @Override
+    public FileMetadata getMetadata( SecureUniqueId uuid )
+    {
+        FileMetadata result;
         try
         {
-            final String result = String.valueOf( path.hashCode() + Files.getLastModifiedTime( path ).hashCode() );
-            Log.debug( "UUID '{}' ETag value: {}", uuid, result );
+            result = metadataCache.get( uuid, () -> Optional.ofNullable( readMetadata( uuid ) ) ).orElse( null );
+        }
+        catch ( ExecutionException | UncheckedExecutionException e )
+        {
+            Log.warn( "UUID '{}' Unable to obtain metadata from cache.", uuid, e );
+            result = readMetadata( uuid );
+        }
+
+        // Expired data is treated as absent, even if it has not been deleted yet.
+        if ( result != null && purger.isExpired( result ) )
+        {
+            Log.debug( "UUID '{}' has expired.", uuid );
+            return null;
+        }
+        return result;
+    }
+
+    protected FileMetadata readMetadata( SecureUniqueId uuid )
+    {
+        try
+        {
+            final FileMetadata result = FileMetadata.fromBytes( Files.readAllBytes( getMetadataPath( uuid ) ) );
+            if ( !Files.exists( getPath( uuid ) ) )
+            {
+                // The metadata is recorded before the data is moved into place. Without data, it describes nothing.
+                Log.debug( "UUID '{}' metadata exists, but the data that it describes does not.", uuid );
+                return null;
+            }
+            Log.debug( "UUID '{}' metadata: {}", uuid, result );
             return result;
         }
+        catch ( NoSuchFileException e )
+        {
+            // Data that was stored before metadata was recorded alongside it.
+            return probeMetadata( uuid );
+        }
         catch ( IOException e )
         {
-            Log.warn( "UUID '{}' Unable to calculate ETag value.", uuid, e );
-            return null;
+            Log.warn( "UUID '{}' Unable to read metadata. Falling back to probing the data.", uuid, e );
+            return probeMetadata( uuid );
         }
     }
 
     @Override
-    public String getContentType( SecureUniqueId uuid )
+    public FileMetadata publish( Slot slot ) throws IOException
+    {
+        return publish( slot, createMetadata( slot, getStagingPath( slot.getUuid() ) ) );
+    }
+
+    /**
+     * Publishes the staged data of a slot, of which the metadata has been determined (see
+     * {@link #createMetadata(Slot, Path)}).
+     *
+     * @return the metadata of the data, as it is stored.
+     */
+    protected FileMetadata publish( Slot slot, FileMetadata metadata ) throws IOException
     {
+        final Path staged = getStagingPath( slot.getUuid() );
+        final Date creationDate = metadata.getCreationDate();
+
+        // Metadata is recorded first, so that published data is never observed without it.
+        final Path target = layout.getLayoutPath( slot.getUuid().toString() );
+        final Path metadataPath = layout.getLayoutPath( slot.getUuid().toString() + METADATA_SUFFIX );
+        Files.createDirectories( target.getParent() );
+        final byte[] metadataBytes = metadata.toBytes();
+        final long replacedMetadata = sizeIfExists( metadataPath );
+        Files.write( metadataPath, metadataBytes );
+        recordAdded( metadataPath, metadataBytes.length, replacedMetadata );
+
+        // Decorators may have stored the data differently (eg: compressed) than how it was uploaded. Data that is shared
+        // with other files (a hard link, see DeduplicatingRepository) takes up no additional space.
+        final long size = getLinkCount( staged ) > 1 ? 0 : Files.size( staged );
+        final long replaced = sizeIfExists( target );
         try
         {
-            final Path path = Paths.get( repository.toString(), uuid.toString() );
+            // The staging directory is part of the repository, thus on the same file store, allowing for an atomic move.
+            Files.move( staged, target, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            deletePublished( metadataPath );
+            throw e;
+        }
+        recordAdded( target, size, replaced );
+        recordStored( slot.getUuid().toString(), creationDate.getTime() );
+
+        invalidateCaches( slot.getUuid() );
+        metadataCache.put( slot.getUuid(), Optional.of( metadata ) );
+        Log.debug( "UUID '{}' recorded metadata: {}", slot.getUuid(), metadata );
+        return metadata;
+    }
+
+    /**
+     * Determines the metadata of data that is about to be published.
+     */
+    protected FileMetadata createMetadata( Slot slot, Path staged ) throws IOException
+    {
+        final long size = Files.size( staged );
+        final Date creationDate = new Date();
+        final String contentType = probeContentType( slot.getUuid(), staged, slot.getFilename() );
+        final String digest = hashUploads ? getDigest( staged ) : null;
+        return new FileMetadata( contentType, size, creationDate, slot.getFilename(), FileMetadata.generateETag( size, creationDate ), digest );
+    }
+
+    /**
+     * Returns the hash of the content of an upload. This is normally calculated while the data is being written. It is
+     * calculated from the data when that did not happen (eg: when the stream that wrote it was not closed).
+     */
+    private String getDigest( Path staged ) throws IOException
+    {
+        final String result = stagedDigests.remove( staged.getFileName().toString() );
+        if ( result != null )
+        {
+            return result;
+        }
+        return com.google.common.io.Files.asByteSource( staged.toFile() ).hash( Hashing.sha256() ).toString();
+    }
+
+    /**
+     * Determines the amount of files and bytes used by published data. This is invoked once, when the repository is
+     * initialized, after which the usage accounting is maintained as data is published and deleted.
+     */
+    protected void calculateUsage() throws IOException
+    {
+        purger.calculateUsage();
+    }
+
+    /**
+     * Indexes a file that holds published data, stored in the layout of this repository, by the moment at which it was
+     * stored. The usage accounting for the file is maintained by the caller.
+     *
+     * @param name      the name of the file.
+     * @param timestamp the moment (in milliseconds since the epoch) at which the file was stored.
+     */
+    protected void recordStored( String name, long timestamp )
+    {
+        purger.recordStored( name, timestamp );
+    }
+
+    /**
+     * Records that a file that holds published data has been moved out of the layout of this repository (eg: to
+     * another storage tier), where it remains part of the usage accounting and purges of this repository.
+     *
+     * @param path the path of the file in the layout of this repository, before it was moved.
+     */
+    protected void recordMoved( Path path )
+    {
+        layout.recordRemoved( path );
+    }
+
+    /**
+     * Registers published data that is not stored as a file in the repository (but, for example, in a container file),
+     * to have it included in the usage accounting and purges of this repository.
+     *
+     * @param name      the name of the data.
+     * @param bytes     the amount of bytes used to store the data.
+     * @param timestamp the moment (in milliseconds since the epoch) at which the data was stored.
+     */
+    protected void recordAdded( String name, long bytes, long timestamp )
+    {
+        purger.recordAdded( name, bytes, timestamp );
+    }
+
+    /**
+     * Unregisters data that was registered with {@link #recordAdded(String, long, long)}, after it has been deleted.
+     *
+     * @param name  the name of the data.
+     * @param bytes the amount of bytes that was used to store the data.
+     */
+    protected void recordRemoved( String name, long bytes )
+    {
+        purger.recordRemoved( name, bytes );
+    }
+
+    /**
+     * Records that storage that is not attributed to any particular data (eg: data shared by several files) has been
+     * released.
+     *
+     * @param bytes the amount of bytes that was released.
+     */
+    protected void recordReleased( long bytes )
+    {
+        purger.recordReleased( bytes );
+    }
+
+    @Override
+    public ByteBuffer getCachedContent( SecureUniqueId uuid ) throws IOException
+    {
+        return getCachedContent( uuid, this::getReadableChannel );
+    }
+
+    /**
+     * Opens a channel from which data can be read.
+     */
+    interface ChannelOpener
+    {
+        ReadableByteChannel open( SecureUniqueId uuid ) throws IOException;
+    }
+
+    /**
+     * Returns the complete data as a read-only buffer, if it is small enough to be cached (see
+     * {@link #setContentCacheMaxFileSize(long)}).
+     *
+     * @param uuid   the identifier of the data.
+     * @param opener reads the data into the cache, when it is not cached yet.
+     * @return a buffer, or null when the data is not cached.
+     */
+    ByteBuffer getCachedContent( SecureUniqueId uuid, ChannelOpener opener ) throws IOException
+    {
+        if ( contentCache == null )
+        {
+            return null;
+        }
+
+        final FileMetadata metadata = getMetadata( uuid );
+        if ( metadata == null || metadata.getSize() > contentCacheMaxFileSize )
+        {
+            return null;
+        }
 
+        try
+        {
+            // Each caller gets its own view of the buffer, with an independent position and limit.
+            return contentCache.get( uuid, () -> readContent( uuid, (int) metadata.getSize(), opener ) ).asReadOnlyBuffer();
+        }
+        catch ( ExecutionException | UncheckedExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( "Unable to read content of " + uuid + " into the cache.", e.getCause() );
+        }
+    }
+
+    private static ByteBuffer readContent( SecureUniqueId uuid, int size, ChannelOpener opener ) throws IOException
+    {
+        Log.debug( "UUID '{}' Reading {} bytes of content into the cache.", uuid, size );
+        final ByteBuffer result = ByteBuffer.allocateDirect( size );
+        try ( final ReadableByteChannel channel = opener.open( uuid ) )
+        {
+            while ( result.hasRemaining() )
+            {
+                if ( channel.read( result ) == -1 )
+                {
+                    throw new EOFException( "Content of " + uuid + " is smaller than the " + size + " bytes recorded in its metadata." );
+                }
+            }
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Determines the metadata of data for which no metadata was recorded, by inspecting the data itself.
+     */
+    protected FileMetadata probeMetadata( SecureUniqueId uuid )
+    {
+        final Path path = getPath( uuid );
+        try
+        {
+            final BasicFileAttributes attributes = Files.readAttributes( path, BasicFileAttributes.class );
+            final String eTag = String.valueOf( path.hashCode() + attributes.lastModifiedTime().hashCode() );
+            final Date creationDate = new Date( attributes.lastModifiedTime().toMillis() );
+            return new FileMetadata( probeContentType( uuid, path, null ), attributes.size(), creationDate, null, eTag );
+        }
+        catch ( NoSuchFileException e )
+        {
+            return null;
+        }
+        catch ( IOException e )
+        {
+            Log.warn( "UUID '{}' Unable to determine metadata.", uuid, e );
+            return null;
+        }
+    }
+
+    protected static String probeContentType( SecureUniqueId uuid, Path path, String filename )
+    {
+        try
+        {
             String result;
             try ( final InputStream is = new BufferedInputStream( new FileInputStream( path.toFile() ) ) ) {
                 Log.debug( "UUID '{}' Probing content type based on file content...", uuid );
@@ -146,7 +626,7 @@ public abstract class AbstractFileSystemRepository implements Repository
 
             if ( result == null || result.isEmpty() ) {
                 Log.debug( "UUID '{}' Probing content type based on file name...", uuid );
-                result = URLConnection.guessContentTypeFromName( path.getFileName().toString() );
+                result = URLConnection.guessContentTypeFromName( filename != null ? filename : path.getFileName().toString() );
             }
 
             Log.debug( "UUID '{}' content type: {}", uuid, result );
@@ -159,90 +639,345 @@ public abstract class AbstractFileSystemRepository implements Repository
         }
     }
 
+    protected Path getPath( SecureUniqueId uuid )
+    {
+        return getPath( uuid.toString() );
+    }
+
+    /**
+     * Returns the path of a file that holds published data or metadata.
+     *
+     * @param filename the name of the file.
+     */
+    protected Path getPath( String filename )
+    {
+        return layout.getPath( filename );
+    }
+
+    protected Path getStagingDirectory()
+    {
+        return Paths.get( repository.toString(), STAGING_DIRECTORY );
+    }
+
+    protected Path getStagingPath( SecureUniqueId uuid )
+    {
+        return Paths.get( repository.toString(), STAGING_DIRECTORY, uuid.toString() );
+    }
+
+    protected Path getMetadataPath( SecureUniqueId uuid )
+    {
+        return getPath( uuid.toString() + METADATA_SUFFIX );
+    }
+
+    /**
+     * Returns the path of a file or directory (in the repository) that is reserved for internal use.
+     *
+     * @param name a name that starts with a dot.
+     */
+    protected Path resolve( String name )
+    {
+        return Paths.get( repository.toString(), name );
+    }
+
     @Override
-    public long getSize( SecureUniqueId uuid )
+    public InputStream getInputStream( SecureUniqueId uuid ) throws IOException
+    {
+        return Files.newInputStream( getPath( uuid ), READ );
+    }
+
+    @Override
+    public ReadableByteChannel getReadableChannel( SecureUniqueId uuid ) throws IOException
     {
+        return FileChannel.open( getPath( uuid ), READ );
+    }
+
+    @Override
+    public ReadableByteChannel getReadableChannel( SecureUniqueId uuid, long position ) throws IOException
+    {
+        final FileChannel channel = FileChannel.open( getPath( uuid ), READ );
         try
         {
-            final Path path = Paths.get( repository.toString(), uuid.toString() );
-            final long result = Files.size( path );
-
-            Log.debug( "UUID '{}' size: {} bytes", uuid, result );
-            return result;
+            return channel.position( position );
         }
         catch ( IOException e )
         {
-            Log.warn( "UUID '{}' Unable to determine the content size.", uuid, e );
-            return -1;
+            channel.close();
+            throw e;
         }
     }
 
     @Override
-    public InputStream getInputStream( SecureUniqueId uuid ) throws IOException
+    public OutputStream getOutputStream( SecureUniqueId uuid ) throws IOException
     {
-        final Path path = Paths.get( repository.toString(), uuid.toString() );
-        return Files.newInputStream( path, READ );
+        final OutputStream out = Files.newOutputStream( getStagingPath( uuid ), CREATE, TRUNCATE_EXISTING, WRITE );
+        if ( !hashUploads )
+        {
+            return out;
+        }
+
+        // Hash the data while it is written, to avoid having to read it again when it is published. The hash is recorded
+        // only when the stream is closed: for data written by a stream that is never closed, it is calculated on publish.
+        stagedDigests.remove( uuid.toString() );
+        final Hasher hasher = Hashing.sha256().newHasher();
+        return new FilterOutputStream( out )
+        {
+            private boolean closed = false;
+
+            @Override
+            public void write( int b ) throws IOException
+            {
+                out.write( b );
+                hasher.putByte( (byte) b );
+            }
+
+            @Override
+            public void write( byte[] b, int off, int len ) throws IOException
+            {
+                out.write( b, off, len );
+                hasher.putBytes( b, off, len );
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                // A Hasher can produce a hash only once.
+                if ( closed )
+                {
+                    return;
+                }
+                closed = true;
+                super.close();
+                stagedDigests.put( uuid.toString(), hasher.hash().toString() );
+            }
+        };
     }
 
     @Override
-    public OutputStream getOutputStream( SecureUniqueId uuid ) throws IOException
+    public InputStream getUnpublishedInputStream( SecureUniqueId uuid ) throws IOException
     {
-        final Path path = Paths.get( repository.toString(), uuid.toString() );
-        return Files.newOutputStream( path, CREATE );
+        return Files.newInputStream( getStagingPath( uuid ), READ );
+    }
+
+    @Override
+    public String getUnpublishedDigest( SecureUniqueId uuid )
+    {
+        return stagedDigests.get( uuid.toString() );
+    }
+
+    @Override
+    public void retainUnpublished( SecureUniqueId uuid )
+    {
+        retained.add( uuid.toString() );
+    }
+
+    @Override
+    public void releaseUnpublished( SecureUniqueId uuid )
+    {
+        retained.remove( uuid.toString() );
+    }
+
+    /**
+     * Checks if the staged data of an upload is retained, which prevents it from being removed as an abandoned upload.
+     *
+     * @param name the name of the file that holds the staged data.
+     */
+    boolean isRetained( String name )
+    {
+        return retained.contains( name );
     }
 
     @Override
     public boolean delete( SecureUniqueId uuid ) throws IOException
     {
-        final Path path = Paths.get( repository.toString(), uuid.toString() );
-        return Files.deleteIfExists( path );
+        try
+        {
+            final boolean staged = Files.deleteIfExists( getStagingPath( uuid ) );
+            stagedDigests.remove( uuid.toString() );
+            return deletePublished( uuid.toString() ) >= 0 || staged;
+        }
+        finally
+        {
+            invalidateCaches( uuid );
+        }
     }
 
     public void purge() throws IOException
     {
-        final File[] files = repository.toFile().listFiles();
-        if ( files == null )
+        purger.purge();
+    }
+
+    /**
+     * Deletes published data and its metadata, and removes them from the caches.
+     *
+     * @return the amount of bytes that were deleted, or -1 if no such data existed.
+     */
+    long deletePublished( String name ) throws IOException
+    {
+        try
+        {
+            for ( final StorageExtension storageExtension : storageExtensions )
+            {
+                final long deleted = storageExtension.delete( name );
+                if ( deleted >= 0 )
+                {
+                    Log.debug( "Purging repository: deleting: {} ({} bytes)", name, deleted );
+                    return deleted;
+                }
+            }
+            return deleteFiles( name );
+        }
+        finally
         {
-            Log.debug( "No need to purge the repository, as it does not contain any files." );
-            return;
+            invalidateCaches( name );
         }
+    }
 
-        final long used = getUsedSpace( repository );
-        final long free = getUsableSpace( repository );
-        Log.debug( "The repository currently uses {} bytes, while there's {} bytes of usable space left.", used, free );
-
-        if ( used == 0 || used < free )
+    /**
+     * Deletes the file that holds published data, and the file that holds its metadata. The data is deleted first, as
+     * metadata without data is treated as absent.
+     *
+     * @return the amount of bytes that were deleted, or -1 if neither file existed.
+     */
+    long deleteFiles( String name ) throws IOException
+    {
+        final Path path = getPath( name );
+        final long data = deletePublished( path );
+        final long metadata = deletePublished( getPath( name + METADATA_SUFFIX ) );
+        if ( data < 0 && metadata < 0 )
         {
-            Log.debug( "No need to purge the repository, as the free space is larger than the used space." );
-            return;
+            return -1;
         }
+        final long deleted = Math.max( 0, data ) + Math.max( 0, metadata );
+        Log.debug( "Purging repository: deleting: {} ({} bytes)", path, deleted );
+        return deleted;
+    }
 
-        // Files modified the longest time ago are the first to be purged.
-        Arrays.sort( files, new Comparator<File>()
+    /**
+     * Returns the amount of bytes used to store published data and its metadata.
+     *
+     * @param name the name of the data.
+     * @return an amount of bytes (zero when the data does not exist).
+     */
+    long getStoredSize( String name )
+    {
+        for ( final StorageExtension storageExtension : storageExtensions )
         {
-            @Override
-            public int compare( File o1, File o2 )
+            final long size = storageExtension.getStoredSize( name );
+            if ( size >= 0 )
             {
-                return Long.compare( o1.lastModified(), o2.lastModified() );
+                return size;
             }
-        } );
+        }
+        final Path path = getPath( name );
+
+        // Deleting a file that is one of several hard links to the same data does not release space.
+        final long data = getLinkCount( path ) > 1 ? 0 : Math.max( 0, sizeIfExists( path ) );
+        return data + Math.max( 0, sizeIfExists( getPath( name + METADATA_SUFFIX ) ) );
+    }
+
+    /**
+     * Forgets the hash of the content of an upload that is in progress, when its staged data is removed.
+     *
+     * @param name the name of the file that holds the staged data.
+     */
+    void removeStagedDigest( String name )
+    {
+        stagedDigests.remove( name );
+    }
 
-        long deletedTotal = 0;
-        for ( final File file : files )
+    protected void invalidateCaches( SecureUniqueId uuid )
+    {
+        metadataCache.invalidate( uuid );
+        if ( contentCache != null )
+        {
+            contentCache.invalidate( uuid );
+        }
+    }
+
+    void invalidateCaches( String filename )
+    {
+        try
         {
-            final long deleted = delete( file.toPath() );
+            invalidateCaches( SecureUniqueIdFactory.fromString( filename ) );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            Log.trace( "File '{}' is not named after an identifier. No cache entries to invalidate.", filename );
+        }
+    }
+
+    /**
+     * Deletes a file that holds published data or metadata, updating the usage accounting of the repository.
+     *
+     * @return the amount of bytes that were deleted, or -1 if the file did not exist.
+     */
+    long deletePublished( Path path ) throws IOException
+    {
+        final long existing = sizeIfExists( path );
 
-            Log.debug( "Purging repository: deleting: {} ({} bytes)", file, deleted );
+        // The data of a file that is one of several hard links to the same data is retained until the last link is deleted.
+        final long size = existing > 0 && getLinkCount( path ) > 1 ? 0 : existing;
+        if ( existing < 0 || !Files.deleteIfExists( path ) )
+        {
+            return -1;
+        }
 
-            deletedTotal += deleted;
+        // Only the invocation that actually deleted the file updates the accounting.
+        purger.recordRemoved( path, size );
+        layout.recordRemoved( path );
+        return size;
+    }
 
-            if ( used - deletedTotal <= 0 || used - deletedTotal < free + deletedTotal )
-            {
-                break;
-            }
+    /**
+     * Registers that a file that holds published data or metadata was added to the repository.
+     *
+     * @param path     the file that was added.
+     * @param bytes    the size of the file that was added.
+     * @param replaced the size of the file that was replaced by the file that was added, or -1 if no file was replaced.
+     */
+    void recordAdded( Path path, long bytes, long replaced )
+    {
+        purger.recordAdded( path, bytes, replaced );
+        layout.recordAdded( path, replaced );
+    }
+
+    /**
+     * Returns the amount of hard links to a file, or -1 if no such file exists, or if the file system does not expose it.
+     */
+    static int getLinkCount( Path path )
+    {
+        try
+        {
+            return (Integer) Files.getAttribute( path, "unix:nlink" );
+        }
+        catch ( IOException | UnsupportedOperationException e )
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the size of a regular file, or -1 if no such file exists.
+     */
+    static long sizeIfExists( Path path )
+    {
+        try
+        {
+            final BasicFileAttributes attributes = Files.readAttributes( path, BasicFileAttributes.class );
+            return attributes.isRegularFile() ? attributes.size() : -1;
+        }
+        catch ( IOException e )
+        {
+            return -1;
         }
+    }
 
-        Log.info( "The repository was purged: {} bytes were deleted.", deletedTotal );
+    /**
+     * Returns the file store on which the data of this repository is stored.
+     */
+    protected FileStore getManagedFileStore() throws IOException
+    {
+        return Files.getFileStore( repository );
     }
 
     protected static long getUsableSpace( Path path ) throws IOException
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An in-memory index of the files in a repository, ordered by the moment at which they were stored.
+ *
+ * This allows the oldest files to be found without inspecting (or sorting) all files. All operations are logarithmic in
+ * the amount of indexed files. Instances are thread-safe.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+class AgeIndex
+{
+    private static class Entry implements Comparable<Entry>
+    {
+        final long timestamp;
+        final String name;
+
+        Entry( long timestamp, String name )
+        {
+            this.timestamp = timestamp;
+            this.name = name;
+        }
+
+        @Override
+        public int compareTo( Entry o )
+        {
+            final int result = Long.compare( timestamp, o.timestamp );
+            return result != 0 ? result : name.compareTo( o.name );
+        }
+    }
+
+    private final TreeSet<Entry> byAge = new TreeSet<>();
+
+    private final Map<String, Entry> byName = new HashMap<>();
+
+    /**
+     * Adds a file to the index, replacing any previous entry for a file with the same name.
+     *
+     * @param name      The name of the file.
+     * @param timestamp The moment (in milliseconds since the epoch) at which the file was stored.
+     */
+    synchronized void add( String name, long timestamp )
+    {
+        final Entry entry = new Entry( timestamp, name );
+        final Entry previous = byName.put( name, entry );
+        if ( previous != null )
+        {
+            byAge.remove( previous );
+        }
+        byAge.add( entry );
+    }
+
+    /**
+     * Removes a file from the index.
+     *
+     * @param name The name of the file.
+     * @return true if the file was indexed, otherwise false.
+     */
+    synchronized boolean remove( String name )
+    {
+        final Entry entry = byName.remove( name );
+        if ( entry == null )
+        {
+            return false;
+        }
+        byAge.remove( entry );
+        return true;
+    }
+
+    /**
+     * Removes the oldest file from the index.
+     *
+     * @return The name of the oldest file, or null if the index is empty.
+     */
+    synchronized String pollOldest()
+    {
+        final Entry entry = byAge.pollFirst();
+        if ( entry == null )
+        {
+            return null;
+        }
+        byName.remove( entry.name );
+        return entry.name;
+    }
+
+    /**
+     * Removes the oldest file from the index, if it was stored before a particular moment.
+     *
+     * @param timestamp A moment, in milliseconds since the epoch.
+     * @return The name of the oldest file, or null if the index holds no files stored before the provided moment.
+     */
+    synchronized String pollOldestBefore( long timestamp )
+    {
+        if ( byAge.isEmpty() || byAge.first().timestamp >= timestamp )
+        {
+            return null;
+        }
+        return pollOldest();
+    }
+
+    synchronized int size()
+    {
+        return byName.size();
+    }
+}
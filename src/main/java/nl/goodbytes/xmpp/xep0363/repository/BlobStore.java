@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Stores data by a hash of its content, allowing identical data to be stored only once.
+ *
+ * Each file in the repository that holds such data is a hard link to the 'blob' of which the name is the hash (and the
+ * encoding) of the data. The amount of links of a blob, as maintained by the file system, is therefore the amount of
+ * references to it, plus one (the blob itself). Deleting a file in the repository decrements that count. A blob that is
+ * no longer referenced is deleted by {@link #release(String)}, or when the store is opened.
+ *
+ * This requires a file system that supports hard links, and that exposes the amount of links of a file.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+class BlobStore
+{
+    private static final Logger Log = LoggerFactory.getLogger( BlobStore.class );
+
+    private final Path directory;
+
+    // Serializes the creation and release of a particular blob. These locks are reentrant.
+    private final Striped<Lock> locks = Striped.lock( 64 );
+
+    BlobStore( Path directory )
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Checks if the file system that holds a directory supports what's needed to deduplicate data.
+     */
+    static boolean isSupported( Path directory )
+    {
+        return directory.getFileSystem().supportedFileAttributeViews().contains( "unix" );
+    }
+
+    /**
+     * Creates the directory of the store, and deletes all blobs that are no longer referenced (eg: because the
+     * application stopped after a blob was created, but before it was linked to).
+     *
+     * @return the amount of bytes that was deleted.
+     */
+    long open() throws IOException
+    {
+        Files.createDirectories( directory );
+
+        final List<Path> blobs;
+        try ( final Stream<Path> stream = Files.walk( directory, 3 ) )
+        {
+            blobs = stream.filter( Files::isRegularFile ).collect( Collectors.toList() );
+        }
+
+        long deleted = 0;
+        for ( final Path blob : blobs )
+        {
+            deleted += Math.max( 0, release( blob.getFileName().toString() ) );
+        }
+        Log.info( "Opened the deduplicated data in {}. Removed {} bytes of data that was no longer referenced.", directory, deleted );
+        return deleted;
+    }
+
+    /**
+     * Returns the key by which data is stored: the hash of the (uncompressed) data, combined with the encoding (eg:
+     * compression) in which it is stored. Identical data that is stored in different encodings is stored separately.
+     *
+     * @param digest   The hash of the data (a hexadecimal string).
+     * @param encoding The encoding of the stored data, or null when the data is stored as it was uploaded.
+     */
+    static String getKey( String digest, String encoding )
+    {
+        return encoding == null ? digest : digest + "." + encoding;
+    }
+
+    Path getPath( String key )
+    {
+        return directory.resolve( key.substring( 0, 2 ) ).resolve( key.substring( 2, 4 ) ).resolve( key );
+    }
+
+    /**
+     * Returns the lock that serializes operations on a blob. Files that (might) link to the blob must be deleted while
+     * holding it: otherwise, a file can be linked to the blob after its amount of links was checked, but before it is
+     * deleted, which leaves the blob behind without being referenced.
+     *
+     * @param key The key of the data (see {@link #getKey(String, String)}).
+     */
+    Lock getLock( String key )
+    {
+        return locks.get( key );
+    }
+
+    /**
+     * Replaces staged data by a link to an identical blob, if one exists.
+     *
+     * @param key    The key of the data (see {@link #getKey(String, String)}).
+     * @param staged The file that holds the data.
+     * @return true if the staged file was replaced by a link to a blob, otherwise false.
+     */
+    boolean share( String key, Path staged ) throws IOException
+    {
+        final Path blob = getPath( key );
+        final Lock lock = getLock( key );
+        lock.lock();
+        try
+        {
+            if ( AbstractFileSystemRepository.getLinkCount( blob ) <= 0 )
+            {
+                return false;
+            }
+            if ( Files.mismatch( blob, staged ) != -1L )
+            {
+                Log.warn( "Data stored as {} differs from other data with the same key. Storing the data without deduplication.", blob );
+                return false;
+            }
+
+            // The link is created next to the staged file, which is replaced only once the link exists.
+            final Path link = staged.resolveSibling( staged.getFileName() + ".link" );
+            try
+            {
+                Files.deleteIfExists( link );
+                Files.createLink( link, blob );
+            }
+            catch ( FileSystemException e )
+            {
+                // File systems limit the amount of links to a file. Beyond that, the data is stored without deduplication.
+                Log.debug( "Unable to link to {}. Storing a copy of the data instead.", blob, e );
+                return false;
+            }
+            Files.move( link, staged, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes stored data available to be shared, if no blob with the same key exists yet. An existing blob is never
+     * replaced.
+     *
+     * @param key  The key of the data (see {@link #getKey(String, String)}).
+     * @param data The file that holds the data.
+     * @return true if a blob was created, otherwise false.
+     */
+    boolean add( String key, Path data ) throws IOException
+    {
+        final Path blob = getPath( key );
+        final Lock lock = getLock( key );
+        lock.lock();
+        try
+        {
+            Files.createDirectories( blob.getParent() );
+            Files.createLink( blob, data );
+            return true;
+        }
+        catch ( FileAlreadyExistsException | NoSuchFileException e )
+        {
+            // Either a blob with this key exists already (which is left as-is), or the data has been deleted already.
+            Log.debug( "Not storing {} to be shared.", blob, e );
+            return false;
+        }
+        catch ( FileSystemException e )
+        {
+            Log.debug( "Unable to link to {}. The data is not shared.", data, e );
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes a blob, if it is no longer referenced.
+     *
+     * @param key The key of the data.
+     * @return the amount of bytes that was deleted, 0 if the blob is still referenced, or -1 if no such blob exists.
+     */
+    long release( String key ) throws IOException
+    {
+        final Path blob = getPath( key );
+        final Lock lock = getLock( key );
+        lock.lock();
+        try
+        {
+            final int links = AbstractFileSystemRepository.getLinkCount( blob );
+            if ( links < 0 )
+            {
+                return -1;
+            }
+            if ( links > 1 )
+            {
+                return 0;
+            }
+
+            final long size = Files.size( blob );
+            Files.delete( blob );
+            Log.debug( "Deleted data that is no longer referenced: {} ({} bytes)", blob, size );
+            return size;
+        }
+        catch ( NoSuchFileException e )
+        {
+            return -1;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
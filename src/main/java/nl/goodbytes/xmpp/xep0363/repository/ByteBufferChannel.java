@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A channel that reads the remaining bytes of a buffer. The buffer is not copied: its position is advanced as data is read.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+class ByteBufferChannel implements ReadableByteChannel
+{
+    private final ByteBuffer buffer;
+
+    private boolean open = true;
+
+    ByteBufferChannel( ByteBuffer buffer )
+    {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read( ByteBuffer dst ) throws ClosedChannelException
+    {
+        if ( !open )
+        {
+            throw new ClosedChannelException();
+        }
+        if ( !buffer.hasRemaining() )
+        {
+            return -1;
+        }
+
+        final int length = Math.min( buffer.remaining(), dst.remaining() );
+        final ByteBuffer chunk = buffer.slice();
+        chunk.limit( length );
+        dst.put( chunk );
+        buffer.position( buffer.position() + length );
+        return length;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public void close()
+    {
+        open = false;
+    }
+}
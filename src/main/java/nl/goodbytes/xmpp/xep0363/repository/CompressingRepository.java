@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.goodbytes.xmpp.xep0363.FileMetadata;
+import nl.goodbytes.xmpp.xep0363.Repository;
+import nl.goodbytes.xmpp.xep0363.SecureUniqueId;
+import nl.goodbytes.xmpp.xep0363.Slot;
+
+/**
+ * A repository that compresses data of which the content type indicates that it compresses well (eg: text documents).
+ * Data that appears to be compressed already (eg: archives, or most image and video formats) is stored as-is, as is data
+ * for which compression does not save at least 10% of space.
+ *
+ * Compressed data is decompressed when it is read, but can also be read as-is by {@link #getEncodedChannel(SecureUniqueId)},
+ * to be sent to clients that accept the encoding.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public class CompressingRepository extends FileSystemRepositoryDecorator
+{
+    private static final Logger Log = LoggerFactory.getLogger( CompressingRepository.class );
+
+    /**
+     * Data smaller than this amount of bytes is not compressed.
+     */
+    public static final long COMPRESSION_MIN_SIZE = 1024;
+
+    /**
+     * Compressed data is stored only if its size is at most this fraction of the size of the uncompressed data.
+     */
+    public static final double COMPRESSION_MAX_RATIO = 0.9;
+
+    // The amount of published files that were compressed, and the amount of bytes saved by doing so.
+    private final LongAdder compressedFiles = new LongAdder();
+    private final LongAdder compressionSavedBytes = new LongAdder();
+
+    /**
+     * @param delegate The repository to decorate: a file system repository, or a decorator of one.
+     */
+    public CompressingRepository( final Repository delegate )
+    {
+        super( delegate );
+    }
+
+    /**
+     * Returns the amount of files that were stored compressed since the repository was initialized.
+     */
+    public long getCompressedFileCount()
+    {
+        return compressedFiles.sum();
+    }
+
+    /**
+     * Returns the amount of bytes that were saved by compressing files since the repository was initialized.
+     */
+    public long getCompressionSavedBytes()
+    {
+        return compressionSavedBytes.sum();
+    }
+
+    @Override
+    public void destroy()
+    {
+        Log.debug( "Compression: {} files were stored compressed, saving {} bytes.", getCompressedFileCount(), getCompressionSavedBytes() );
+        super.destroy();
+    }
+
+    @Override
+    protected FileMetadata publish( Slot slot, FileMetadata metadata ) throws IOException
+    {
+        return super.publish( slot, compress( slot.getUuid(), repository.getStagingPath( slot.getUuid() ), metadata ) );
+    }
+
+    /**
+     * Compresses staged data, if it is expected to compress well. The staged data is replaced by the compressed data,
+     * but only if that is sufficiently smaller.
+     *
+     * @return the metadata of the data as it is to be stored.
+     */
+    private FileMetadata compress( SecureUniqueId uuid, Path staged, FileMetadata metadata ) throws IOException
+    {
+        if ( metadata.getSize() < COMPRESSION_MIN_SIZE || !Compression.isCompressible( metadata.getContentType(), staged ) )
+        {
+            return metadata;
+        }
+
+        final Path compressed = staged.resolveSibling( staged.getFileName() + ".gz" );
+        try
+        {
+            final long start = System.currentTimeMillis();
+            final long compressedSize = Compression.compress( staged, compressed );
+            if ( compressedSize > metadata.getSize() * COMPRESSION_MAX_RATIO )
+            {
+                Log.debug( "UUID '{}' Not storing compressed data, as compression reduced the size only from {} to {} bytes.", uuid, metadata.getSize(), compressedSize );
+                return metadata;
+            }
+
+            Files.move( compressed, staged, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+            compressedFiles.increment();
+            compressionSavedBytes.add( metadata.getSize() - compressedSize );
+            Log.debug( "UUID '{}' Compressed data from {} to {} bytes in {} ms.", uuid, metadata.getSize(), compressedSize, System.currentTimeMillis() - start );
+            return metadata.withContentEncoding( Compression.ENCODING, compressedSize );
+        }
+        finally
+        {
+            Files.deleteIfExists( compressed );
+        }
+    }
+
+    /**
+     * Checks if data is stored encoded (eg: compressed), rather than as it was uploaded.
+     */
+    private boolean isEncoded( SecureUniqueId uuid )
+    {
+        final FileMetadata metadata = getMetadata( uuid );
+        return metadata != null && metadata.getContentEncoding() != null;
+    }
+
+    @Override
+    public InputStream getInputStream( SecureUniqueId uuid ) throws IOException
+    {
+        final InputStream in = super.getInputStream( uuid );
+        if ( !isEncoded( uuid ) )
+        {
+            return in;
+        }
+        try
+        {
+            return Compression.decompress( in );
+        }
+        catch ( IOException e )
+        {
+            in.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public ReadableByteChannel getReadableChannel( SecureUniqueId uuid ) throws IOException
+    {
+        return isEncoded( uuid ) ? Channels.newChannel( getInputStream( uuid ) ) : super.getReadableChannel( uuid );
+    }
+
+    @Override
+    public ReadableByteChannel getReadableChannel( SecureUniqueId uuid, long position ) throws IOException
+    {
+        if ( !isEncoded( uuid ) )
+        {
+            return super.getReadableChannel( uuid, position );
+        }
+
+        // Compressed data cannot be read from an arbitrary position without decompressing what precedes it.
+        final InputStream in = getInputStream( uuid );
+        try
+        {
+            in.skipNBytes( position );
+        }
+        catch ( IOException e )
+        {
+            in.close();
+            throw e;
+        }
+        return Channels.newChannel( in );
+    }
+
+    @Override
+    public ReadableByteChannel getEncodedChannel( SecureUniqueId uuid ) throws IOException
+    {
+        // The repository that is decorated reads the data as it is stored.
+        return isEncoded( uuid ) ? super.getReadableChannel( uuid ) : super.getEncodedChannel( uuid );
+    }
+
+    @Override
+    public ByteBuffer getCachedContent( SecureUniqueId uuid ) throws IOException
+    {
+        // Compressed data is cached decompressed.
+        return isEncoded( uuid ) ? repository.getCachedContent( uuid, this::getReadableChannel ) : super.getCachedContent( uuid );
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses data for storage, using the 'gzip' format, which can be sent to HTTP clients as-is.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+class Compression
+{
+    /**
+     * The name of the encoding, as used in HTTP Content-Encoding headers.
+     */
+    static final String ENCODING = "gzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Content types of data that typically compresses well, in addition to all 'text' types.
+    private static final List<String> COMPRESSIBLE_TYPES = Arrays.asList(
+        "application/json", "application/ld+json", "application/xml", "application/xhtml+xml", "application/javascript",
+        "application/x-javascript", "application/ecmascript", "application/x-ndjson", "application/rtf", "application/csv",
+        "application/sql", "application/x-sh", "application/x-yaml", "application/yaml", "application/toml",
+        "application/postscript", "application/x-tex", "image/svg+xml", "image/bmp", "image/x-ms-bmp"
+    );
+
+    // Leading bytes of formats that are compressed already (regardless of the content type that was claimed for them).
+    private static final byte[][] COMPRESSED_SIGNATURES = {
+        { 0x1f, (byte) 0x8b },                                    // gzip
+        { 'P', 'K', 0x03, 0x04 },                                 // zip (and formats based on it, like docx, jar, apk)
+        { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd },                 // zstd
+        { (byte) 0xfd, '7', 'z', 'X', 'Z', 0x00 },                // xz
+        { 'B', 'Z', 'h' },                                        // bzip2
+        { '7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c },       // 7-zip
+        { 'R', 'a', 'r', '!' },                                   // rar
+        { (byte) 0x89, 'P', 'N', 'G' },                           // png
+        { (byte) 0xff, (byte) 0xd8, (byte) 0xff },                // jpeg
+        { 'G', 'I', 'F', '8' },                                   // gif
+        { 'R', 'I', 'F', 'F' },                                   // webp, avi, wav (mostly compressed)
+        { 'O', 'g', 'g', 'S' },                                   // ogg
+        { 'I', 'D', '3' },                                        // mp3
+        { 0x1a, 0x45, (byte) 0xdf, (byte) 0xa3 },                 // matroska, webm
+        { '%', 'P', 'D', 'F' },                                   // pdf (content streams are typically compressed)
+    };
+
+    private Compression()
+    {
+    }
+
+    /**
+     * Checks if data is worth compressing, based on its content type and its leading bytes.
+     *
+     * @param contentType The content type of the data (can be null).
+     * @param path        The file that holds the data.
+     * @return true if the data is expected to compress well.
+     */
+    static boolean isCompressible( String contentType, Path path ) throws IOException
+    {
+        if ( contentType == null )
+        {
+            return false;
+        }
+
+        final String mimeType = contentType.split( ";", 2 )[ 0 ].trim().toLowerCase( Locale.ROOT );
+        if ( !mimeType.startsWith( "text/" ) && !mimeType.endsWith( "+json" ) && !mimeType.endsWith( "+xml" ) && !COMPRESSIBLE_TYPES.contains( mimeType ) )
+        {
+            return false;
+        }
+
+        // The content type can be based on the file name. Check that the content is not compressed already.
+        final byte[] header = new byte[ 8 ];
+        final int length;
+        try ( final InputStream in = Files.newInputStream( path ) )
+        {
+            length = in.readNBytes( header, 0, header.length );
+        }
+        for ( final byte[] signature : COMPRESSED_SIGNATURES )
+        {
+            if ( length >= signature.length && Arrays.equals( header, 0, signature.length, signature, 0, signature.length ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compresses the content of a file into another file.
+     *
+     * @param source The file that holds the data to compress.
+     * @param target The file to write the compressed data to. Is overwritten if it exists.
+     * @return the size of the compressed data.
+     */
+    static long compress( Path source, Path target ) throws IOException
+    {
+        try ( final InputStream in = Files.newInputStream( source );
+              final OutputStream out = new GZIPOutputStream( Files.newOutputStream( target ), BUFFER_SIZE ) )
+        {
+            in.transferTo( out );
+        }
+        return Files.size( target );
+    }
+
+    /**
+     * Returns a stream that decompresses data.
+     */
+    static InputStream decompress( InputStream in ) throws IOException
+    {
+        return new GZIPInputStream( in, BUFFER_SIZE );
+    }
+}
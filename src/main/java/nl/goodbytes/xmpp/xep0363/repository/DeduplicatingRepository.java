@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.goodbytes.xmpp.xep0363.FileMetadata;
+import nl.goodbytes.xmpp.xep0363.Repository;
+import nl.goodbytes.xmpp.xep0363.Slot;
+
+/**
+ * A repository that stores identical data only once.
+ *
+ * The content of every upload is hashed while it is being written. Data of which the hash matches that of data that is
+ * already stored is not stored again: instead, a hard link to the existing data is created. The data is deleted when the
+ * last file that links to it is deleted.
+ *
+ * This requires a file system that supports hard links. Deduplication is disabled (with a warning) on other file systems.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public class DeduplicatingRepository extends FileSystemRepositoryDecorator implements StorageExtension
+{
+    private static final Logger Log = LoggerFactory.getLogger( DeduplicatingRepository.class );
+
+    /**
+     * The name of the directory (in the repository) that holds deduplicated data.
+     */
+    public static final String BLOBS_DIRECTORY = ".blobs";
+
+    // Stores data by a hash of its content. Null when the file system does not support deduplication.
+    private BlobStore blobStore;
+
+    // The amount of published files of which the content was already stored.
+    private final LongAdder deduplicatedFiles = new LongAdder();
+
+    /**
+     * @param delegate The repository to decorate: a file system repository, or a decorator of one.
+     */
+    public DeduplicatingRepository( final Repository delegate )
+    {
+        super( delegate );
+        repository.setHashUploads( true );
+        repository.addStorageExtension( this );
+    }
+
+    /**
+     * Returns the amount of files that were published since the repository was initialized, of which identical data
+     * was already stored.
+     */
+    public long getDeduplicatedFileCount()
+    {
+        return deduplicatedFiles.sum();
+    }
+
+    @Override
+    public void destroy()
+    {
+        Log.debug( "Deduplication: {} files were published of which identical data was already stored.", getDeduplicatedFileCount() );
+        super.destroy();
+    }
+
+    @Override
+    public void open() throws IOException
+    {
+        final Path directory = repository.resolve( BLOBS_DIRECTORY );
+        if ( BlobStore.isSupported( directory ) )
+        {
+            blobStore = new BlobStore( directory );
+            blobStore.open();
+        }
+        else
+        {
+            Log.warn( "Deduplication is configured, but the file system of {} does not support it. Identical data will be stored more than once.", directory );
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        // Blobs are plain files, which are not held open.
+    }
+
+    @Override
+    protected FileMetadata publish( Slot slot, FileMetadata metadata ) throws IOException
+    {
+        if ( blobStore == null || metadata.getDigest() == null )
+        {
+            return super.publish( slot, metadata );
+        }
+
+        final String key = BlobStore.getKey( metadata.getDigest(), metadata.getContentEncoding() );
+        final boolean deduplicated = blobStore.share( key, repository.getStagingPath( slot.getUuid() ) );
+        final FileMetadata result = super.publish( slot, metadata );
+        if ( deduplicated )
+        {
+            deduplicatedFiles.increment();
+            Log.debug( "UUID '{}' Identical data was already stored. Linked to it, rather than storing it again.", slot.getUuid() );
+        }
+        else
+        {
+            blobStore.add( key, repository.getPath( slot.getUuid() ) );
+        }
+        return result;
+    }
+
+    /**
+     * Returns the key by which published data is deduplicated, if it was stored while deduplication was enabled.
+     *
+     * @return a key, or null when the data cannot be linked to deduplicated data.
+     */
+    private String getKey( String name )
+    {
+        if ( blobStore == null )
+        {
+            return null;
+        }
+        try
+        {
+            final FileMetadata metadata = FileMetadata.fromBytes( Files.readAllBytes( repository.getPath( name + AbstractFileSystemRepository.METADATA_SUFFIX ) ) );
+            return metadata.getDigest() == null ? null : BlobStore.getKey( metadata.getDigest(), metadata.getContentEncoding() );
+        }
+        catch ( IOException e )
+        {
+            Log.trace( "Unable to read the hash of the content of {}.", name, e );
+            return null;
+        }
+    }
+
+    /**
+     * Returns the amount of bytes that is released by deleting the only file that links to deduplicated data: the data
+     * is deleted with it.
+     */
+    @Override
+    public long getStoredSize( String name )
+    {
+        final Path path = repository.getPath( name );
+        if ( blobStore == null || AbstractFileSystemRepository.getLinkCount( path ) != 2 )
+        {
+            return -1;
+        }
+        return Math.max( 0, AbstractFileSystemRepository.sizeIfExists( path ) ) + Math.max( 0, AbstractFileSystemRepository.sizeIfExists( repository.getPath( name + AbstractFileSystemRepository.METADATA_SUFFIX ) ) );
+    }
+
+    /**
+     * Deletes a file that (possibly) links to deduplicated data, and the data itself if no other file links to it.
+     */
+    @Override
+    public long delete( String name ) throws IOException
+    {
+        final String key = getKey( name );
+        if ( key == null )
+        {
+            return -1;
+        }
+
+        // The file is deleted while holding the lock of the blob, as it may concurrently be linked to the blob (see publish).
+        final Lock lock = blobStore.getLock( key );
+        lock.lock();
+        try
+        {
+            final long deleted = repository.deleteFiles( name );
+            final long released = Math.max( 0, blobStore.release( key ) );
+            repository.recordReleased( released );
+            return deleted < 0 && released == 0 ? -1 : Math.max( 0, deleted ) + released;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
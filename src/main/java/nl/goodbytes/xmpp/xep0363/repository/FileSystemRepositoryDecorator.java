@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import nl.goodbytes.xmpp.xep0363.FileMetadata;
+import nl.goodbytes.xmpp.xep0363.Repository;
+import nl.goodbytes.xmpp.xep0363.SecureUniqueId;
+import nl.goodbytes.xmpp.xep0363.Slot;
+
+/**
+ * A repository that changes the way in which a file system repository stores data (eg: by storing small files in
+ * segments).
+ *
+ * Decorators can be stacked. The innermost of them decorates an {@link AbstractFileSystemRepository}, of which the
+ * staging area, layout, metadata, usage accounting and purges are shared by all of them. When data is published, its
+ * metadata is determined once, after which every decorator either stores the data itself, or passes it on (possibly
+ * modified) to the repository that it decorates.
+ *
+ * All operations are passed on to the decorated repository, unless they are overridden.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public abstract class FileSystemRepositoryDecorator implements Repository
+{
+    // The repository that is decorated.
+    protected final Repository delegate;
+
+    // The repository that is decorated, if that is a decorator itself. Null otherwise.
+    private final FileSystemRepositoryDecorator next;
+
+    // The file system repository that is decorated, directly or by way of other decorators.
+    protected final AbstractFileSystemRepository repository;
+
+    /**
+     * @param delegate The repository to decorate: a file system repository, or a decorator of one.
+     */
+    protected FileSystemRepositoryDecorator( final Repository delegate )
+    {
+        this.delegate = delegate;
+        if ( delegate instanceof FileSystemRepositoryDecorator )
+        {
+            this.next = (FileSystemRepositoryDecorator) delegate;
+            this.repository = next.repository;
+        }
+        else if ( delegate instanceof AbstractFileSystemRepository )
+        {
+            this.next = null;
+            this.repository = (AbstractFileSystemRepository) delegate;
+        }
+        else
+        {
+            throw new IllegalArgumentException( "Only a file system repository (or a decorator of one) can be decorated: " + delegate );
+        }
+    }
+
+    /**
+     * Returns the file system repository that is decorated, directly or by way of other decorators.
+     */
+    public AbstractFileSystemRepository getRepository()
+    {
+        return repository;
+    }
+
+    @Override
+    public void initialize() throws IOException
+    {
+        delegate.initialize();
+    }
+
+    @Override
+    public void destroy()
+    {
+        delegate.destroy();
+    }
+
+    @Override
+    public boolean contains( SecureUniqueId uuid )
+    {
+        return getMetadata( uuid ) != null;
+    }
+
+    @Override
+    public String calculateETagHash( SecureUniqueId uuid )
+    {
+        final FileMetadata metadata = getMetadata( uuid );
+        return metadata == null ? null : metadata.getETag();
+    }
+
+    @Override
+    public String getContentType( SecureUniqueId uuid )
+    {
+        final FileMetadata metadata = getMetadata( uuid );
+        return metadata == null ? null : metadata.getContentType();
+    }
+
+    @Override
+    public long getSize( SecureUniqueId uuid )
+    {
+        final FileMetadata metadata = getMetadata( uuid );
+        return metadata == null ? -1 : metadata.getSize();
+    }
+
+    @Override
+    public FileMetadata getMetadata( SecureUniqueId uuid )
+    {
+        return delegate.getMetadata( uuid );
+    }
+
+    @Override
+    public FileMetadata publish( Slot slot ) throws IOException
+    {
+        return publish( slot, repository.createMetadata( slot, repository.getStagingPath( slot.getUuid() ) ) );
+    }
+
+    /**
+     * Publishes the staged data of a slot, of which the metadata has been determined. Decorators that do not store the
+     * data themselves pass it on to the repository that they decorate, by invoking this method of their superclass.
+     *
+     * @param slot     the slot of which the data is published.
+     * @param metadata the metadata of the data, as it is staged.
+     * @return the metadata of the data, as it is stored.
+     */
+    protected FileMetadata publish( Slot slot, FileMetadata metadata ) throws IOException
+    {
+        return next != null ? next.publish( slot, metadata ) : repository.publish( slot, metadata );
+    }
+
+    @Override
+    public InputStream getInputStream( SecureUniqueId uuid ) throws IOException
+    {
+        return delegate.getInputStream( uuid );
+    }
+
+    @Override
+    public ReadableByteChannel getReadableChannel( SecureUniqueId uuid ) throws IOException
+    {
+        return delegate.getReadableChannel( uuid );
+    }
+
+    @Override
+    public ReadableByteChannel getReadableChannel( SecureUniqueId uuid, long position ) throws IOException
+    {
+        return delegate.getReadableChannel( uuid, position );
+    }
+
+    @Override
+    public ReadableByteChannel getEncodedChannel( SecureUniqueId uuid ) throws IOException
+    {
+        return delegate.getEncodedChannel( uuid );
+    }
+
+    @Override
+    public ByteBuffer getCachedContent( SecureUniqueId uuid ) throws IOException
+    {
+        return delegate.getCachedContent( uuid );
+    }
+
+    @Override
+    public OutputStream getOutputStream( SecureUniqueId uuid ) throws IOException
+    {
+        return delegate.getOutputStream( uuid );
+    }
+
+    @Override
+    public InputStream getUnpublishedInputStream( SecureUniqueId uuid ) throws IOException
+    {
+        return delegate.getUnpublishedInputStream( uuid );
+    }
+
+    @Override
+    public String getUnpublishedDigest( SecureUniqueId uuid )
+    {
+        return delegate.getUnpublishedDigest( uuid );
+    }
+
+    @Override
+    public void retainUnpublished( SecureUniqueId uuid )
+    {
+        delegate.retainUnpublished( uuid );
+    }
+
+    @Override
+    public void releaseUnpublished( SecureUniqueId uuid )
+    {
+        delegate.releaseUnpublished( uuid );
+    }
+
+    @Override
+    public boolean delete( SecureUniqueId uuid ) throws IOException
+    {
+        return delegate.delete( uuid );
+    }
+}
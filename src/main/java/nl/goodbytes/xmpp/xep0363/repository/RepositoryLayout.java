@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Determines where the files that hold published data and metadata of a repository are stored.
+ *
+ * In the flat layout, all files are stored directly in the root of the repository. In the sharded layout, files are
+ * distributed over two levels of directories, each named after part of a hash of the name of the file. This keeps the
+ * amount of entries per directory small, which benefits file system performance when many files are stored.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public class RepositoryLayout
+{
+    private static final Logger Log = LoggerFactory.getLogger( RepositoryLayout.class );
+
+    // Names of the directories of the sharded layout: two hexadecimal characters.
+    private static final Pattern SHARD_DIRECTORY = Pattern.compile( "[0-9a-f]{2}" );
+
+    private final AbstractFileSystemRepository repository;
+
+    // The amount of published files (not counting their metadata) that are stored directly in the root of the repository.
+    private final AtomicLong flatFileCount = new AtomicLong( 0 );
+
+    // The amount of published files (not counting their metadata) that are stored in the shard directories.
+    private final AtomicLong shardedFileCount = new AtomicLong( 0 );
+
+    private boolean sharded = false;
+
+    private boolean migrateOnInitialize = false;
+
+    RepositoryLayout( final AbstractFileSystemRepository repository )
+    {
+        this.repository = repository;
+    }
+
+    /**
+     * Sets the layout in which new files are stored. Must be invoked before the repository is initialized.
+     *
+     * Either way, files that are stored in the other layout remain available. They can be moved to the sharded layout
+     * with {@link #migrateToShardedLayout()}.
+     *
+     * @param sharded true to store new files in the sharded layout, false to store them in the flat layout (the default).
+     */
+    public void setSharded( final boolean sharded )
+    {
+        this.sharded = sharded;
+    }
+
+    public boolean isSharded()
+    {
+        return sharded;
+    }
+
+    /**
+     * Configures the repository to move all files from the flat to the sharded layout in the background, when it is
+     * initialized. This requires the sharded layout to be configured. Must be invoked before the repository is
+     * initialized.
+     *
+     * @param migrateOnInitialize true to migrate files in the background, otherwise false (the default).
+     * @see #migrateToShardedLayout()
+     */
+    public void setMigrateOnInitialize( final boolean migrateOnInitialize )
+    {
+        this.migrateOnInitialize = migrateOnInitialize;
+    }
+
+    public boolean isMigrateOnInitialize()
+    {
+        return migrateOnInitialize;
+    }
+
+    /**
+     * Returns the amount of published files that are stored in the flat layout.
+     */
+    public long getFlatFileCount()
+    {
+        return flatFileCount.get();
+    }
+
+    /**
+     * Returns the amount of published files that are stored in the sharded layout.
+     */
+    public long getShardedFileCount()
+    {
+        return shardedFileCount.get();
+    }
+
+    /**
+     * Returns the path of a file in the repository. This is the path in the configured layout, unless the file is
+     * stored (only) in the other layout.
+     *
+     * @param filename the name of a file that holds data, or metadata.
+     */
+    Path getPath( final String filename )
+    {
+        final Path preferred = getLayoutPath( filename );
+
+        // Checking the other layout is needed only as long as it holds files.
+        final long otherLayoutCount = sharded ? flatFileCount.get() : shardedFileCount.get();
+        if ( otherLayoutCount > 0 && !Files.exists( preferred ) )
+        {
+            final Path other = sharded ? getFlatPath( filename ) : getShardedPath( filename );
+            if ( Files.exists( other ) )
+            {
+                return other;
+            }
+        }
+        return preferred;
+    }
+
+    /**
+     * Returns the path of a file in the configured layout, regardless of whether the file exists.
+     */
+    Path getLayoutPath( final String filename )
+    {
+        return sharded ? getShardedPath( filename ) : getFlatPath( filename );
+    }
+
+    Path getFlatPath( final String filename )
+    {
+        return repository.repository.resolve( filename );
+    }
+
+    /**
+     * Returns the path of a file in the sharded layout. Data and its metadata are stored in the same directory.
+     */
+    Path getShardedPath( final String filename )
+    {
+        final String name = isMetadata( filename ) ? filename.substring( 0, filename.length() - AbstractFileSystemRepository.METADATA_SUFFIX.length() ) : filename;
+        final String hash = Hashing.murmur3_32_fixed().hashString( name, StandardCharsets.UTF_8 ).toString();
+        return repository.repository.resolve( hash.substring( 0, 2 ) ).resolve( hash.substring( 2, 4 ) ).resolve( filename );
+    }
+
+    private static boolean isMetadata( final String filename )
+    {
+        return filename.endsWith( AbstractFileSystemRepository.METADATA_SUFFIX );
+    }
+
+    /**
+     * Lists all entries that hold published data or metadata, in both layouts. Entries that are reserved for internal use
+     * (of which the name starts with a dot) and the shard directories themselves are not included, but other entries in
+     * the root of the repository are.
+     */
+    List<Path> listFiles() throws IOException
+    {
+        final List<Path> paths;
+        try ( final Stream<Path> stream = Files.list( repository.repository ) )
+        {
+            paths = stream.filter( path -> !path.getFileName().toString().startsWith( "." ) ).collect( Collectors.toList() );
+        }
+
+        // Files of the sharded layout are stored two directory levels deeper.
+        final List<Path> shards = paths.stream()
+            .filter( RepositoryLayout::isShardDirectory )
+            .collect( Collectors.toList() );
+        final List<Path> shardedPaths = shards.parallelStream()
+            .flatMap( RepositoryLayout::listQuietly )
+            .filter( RepositoryLayout::isShardDirectory )
+            .flatMap( RepositoryLayout::listQuietly )
+            .collect( Collectors.toList() );
+
+        paths.removeAll( shards );
+        paths.addAll( shardedPaths );
+        return paths;
+    }
+
+    private static boolean isShardDirectory( final Path path )
+    {
+        return SHARD_DIRECTORY.matcher( path.getFileName().toString() ).matches() && Files.isDirectory( path );
+    }
+
+    private static Stream<Path> listQuietly( final Path directory )
+    {
+        try ( final Stream<Path> stream = Files.list( directory ) )
+        {
+            return stream.collect( Collectors.toList() ).stream();
+        }
+        catch ( IOException e )
+        {
+            Log.warn( "Unable to list the content of {}. It is not accounted for.", directory, e );
+            return Stream.empty();
+        }
+    }
+
+    /**
+     * Registers that a file that holds published data or metadata was added to the repository.
+     *
+     * @param path     the file that was added.
+     * @param replaced the size of the file that was replaced by the file that was added, or -1 if no file was replaced.
+     */
+    void recordAdded( final Path path, final long replaced )
+    {
+        if ( replaced < 0 && !isMetadata( path.getFileName().toString() ) && isInLayout( path ) )
+        {
+            ( isFlat( path ) ? flatFileCount : shardedFileCount ).incrementAndGet();
+        }
+    }
+
+    /**
+     * Registers that a file that holds published data or metadata was removed from the repository.
+     *
+     * @param path the file that was removed.
+     */
+    void recordRemoved( final Path path )
+    {
+        if ( !isMetadata( path.getFileName().toString() ) && isInLayout( path ) )
+        {
+            ( isFlat( path ) ? flatFileCount : shardedFileCount ).decrementAndGet();
+        }
+    }
+
+    // Files can be stored outside of the repository directory (eg: in another storage tier, see TieredRepository).
+    private boolean isInLayout( final Path path )
+    {
+        return path.startsWith( repository.repository );
+    }
+
+    private boolean isFlat( final Path path )
+    {
+        return path.getParent().equals( repository.repository );
+    }
+
+    /**
+     * Starts moving files to the sharded layout in the background, when configured to do so.
+     */
+    void start()
+    {
+        Log.info( "Repository contains {} files in the flat layout, and {} files in the sharded layout.", flatFileCount.get(), shardedFileCount.get() );
+        if ( !sharded || flatFileCount.get() == 0 )
+        {
+            return;
+        }
+
+        if ( !migrateOnInitialize )
+        {
+            Log.info( "The repository uses the sharded layout, but contains {} files in the flat layout. These remain available, but can be migrated to the sharded layout.", flatFileCount.get() );
+            return;
+        }
+
+        final Thread migration = new Thread( () -> {
+            try
+            {
+                migrateToShardedLayout();
+            }
+            catch ( Exception e )
+            {
+                Log.warn( "An unexpected error occurred while migrating the repository to the sharded layout.", e );
+            }
+        }, "xmppfileupload-migration" );
+        migration.setDaemon( true );
+        migration.start();
+    }
+
+    /**
+     * Moves all files that are stored in the flat layout to the sharded layout. This can be invoked while the repository
+     * is in use: files remain available while they are being moved.
+     *
+     * @return the amount of files that were moved.
+     * @throws IllegalStateException when the repository is not configured to use the sharded layout.
+     */
+    public long migrateToShardedLayout() throws IOException
+    {
+        if ( !sharded )
+        {
+            throw new IllegalStateException( "The repository is not configured to use the sharded layout." );
+        }
+
+        final long start = System.currentTimeMillis();
+        final List<Path> flat;
+        try ( final Stream<Path> stream = Files.list( repository.repository ) )
+        {
+            flat = stream.filter( path -> !path.getFileName().toString().startsWith( "." ) && !isMetadata( path.getFileName().toString() ) && Files.isRegularFile( path ) ).collect( Collectors.toList() );
+        }
+        Log.info( "Migrating {} files from the flat to the sharded layout...", flat.size() );
+
+        long migrated = 0;
+        for ( final Path path : flat )
+        {
+            final String name = path.getFileName().toString();
+            final Path target = getShardedPath( name );
+            Files.createDirectories( target.getParent() );
+
+            // Metadata is moved first. Paths of data and metadata are resolved independently, allowing either to be found during the move.
+            try
+            {
+                Files.move( getFlatPath( name + AbstractFileSystemRepository.METADATA_SUFFIX ), getShardedPath( name + AbstractFileSystemRepository.METADATA_SUFFIX ), StandardCopyOption.ATOMIC_MOVE );
+            }
+            catch ( NoSuchFileException e )
+            {
+                Log.trace( "File '{}' has no metadata to migrate.", name );
+            }
+
+            try
+            {
+                Files.move( path, target, StandardCopyOption.ATOMIC_MOVE );
+                flatFileCount.decrementAndGet();
+                shardedFileCount.incrementAndGet();
+                migrated++;
+            }
+            catch ( NoSuchFileException e )
+            {
+                Log.debug( "File '{}' was deleted before it could be migrated.", name );
+            }
+
+            if ( migrated > 0 && migrated % 10000 == 0 )
+            {
+                Log.info( "... migrated {} of {} files ...", migrated, flat.size() );
+            }
+        }
+
+        Log.info( "Migrated {} files from the flat to the sharded layout in {} ms.", migrated, System.currentTimeMillis() - start );
+        return migrated;
+    }
+}
@@ -0,0 +1,836 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import nl.goodbytes.xmpp.xep0363.FileMetadata;
+
+/**
+ * Keeps track of the disk space that is used by the published data of a repository, and purges data from that
+ * repository to keep disk space available.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public class RepositoryPurger
+{
+    private static final Logger Log = LoggerFactory.getLogger( RepositoryPurger.class );
+
+    /**
+     * The default maximum amount of files that is deleted per eviction run.
+     */
+    public static final int DEFAULT_EVICTION_BATCH_SIZE = 50;
+
+    /**
+     * The interval at which the space policy is evaluated, when one is configured.
+     */
+    public static final long EVICTION_INTERVAL_MILLIS = 1000;
+
+    public static final Duration DEFAULT_PURGE_INTERVAL = Duration.ofMinutes( 5 );
+
+    /**
+     * The default amount of threads that delete files in parallel.
+     */
+    public static final int DEFAULT_DELETION_THREADS = 4;
+
+    /**
+     * The maximum amount of files that is submitted for parallel deletion at once.
+     */
+    public static final int DELETION_BATCH_SIZE = 256;
+
+    private final AbstractFileSystemRepository repository;
+
+    // Executes periodic purges and evictions. Being single-threaded, these never run concurrently.
+    private ScheduledExecutorService scheduler;
+
+    // Deletes files in parallel, on behalf of purges and evictions.
+    private ExecutorService deletionExecutor;
+
+    // The amount of bytes used by published data (including its metadata), maintained as data is published and deleted.
+    private final AtomicLong usedBytes = new AtomicLong( 0 );
+
+    // The amount of published files (not counting their metadata), maintained as data is published and deleted.
+    private final AtomicLong fileCount = new AtomicLong( 0 );
+
+    // Orders the published files by the moment they were stored, which determines the order in which they are purged.
+    private final AgeIndex ageIndex = new AgeIndex();
+
+    private Duration maxFileAge = null;
+
+    private SpaceThreshold highWatermark = null;
+
+    private SpaceThreshold lowWatermark = null;
+
+    private long maxBytes = 0;
+
+    private int evictionBatchSize = DEFAULT_EVICTION_BATCH_SIZE;
+
+    private Duration purgeInterval = DEFAULT_PURGE_INTERVAL;
+
+    private Duration purgeJitter = Duration.ZERO;
+
+    private Duration purgeBudget = null;
+
+    private int deletionThreads = DEFAULT_DELETION_THREADS;
+
+    // Set when usage exceeded the high watermark or quota, until usage has dropped to the low watermark and quota.
+    private volatile boolean evicting = false;
+
+    RepositoryPurger( final AbstractFileSystemRepository repository )
+    {
+        this.repository = repository;
+    }
+
+    /**
+     * Sets the maximum age of stored files. Files that are older are no longer served, and are deleted by the next
+     * periodic purge.
+     *
+     * @param maxFileAge the maximum age of files, or null to retain files for as long as space permits (the default).
+     */
+    public void setMaxFileAge( final Duration maxFileAge )
+    {
+        this.maxFileAge = maxFileAge == null || maxFileAge.isZero() || maxFileAge.isNegative() ? null : maxFileAge;
+    }
+
+    public Duration getMaxFileAge()
+    {
+        return maxFileAge;
+    }
+
+    /**
+     * Sets the amount of used space on the file store above which files are evicted. Must be invoked before the
+     * repository is initialized.
+     *
+     * When a high watermark, low watermark or maximum repository size is configured, space is reclaimed by evicting the
+     * oldest files in small batches, rather than by the default policy that deletes files in bulk once the repository
+     * uses more space than what is left available on the file store.
+     *
+     * @param highWatermark a threshold, or null to not apply a watermark.
+     */
+    public void setHighWatermark( final SpaceThreshold highWatermark )
+    {
+        this.highWatermark = highWatermark;
+    }
+
+    public SpaceThreshold getHighWatermark()
+    {
+        return highWatermark;
+    }
+
+    /**
+     * Sets the amount of used space on the file store to which usage is reduced, once eviction has started. Defaults to
+     * the high watermark. Must be invoked before the repository is initialized.
+     *
+     * @param lowWatermark a threshold, or null to use the high watermark.
+     */
+    public void setLowWatermark( final SpaceThreshold lowWatermark )
+    {
+        this.lowWatermark = lowWatermark;
+    }
+
+    public SpaceThreshold getLowWatermark()
+    {
+        return lowWatermark;
+    }
+
+    /**
+     * Sets the maximum amount of bytes that can be used by published data (including metadata) of the repository. Must
+     * be invoked before the repository is initialized.
+     *
+     * @param maxBytes an amount of bytes, or zero for no limit (the default).
+     */
+    public void setMaxBytes( final long maxBytes )
+    {
+        if ( maxBytes < 0 )
+        {
+            throw new IllegalArgumentException( "Maximum repository size cannot be negative: " + maxBytes );
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the maximum amount of files that is deleted per eviction run, which limits the burst of I/O caused by
+     * eviction. Runs are repeated every {@link #EVICTION_INTERVAL_MILLIS} milliseconds for as long as needed.
+     *
+     * @param evictionBatchSize an amount of files (must be positive).
+     */
+    public void setEvictionBatchSize( final int evictionBatchSize )
+    {
+        if ( evictionBatchSize <= 0 )
+        {
+            throw new IllegalArgumentException( "Eviction batch size must be positive: " + evictionBatchSize );
+        }
+        this.evictionBatchSize = evictionBatchSize;
+    }
+
+    public int getEvictionBatchSize()
+    {
+        return evictionBatchSize;
+    }
+
+    /**
+     * Sets the interval at which the repository is purged of expired data, data of abandoned uploads and (when no space
+     * policy is configured) data that exceeds the available space. Must be invoked before the repository is initialized.
+     *
+     * @param purgeInterval a positive duration.
+     */
+    public void setPurgeInterval( final Duration purgeInterval )
+    {
+        if ( purgeInterval == null || purgeInterval.isZero() || purgeInterval.isNegative() )
+        {
+            throw new IllegalArgumentException( "Purge interval must be positive: " + purgeInterval );
+        }
+        this.purgeInterval = purgeInterval;
+    }
+
+    public Duration getPurgeInterval()
+    {
+        return purgeInterval;
+    }
+
+    /**
+     * Sets the maximum random delay that is added to each purge interval. This prevents instances that are started at
+     * the same time (eg: those that share storage) from purging simultaneously. Must be invoked before the repository is
+     * initialized.
+     *
+     * @param purgeJitter a duration, or null or zero for no jitter (the default).
+     */
+    public void setPurgeJitter( final Duration purgeJitter )
+    {
+        this.purgeJitter = purgeJitter == null || purgeJitter.isNegative() ? Duration.ZERO : purgeJitter;
+    }
+
+    public Duration getPurgeJitter()
+    {
+        return purgeJitter;
+    }
+
+    /**
+     * Sets the maximum duration of a purge. Work that remains when the budget is exhausted is picked up by the next
+     * purge, which limits how long a single purge competes with other file system activity.
+     *
+     * @param purgeBudget a duration, or null for no limit (the default).
+     */
+    public void setPurgeBudget( final Duration purgeBudget )
+    {
+        this.purgeBudget = purgeBudget == null || purgeBudget.isZero() || purgeBudget.isNegative() ? null : purgeBudget;
+    }
+
+    public Duration getPurgeBudget()
+    {
+        return purgeBudget;
+    }
+
+    /**
+     * Sets the amount of threads that delete files in parallel. Must be invoked before the repository is initialized.
+     *
+     * @param deletionThreads an amount of threads (must be positive).
+     */
+    public void setDeletionThreads( final int deletionThreads )
+    {
+        if ( deletionThreads <= 0 )
+        {
+            throw new IllegalArgumentException( "Amount of deletion threads must be positive: " + deletionThreads );
+        }
+        this.deletionThreads = deletionThreads;
+    }
+
+    public int getDeletionThreads()
+    {
+        return deletionThreads;
+    }
+
+    /**
+     * Checks if space is reclaimed using watermarks and/or a maximum repository size, rather than by the default policy.
+     */
+    public boolean isSpacePolicyConfigured()
+    {
+        return highWatermark != null || lowWatermark != null || maxBytes > 0;
+    }
+
+    /**
+     * Checks if data has outlived the maximum file age, if one is configured.
+     */
+    boolean isExpired( final FileMetadata metadata )
+    {
+        return maxFileAge != null && metadata.getCreationDate().getTime() < getExpiryCutoff();
+    }
+
+    private long getExpiryCutoff()
+    {
+        return System.currentTimeMillis() - maxFileAge.toMillis();
+    }
+
+    /**
+     * Returns the amount of bytes that is used by published data in the repository, including its metadata. Data of
+     * uploads that are in progress is not included.
+     */
+    public long getUsedBytes()
+    {
+        return usedBytes.get();
+    }
+
+    /**
+     * Returns the amount of files that is published in the repository.
+     */
+    public long getFileCount()
+    {
+        return fileCount.get();
+    }
+
+    /**
+     * Registers that a file that holds published data or metadata was added to the repository.
+     *
+     * @param path     the file that was added.
+     * @param bytes    the size of the file that was added.
+     * @param replaced the size of the file that was replaced by the file that was added, or -1 if no file was replaced.
+     */
+    void recordAdded( final Path path, final long bytes, final long replaced )
+    {
+        if ( replaced < 0 && !isMetadata( path ) )
+        {
+            fileCount.incrementAndGet();
+        }
+        usedBytes.addAndGet( bytes - Math.max( 0, replaced ) );
+    }
+
+    /**
+     * Registers the moment at which published data was stored, which determines when it is purged.
+     *
+     * @param name      the name of the file that holds the data.
+     * @param timestamp the moment at which the data was stored.
+     */
+    void recordStored( final String name, final long timestamp )
+    {
+        ageIndex.add( name, timestamp );
+    }
+
+    /**
+     * Registers that a file that holds published data or metadata was removed from the repository.
+     *
+     * @param path  the file that was removed.
+     * @param bytes the size of the file that was removed.
+     */
+    void recordRemoved( final Path path, final long bytes )
+    {
+        usedBytes.addAndGet( -bytes );
+        if ( !isMetadata( path ) )
+        {
+            fileCount.decrementAndGet();
+            ageIndex.remove( path.getFileName().toString() );
+        }
+    }
+
+    /**
+     * Registers published data that is not stored as a file in the repository.
+     *
+     * @param name      the name of the data.
+     * @param bytes     the amount of bytes used to store the data.
+     * @param timestamp the moment at which the data was stored.
+     */
+    void recordAdded( final String name, final long bytes, final long timestamp )
+    {
+        usedBytes.addAndGet( bytes );
+        fileCount.incrementAndGet();
+        ageIndex.add( name, timestamp );
+    }
+
+    /**
+     * Unregisters data that was registered with {@link #recordAdded(String, long, long)}, after it has been deleted.
+     *
+     * @param name  the name of the data.
+     * @param bytes the amount of bytes that was used to store the data.
+     */
+    void recordRemoved( final String name, final long bytes )
+    {
+        usedBytes.addAndGet( -bytes );
+        fileCount.decrementAndGet();
+        ageIndex.remove( name );
+    }
+
+    /**
+     * Registers that storage that is not attributed to any particular data (eg: data shared by several files) was
+     * released.
+     *
+     * @param bytes the amount of bytes that was released.
+     */
+    void recordReleased( final long bytes )
+    {
+        usedBytes.addAndGet( -bytes );
+    }
+
+    private static boolean isMetadata( final Path path )
+    {
+        return path.getFileName().toString().endsWith( AbstractFileSystemRepository.METADATA_SUFFIX );
+    }
+
+    /**
+     * Performs a synchronous purge, after which periodic purges (and evictions, when a space policy is configured) are
+     * scheduled.
+     */
+    void start() throws IOException
+    {
+        scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactoryBuilder().setNameFormat( "xmppfileupload-cleanup" ).setDaemon( true ).build() );
+        deletionExecutor = Executors.newFixedThreadPool( deletionThreads, new ThreadFactoryBuilder().setNameFormat( "xmppfileupload-delete-%d" ).setDaemon( true ).build() );
+
+        purge();
+        evict();
+
+        schedulePurge();
+
+        if ( isSpacePolicyConfigured() )
+        {
+            Log.info( "Space policy: high watermark: {}, low watermark: {}, maximum repository size: {} bytes.", highWatermark, lowWatermark, maxBytes > 0 ? maxBytes : "(unlimited)" );
+            scheduler.scheduleWithFixedDelay( () -> {
+                try
+                {
+                    evict();
+                }
+                catch ( Exception e )
+                {
+                    Log.warn( "An unexpected error occurred while evicting files from the repository.", e );
+                }
+            }, EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    /**
+     * Schedules the next periodic purge, after the purge interval and a random amount of jitter.
+     */
+    private void schedulePurge()
+    {
+        final long jitter = purgeJitter.isZero() ? 0 : ThreadLocalRandom.current().nextLong( purgeJitter.toMillis() + 1 );
+        try
+        {
+            scheduler.schedule( () -> {
+                try
+                {
+                    purge();
+                    Log.debug( "Repository usage: {} files, {} bytes.", getFileCount(), getUsedBytes() );
+                    Log.debug( "Metadata cache statistics: {}", repository.getMetadataCacheStats() );
+                    if ( repository.getContentCacheSize() > 0 )
+                    {
+                        Log.debug( "Content cache statistics: {}", repository.getContentCacheStats() );
+                    }
+                }
+                catch ( Exception e )
+                {
+                    Log.warn( "An unexpected error occurred while purging the repository.", e );
+                }
+                finally
+                {
+                    schedulePurge();
+                }
+            }, purgeInterval.toMillis() + jitter, TimeUnit.MILLISECONDS );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            Log.debug( "Not scheduling another purge, as the repository is being destroyed." );
+        }
+    }
+
+    /**
+     * Cancels all scheduled purges and evictions, and stops deletions that are in progress.
+     */
+    void stop()
+    {
+        if ( scheduler != null )
+        {
+            scheduler.shutdownNow();
+        }
+        if ( deletionExecutor != null )
+        {
+            deletionExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Determines the amount of files and bytes used by published data, and the age of each file, by inspecting all files
+     * in the repository. The file system is queried in parallel, as this can take a long time for repositories that
+     * hold many files.
+     *
+     * This is done only once, after which the amounts and ages are maintained as data is published and deleted.
+     */
+    void calculateUsage() throws IOException
+    {
+        final long start = System.currentTimeMillis();
+        final List<Path> paths = repository.getLayout().listFiles();
+
+        final LongAdder bytes = new LongAdder();
+        final LongAdder files = new LongAdder();
+        final Set<Object> fileKeys = ConcurrentHashMap.newKeySet();
+        paths.parallelStream().forEach( path -> {
+            final BasicFileAttributes attributes;
+            try
+            {
+                attributes = Files.readAttributes( path, BasicFileAttributes.class );
+            }
+            catch ( IOException e )
+            {
+                Log.debug( "Unable to read attributes of {}. It is not accounted for.", path, e );
+                return;
+            }
+            if ( !attributes.isRegularFile() )
+            {
+                return;
+            }
+
+            // Files that are hard links to the same data take up space only once.
+            if ( attributes.fileKey() == null || fileKeys.add( attributes.fileKey() ) )
+            {
+                bytes.add( attributes.size() );
+            }
+            if ( !isMetadata( path ) )
+            {
+                files.increment();
+                repository.getLayout().recordAdded( path, -1 );
+                repository.recordStored( path.getFileName().toString(), attributes.lastModifiedTime().toMillis() );
+            }
+        } );
+
+        usedBytes.set( bytes.sum() );
+        fileCount.set( files.sum() );
+        Log.info( "Repository contains {} files, using {} bytes (calculated in {} ms).", fileCount.get(), usedBytes.get(), System.currentTimeMillis() - start );
+    }
+
+    /**
+     * Deletes data from the repository when the space that it uses exceeds the space that is still available. Data
+     * that was stored the longest time ago is deleted first. This default policy is not applied when a space policy is
+     * configured: then, space is reclaimed incrementally, by {@link #evict()}.
+     */
+    public void purge() throws IOException
+    {
+        final long start = System.nanoTime();
+        purgeAbandonedUploads();
+        purgeOrphanedMetadata();
+        purgeExpired( start );
+
+        if ( isSpacePolicyConfigured() )
+        {
+            // Space is reclaimed incrementally, by evict().
+            return;
+        }
+
+        final long used = getUsedBytes();
+        final long free = AbstractFileSystemRepository.getUsableSpace( repository.repository );
+        Log.debug( "The repository currently uses {} bytes, while there's {} bytes of usable space left.", used, free );
+
+        if ( used == 0 || used < free )
+        {
+            Log.debug( "No need to purge the repository, as the free space is larger than the used space." );
+            return;
+        }
+
+        // Purge until the used space is smaller than the free space: used - deleted < free + deleted.
+        final long needed = ( used - free ) / 2 + 1;
+
+        // Files stored the longest time ago are the first to be purged. Metadata files are purged together with the data
+        // that they describe. Uploads in progress are not indexed, and thus not purged.
+        long deletedTotal = 0;
+        while ( deletedTotal < needed && !isBudgetExhausted( start ) )
+        {
+            final List<String> batch = pollOldest( needed - deletedTotal, DELETION_BATCH_SIZE );
+            if ( batch.isEmpty() )
+            {
+                break;
+            }
+            deletedTotal += deletePublished( batch );
+        }
+
+        if ( deletedTotal < needed && isBudgetExhausted( start ) )
+        {
+            Log.info( "The repository was partially purged: {} bytes were deleted before the purge budget of {} was exhausted.", deletedTotal, purgeBudget );
+        }
+        else
+        {
+            Log.info( "The repository was purged: {} bytes were deleted.", deletedTotal );
+        }
+    }
+
+    private boolean isBudgetExhausted( final long start )
+    {
+        return purgeBudget != null && System.nanoTime() - start > purgeBudget.toNanos();
+    }
+
+    /**
+     * Evicts the oldest files when the used space on the file store exceeds the high watermark, or when the repository
+     * exceeds its maximum size. Once started, eviction continues over subsequent invocations, until usage has dropped to
+     * the low watermark and below the maximum size. Each invocation deletes at most {@link #getEvictionBatchSize()} files.
+     *
+     * This method does nothing when no space policy is configured.
+     */
+    void evict() throws IOException
+    {
+        if ( !isSpacePolicyConfigured() )
+        {
+            return;
+        }
+
+        final SpaceThreshold high = highWatermark != null ? highWatermark : lowWatermark;
+        final SpaceThreshold low = lowWatermark != null ? lowWatermark : highWatermark;
+
+        final FileStore store = repository.getManagedFileStore();
+        final long capacity = store.getTotalSpace();
+        final long storeUsed = capacity - store.getUsableSpace();
+
+        if ( !evicting )
+        {
+            final boolean aboveHigh = high != null && storeUsed > high.toBytes( capacity );
+            final boolean aboveMax = maxBytes > 0 && getUsedBytes() > maxBytes;
+            if ( !aboveHigh && !aboveMax )
+            {
+                return;
+            }
+            Log.info( "Starting eviction: the file store has {} bytes in use (high watermark: {}), the repository uses {} bytes (maximum: {}).", storeUsed, high, getUsedBytes(), maxBytes > 0 ? maxBytes : "(unlimited)" );
+            evicting = true;
+        }
+
+        // The amount of bytes to reclaim to drop to the low watermark, as well as to the maximum repository size.
+        final long lowBytes = low == null ? Long.MAX_VALUE : Math.min( low.toBytes( capacity ), high.toBytes( capacity ) );
+        final long needed = Math.max( storeUsed - lowBytes, maxBytes > 0 ? getUsedBytes() - maxBytes : 0 );
+
+        long deleted = 0;
+        if ( needed > 0 )
+        {
+            final List<String> batch = pollOldest( needed, evictionBatchSize );
+            if ( batch.isEmpty() )
+            {
+                Log.warn( "Unable to reclaim more space: the repository is empty, but the file store has {} bytes in use.", storeUsed );
+                evicting = false;
+                return;
+            }
+            deleted = deletePublished( batch );
+            Log.debug( "Evicted {} files ({} bytes) from the repository.", batch.size(), deleted );
+        }
+
+        if ( deleted >= needed )
+        {
+            evicting = false;
+            Log.info( "Eviction completed: the file store has approximately {} bytes in use, the repository uses {} bytes.", storeUsed - deleted, getUsedBytes() );
+        }
+    }
+
+    /**
+     * Removes data that is older than the maximum file age, if one is configured.
+     *
+     * @param start the moment (as obtained from {@link System#nanoTime()}) at which the purge started.
+     */
+    void purgeExpired( final long start ) throws IOException
+    {
+        if ( maxFileAge == null )
+        {
+            return;
+        }
+
+        final long cutoff = getExpiryCutoff();
+        long deletedTotal = 0;
+        int count = 0;
+        while ( !isBudgetExhausted( start ) )
+        {
+            final List<String> batch = new ArrayList<>();
+            String name;
+            while ( batch.size() < DELETION_BATCH_SIZE && ( name = ageIndex.pollOldestBefore( cutoff ) ) != null )
+            {
+                batch.add( name );
+            }
+            if ( batch.isEmpty() )
+            {
+                break;
+            }
+            deletedTotal += deletePublished( batch );
+            count += batch.size();
+        }
+
+        if ( count > 0 )
+        {
+            Log.info( "The repository was purged of {} files that were older than {}: {} bytes were deleted.", count, maxFileAge, deletedTotal );
+        }
+    }
+
+    /**
+     * Takes the oldest files from the age index, until their combined size reaches an amount of bytes, or until a
+     * maximum amount of files has been taken.
+     *
+     * @return the names of the files (possibly empty, never null).
+     */
+    private List<String> pollOldest( final long bytes, final int max )
+    {
+        final List<String> result = new ArrayList<>();
+        long selected = 0;
+        String name;
+        while ( selected < bytes && result.size() < max && ( name = ageIndex.pollOldest() ) != null )
+        {
+            result.add( name );
+            selected += repository.getStoredSize( name );
+        }
+        return result;
+    }
+
+    /**
+     * Deletes published files and their metadata, in parallel.
+     *
+     * @return the amount of bytes that were deleted.
+     */
+    private long deletePublished( final List<String> names ) throws IOException
+    {
+        final List<Callable<Long>> tasks = new ArrayList<>( names.size() );
+        for ( final String name : names )
+        {
+            tasks.add( () -> Math.max( 0, repository.deletePublished( name ) ) );
+        }
+        return deleteInParallel( tasks );
+    }
+
+    /**
+     * Executes deletions in parallel, waiting for all of them to finish.
+     *
+     * @param tasks deletions, each returning the amount of bytes that it deleted.
+     * @return the combined amount of bytes that were deleted.
+     */
+    private long deleteInParallel( final Collection<Callable<Long>> tasks ) throws IOException
+    {
+        final List<Future<Long>> futures;
+        try
+        {
+            futures = deletionExecutor.invokeAll( tasks );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while deleting files." );
+        }
+
+        long result = 0;
+        IOException failure = null;
+        for ( final Future<Long> future : futures )
+        {
+            try
+            {
+                result += future.get();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while deleting files." );
+            }
+            catch ( ExecutionException e )
+            {
+                final IOException cause = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException( e.getCause() );
+                if ( failure == null )
+                {
+                    failure = cause;
+                }
+                else
+                {
+                    failure.addSuppressed( cause );
+                }
+            }
+        }
+
+        if ( failure != null )
+        {
+            throw failure;
+        }
+        return result;
+    }
+
+    /**
+     * Removes data from the staging directory that belongs to uploads that have not progressed for a long time.
+     *
+     * Data that is retained (eg: of uploads that have been received completely, but that wait to be scanned for malware)
+     * is not abandoned, regardless of how long ago it was received.
+     */
+    void purgeAbandonedUploads() throws IOException
+    {
+        final File[] staged = repository.getStagingDirectory().toFile().listFiles( file -> file.lastModified() < System.currentTimeMillis() - AbstractFileSystemRepository.STAGING_EXPIRY_MILLIS && !repository.isRetained( file.getName() ) );
+        if ( staged == null )
+        {
+            return;
+        }
+
+        final List<Callable<Long>> tasks = new ArrayList<>( staged.length );
+        for ( final File file : staged )
+        {
+            tasks.add( () -> {
+                final long deleted = AbstractFileSystemRepository.delete( file.toPath() );
+                repository.removeStagedDigest( file.getName() );
+                Log.info( "Purging repository: deleting data of abandoned upload: {} ({} bytes)", file, deleted );
+                return deleted;
+            } );
+        }
+        deleteInParallel( tasks );
+    }
+
+    /**
+     * Removes metadata of data that was never moved into place, which is left behind when the application stops while
+     * publishing. Only metadata that has not been modified for a long time is removed, to not interfere with uploads
+     * that are being published.
+     */
+    void purgeOrphanedMetadata() throws IOException
+    {
+        final String suffix = AbstractFileSystemRepository.METADATA_SUFFIX;
+        final long cutoff = System.currentTimeMillis() - AbstractFileSystemRepository.STAGING_EXPIRY_MILLIS;
+        for ( final Path path : repository.getLayout().listFiles() )
+        {
+            final String name = path.getFileName().toString();
+            if ( !name.endsWith( suffix ) || path.toFile().lastModified() >= cutoff )
+            {
+                continue;
+            }
+
+            // The data can be stored in the other layout while the repository is being migrated, or in another storage tier.
+            if ( !Files.exists( repository.getPath( name.substring( 0, name.length() - suffix.length() ) ) ) )
+            {
+                Log.info( "Purging repository: deleting metadata of data that does not exist: {} ({} bytes)", path, repository.deletePublished( path ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,705 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.goodbytes.xmpp.xep0363.FileMetadata;
+
+/**
+ * Stores many small blobs of data in a few large files ('segments'), to avoid the per-file overhead (inodes, directory
+ * entries, file system metadata lookups) of storing each blob in a file of its own.
+ *
+ * Blobs are appended, together with their metadata, to the active segment. Deleting a blob appends a 'tombstone' record.
+ * The location of every blob is held in an in-memory index, which is rebuilt by reading the record headers of all
+ * segments when the store is opened. Once a segment is full, it is sealed and memory-mapped for reading. Sealed segments
+ * that hold mostly deleted data are compacted: their remaining blobs are copied to the active segment, after which the
+ * sealed segment is removed.
+ *
+ * Each record is laid out as follows: a header of fixed size (magic, type, length of name, length of metadata, length of
+ * data), the name, the metadata, a CRC32 checksum, and finally the data. The checksum covers all other bytes of the
+ * record, including the data. Records are forced to the storage device before they are added to the index, so that a
+ * record that is acknowledged survives a crash.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+class SegmentStore
+{
+    private static final Logger Log = LoggerFactory.getLogger( SegmentStore.class );
+
+    static final int MAGIC = 0x58465553;
+
+    static final byte TYPE_PUT = 1;
+
+    static final byte TYPE_DELETE = 2;
+
+    // magic (4), type (1), length of name (4), length of metadata (4), length of data (8).
+    private static final int FIXED_HEADER_LENGTH = 21;
+
+    private static final int CHECKSUM_LENGTH = 4;
+
+    private static final int MAX_NAME_LENGTH = 1024;
+
+    private static final int MAX_METADATA_LENGTH = 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    /**
+     * The location of a blob in a segment.
+     */
+    static class Entry
+    {
+        final long segmentId;
+        final long recordOffset;
+        final long recordLength;
+        final long dataOffset;
+        final int dataLength;
+        final FileMetadata metadata;
+
+        Entry( long segmentId, long recordOffset, long recordLength, long dataOffset, int dataLength, FileMetadata metadata )
+        {
+            this.segmentId = segmentId;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+            this.metadata = metadata;
+        }
+    }
+
+    private static class Segment
+    {
+        final long id;
+        final Path path;
+        final FileChannel channel;
+
+        // The amount of bytes used by records that are still referenced by the index.
+        final AtomicLong liveBytes = new AtomicLong( 0 );
+
+        // The amount of bytes that have been written.
+        volatile long size;
+
+        // Set once the segment is sealed: no more data is appended after that.
+        volatile MappedByteBuffer mapped;
+
+        Segment( long id, Path path, FileChannel channel )
+        {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * A record header, as read from a segment.
+     */
+    private static class Header
+    {
+        final byte type;
+        final String name;
+        final byte[] metadata;
+        final long headerLength;
+        final long dataLength;
+
+        Header( byte type, String name, byte[] metadata, long headerLength, long dataLength )
+        {
+            this.type = type;
+            this.name = name;
+            this.metadata = metadata;
+            this.headerLength = headerLength;
+            this.dataLength = dataLength;
+        }
+
+        long getRecordLength()
+        {
+            return headerLength + dataLength;
+        }
+    }
+
+    private final Path directory;
+
+    private final long segmentSize;
+
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // The segment to which data is appended. Guarded by 'this'.
+    private Segment active;
+
+    /**
+     * @param directory   The directory in which segments are stored.
+     * @param segmentSize The size (in bytes) at which a segment is sealed. At most Integer.MAX_VALUE.
+     */
+    SegmentStore( Path directory, long segmentSize )
+    {
+        if ( segmentSize <= 0 || segmentSize > Integer.MAX_VALUE )
+        {
+            throw new IllegalArgumentException( "Segment size must be positive, and cannot exceed " + Integer.MAX_VALUE + ": " + segmentSize );
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens all existing segments, rebuilding the index.
+     */
+    synchronized void open() throws IOException
+    {
+        Files.createDirectories( directory );
+
+        final List<Path> paths;
+        try ( final Stream<Path> stream = Files.list( directory ) )
+        {
+            paths = stream.filter( path -> parseSegmentId( path ) >= 0 ).sorted( ( a, b ) -> Long.compare( parseSegmentId( a ), parseSegmentId( b ) ) ).collect( Collectors.toList() );
+        }
+
+        for ( final Path path : paths )
+        {
+            final Segment segment = new Segment( parseSegmentId( path ), path, FileChannel.open( path, READ, WRITE ) );
+            segments.put( segment.id, segment );
+            scan( segment );
+        }
+
+        for ( final Entry entry : index.values() )
+        {
+            segments.get( entry.segmentId ).liveBytes.addAndGet( entry.recordLength );
+        }
+
+        for ( final Segment segment : segments.values() )
+        {
+            if ( segment.id == segments.lastKey() && segment.size < segmentSize )
+            {
+                active = segment;
+            }
+            else
+            {
+                seal( segment );
+            }
+        }
+        Log.info( "Opened {} segments in {}, holding {} blobs.", segments.size(), directory, index.size() );
+    }
+
+    /**
+     * Closes all segments. The store cannot be used after this.
+     */
+    synchronized void close()
+    {
+        for ( final Segment segment : segments.values() )
+        {
+            try
+            {
+                segment.channel.close();
+            }
+            catch ( IOException e )
+            {
+                Log.debug( "Unable to close segment {}.", segment.path, e );
+            }
+        }
+        segments.clear();
+        index.clear();
+        active = null;
+    }
+
+    /**
+     * Reads the record headers of a segment, updating the index. A record that is incomplete or corrupt (eg: because the
+     * application stopped while it was written) and all data that follows it is discarded.
+     */
+    private void scan( Segment segment ) throws IOException
+    {
+        final long fileSize = segment.channel.size();
+        long position = 0;
+        while ( position < fileSize )
+        {
+            final Header header = readHeader( segment.channel, position, fileSize, true );
+            if ( header == null )
+            {
+                Log.warn( "Segment {} is incomplete or corrupt at offset {}. Discarding the remaining {} bytes.", segment.path, position, fileSize - position );
+                segment.channel.truncate( position );
+                break;
+            }
+
+            if ( header.type == TYPE_PUT )
+            {
+                index.put( header.name, new Entry( segment.id, position, header.getRecordLength(), position + header.headerLength, (int) header.dataLength, FileMetadata.fromBytes( header.metadata ) ) );
+            }
+            else
+            {
+                index.remove( header.name );
+            }
+            position += header.getRecordLength();
+        }
+        segment.size = position;
+    }
+
+    /**
+     * Reads a record header.
+     *
+     * @param verifyData true to verify the checksum of the record, which requires all of its data to be read.
+     * @return the header, or null when no valid, complete record is found at the provided position.
+     */
+    private static Header readHeader( FileChannel channel, long position, long limit, boolean verifyData ) throws IOException
+    {
+        if ( position + FIXED_HEADER_LENGTH + CHECKSUM_LENGTH > limit )
+        {
+            return null;
+        }
+
+        final ByteBuffer fixed = ByteBuffer.allocate( FIXED_HEADER_LENGTH );
+        readFully( channel, fixed, position );
+        fixed.flip();
+        final int magic = fixed.getInt();
+        final byte type = fixed.get();
+        final int nameLength = fixed.getInt();
+        final int metadataLength = fixed.getInt();
+        final long dataLength = fixed.getLong();
+        if ( magic != MAGIC || ( type != TYPE_PUT && type != TYPE_DELETE ) || nameLength <= 0 || nameLength > MAX_NAME_LENGTH || metadataLength < 0 || metadataLength > MAX_METADATA_LENGTH || dataLength < 0 || dataLength > Integer.MAX_VALUE )
+        {
+            return null;
+        }
+
+        final long headerLength = FIXED_HEADER_LENGTH + nameLength + metadataLength + CHECKSUM_LENGTH;
+        if ( position + headerLength + dataLength > limit )
+        {
+            return null;
+        }
+
+        final ByteBuffer variable = ByteBuffer.allocate( nameLength + metadataLength + CHECKSUM_LENGTH );
+        readFully( channel, variable, position + FIXED_HEADER_LENGTH );
+        variable.flip();
+
+        final CRC32 crc = new CRC32();
+        crc.update( fixed.array() );
+        crc.update( variable.array(), 0, nameLength + metadataLength );
+
+        final byte[] name = new byte[ nameLength ];
+        variable.get( name );
+        final byte[] metadata = new byte[ metadataLength ];
+        variable.get( metadata );
+        final int checksum = variable.getInt();
+        if ( verifyData )
+        {
+            final ByteBuffer data = ByteBuffer.allocate( (int) Math.min( dataLength, 64 * 1024 ) );
+            long read = 0;
+            while ( read < dataLength )
+            {
+                data.clear().limit( (int) Math.min( data.capacity(), dataLength - read ) );
+                readFully( channel, data, position + headerLength + read );
+                crc.update( data.array(), 0, data.limit() );
+                read += data.limit();
+            }
+            if ( checksum != (int) crc.getValue() )
+            {
+                return null;
+            }
+        }
+
+        return new Header( type, new String( name, StandardCharsets.UTF_8 ), metadata, headerLength, dataLength );
+    }
+
+    private static ByteBuffer createHeader( byte type, String name, byte[] metadata, ByteBuffer data )
+    {
+        final long dataLength = data.remaining();
+        final byte[] nameBytes = name.getBytes( StandardCharsets.UTF_8 );
+        final ByteBuffer result = ByteBuffer.allocate( FIXED_HEADER_LENGTH + nameBytes.length + metadata.length + CHECKSUM_LENGTH );
+        result.putInt( MAGIC );
+        result.put( type );
+        result.putInt( nameBytes.length );
+        result.putInt( metadata.length );
+        result.putLong( dataLength );
+        result.put( nameBytes );
+        result.put( metadata );
+
+        final CRC32 crc = new CRC32();
+        crc.update( result.array(), 0, result.position() );
+        crc.update( data.duplicate() );
+        result.putInt( (int) crc.getValue() );
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Appends a blob to the store, replacing any blob with the same name.
+     *
+     * @param name     The name of the blob.
+     * @param metadata The metadata of the blob.
+     * @param data     The file that holds the data of the blob (at most Integer.MAX_VALUE bytes).
+     * @return The location of the blob.
+     */
+    synchronized Entry put( String name, FileMetadata metadata, Path data ) throws IOException
+    {
+        try ( final FileChannel in = FileChannel.open( data, READ ) )
+        {
+            final long dataLength = in.size();
+            if ( dataLength > Integer.MAX_VALUE )
+            {
+                throw new IOException( "Data of " + name + " is too large to be stored in a segment: " + dataLength + " bytes." );
+            }
+
+            // The data is read into memory, as the checksum in the header covers it. Only small blobs are stored in segments.
+            final ByteBuffer content = ByteBuffer.allocate( (int) dataLength );
+            while ( content.hasRemaining() )
+            {
+                if ( in.read( content ) < 0 )
+                {
+                    throw new EOFException( "Data of " + name + " ended prematurely: " + content.remaining() + " bytes are missing." );
+                }
+            }
+            content.flip();
+
+            final ByteBuffer header = createHeader( TYPE_PUT, name, metadata.toBytes(), content );
+            final long recordLength = header.remaining() + dataLength;
+            final Segment segment = getActive( recordLength );
+            final long offset = segment.size;
+            final long dataOffset = offset + header.remaining();
+
+            writeFully( segment.channel, header, offset );
+            writeFully( segment.channel, content, dataOffset );
+            segment.channel.force( false );
+
+            return register( name, segment, offset, recordLength, dataOffset, (int) dataLength, metadata );
+        }
+    }
+
+    /**
+     * Removes a blob from the store.
+     *
+     * @param name The name of the blob.
+     * @return the entry of the blob that was removed, or null if no such blob existed.
+     */
+    synchronized Entry delete( String name ) throws IOException
+    {
+        final Entry entry = index.get( name );
+        if ( entry == null )
+        {
+            return null;
+        }
+
+        // Record the deletion before updating the index, so that the blob does not reappear when the store is reopened.
+        final ByteBuffer tombstone = createHeader( TYPE_DELETE, name, new byte[ 0 ], ByteBuffer.allocate( 0 ) );
+        final Segment segment = getActive( tombstone.remaining() );
+        final long offset = segment.size;
+        writeFully( segment.channel, tombstone, offset );
+        segment.channel.force( false );
+        segment.size = offset + tombstone.capacity();
+
+        index.remove( name );
+        markDead( entry );
+        return entry;
+    }
+
+    Entry get( String name )
+    {
+        return index.get( name );
+    }
+
+    int size()
+    {
+        return index.size();
+    }
+
+    /**
+     * Invokes an action for every blob in the store.
+     */
+    void forEach( BiConsumer<String, Entry> action )
+    {
+        index.forEach( action );
+    }
+
+    /**
+     * Returns the data of a blob, as a read-only buffer. For blobs in sealed segments, this is a view of the
+     * memory-mapped segment, not a copy.
+     *
+     * @param name The name of the blob.
+     * @return the data, or null if no such blob exists.
+     */
+    ByteBuffer read( String name ) throws IOException
+    {
+        return read( name, false );
+    }
+
+    /**
+     * Returns the data of a blob that is stored in a sealed segment, as a read-only view of the memory-mapped segment.
+     *
+     * @param name The name of the blob.
+     * @return the data, or null if no such blob exists, or if it is stored in the active segment (that is not mapped).
+     */
+    ByteBuffer readMapped( String name ) throws IOException
+    {
+        return read( name, true );
+    }
+
+    private ByteBuffer read( String name, boolean mappedOnly ) throws IOException
+    {
+        // A blob can be moved by a concurrent compaction. When that happens, its location is looked up again.
+        for ( int attempt = 0; ; attempt++ )
+        {
+            final Entry entry = index.get( name );
+            if ( entry == null )
+            {
+                return null;
+            }
+
+            try
+            {
+                final ByteBuffer result = read( entry, mappedOnly );
+                if ( result != null )
+                {
+                    return result;
+                }
+            }
+            catch ( ClosedChannelException e )
+            {
+                if ( attempt > 0 )
+                {
+                    throw e;
+                }
+            }
+
+            if ( attempt > 0 )
+            {
+                return null;
+            }
+        }
+    }
+
+    private ByteBuffer read( Entry entry, boolean mappedOnly ) throws IOException
+    {
+        final Segment segment = segments.get( entry.segmentId );
+        if ( segment == null )
+        {
+            return null;
+        }
+
+        final MappedByteBuffer mapped = segment.mapped;
+        if ( mapped != null )
+        {
+            final ByteBuffer view = mapped.duplicate();
+            view.position( (int) entry.dataOffset ).limit( (int) entry.dataOffset + entry.dataLength );
+            return view.slice().asReadOnlyBuffer();
+        }
+        if ( mappedOnly )
+        {
+            return null;
+        }
+
+        final ByteBuffer result = ByteBuffer.allocate( entry.dataLength );
+        readFully( segment.channel, result, entry.dataOffset );
+        result.flip();
+        return result.asReadOnlyBuffer();
+    }
+
+    /**
+     * Compacts all sealed segments of which less than a particular fraction of the content is still in use.
+     *
+     * @param threshold a fraction (between 0 and 1).
+     * @return The amount of segments that were compacted.
+     */
+    int compact( double threshold ) throws IOException
+    {
+        int result = 0;
+        for ( final Segment segment : new ArrayList<>( segments.values() ) )
+        {
+            if ( segment.mapped != null && segment.liveBytes.get() < segment.size * threshold )
+            {
+                compact( segment );
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private void compact( Segment segment ) throws IOException
+    {
+        final long start = System.currentTimeMillis();
+        final long liveBytes = segment.liveBytes.get();
+
+        // Tombstones need to be retained as long as older segments (that can hold the data that they delete) exist.
+        final boolean isOldest = segments.firstKey() == segment.id;
+
+        long position = 0;
+        while ( position < segment.size )
+        {
+            // The records of a sealed segment were verified when the store was opened, or forced when they were written.
+            final Header header = readHeader( segment.channel, position, segment.size, false );
+            if ( header == null )
+            {
+                throw new IOException( "Segment " + segment.path + " is corrupt at offset " + position + ". Unable to compact it." );
+            }
+
+            synchronized ( this )
+            {
+                if ( header.type == TYPE_PUT )
+                {
+                    final Entry entry = index.get( header.name );
+                    if ( entry != null && entry.segmentId == segment.id && entry.recordOffset == position )
+                    {
+                        final ByteBuffer record = segment.mapped.duplicate();
+                        record.position( (int) position ).limit( (int) ( position + header.getRecordLength() ) );
+                        final Segment target = getActive( header.getRecordLength() );
+                        final long offset = target.size;
+                        writeFully( target.channel, record.slice(), offset );
+                        register( header.name, target, offset, header.getRecordLength(), offset + header.headerLength, entry.dataLength, entry.metadata );
+                    }
+                }
+                else if ( !isOldest )
+                {
+                    final ByteBuffer tombstone = createHeader( TYPE_DELETE, header.name, new byte[ 0 ], ByteBuffer.allocate( 0 ) );
+                    final Segment target = getActive( tombstone.remaining() );
+                    final long offset = target.size;
+                    writeFully( target.channel, tombstone, offset );
+                    target.size = offset + tombstone.capacity();
+                }
+            }
+            position += header.getRecordLength();
+        }
+
+        synchronized ( this )
+        {
+            // The copies are forced before the segment that holds the originals is removed.
+            if ( active != null )
+            {
+                active.channel.force( false );
+            }
+            segments.remove( segment.id );
+        }
+        segment.channel.close();
+        Files.delete( segment.path );
+        Log.debug( "Compacted segment {} ({} of {} bytes were in use) in {} ms.", segment.path, liveBytes, segment.size, System.currentTimeMillis() - start );
+    }
+
+    // Must be invoked while holding the lock on 'this'.
+    private Entry register( String name, Segment segment, long offset, long recordLength, long dataOffset, int dataLength, FileMetadata metadata )
+    {
+        segment.size = offset + recordLength;
+        segment.liveBytes.addAndGet( recordLength );
+
+        final Entry entry = new Entry( segment.id, offset, recordLength, dataOffset, dataLength, metadata );
+        final Entry previous = index.put( name, entry );
+        if ( previous != null )
+        {
+            markDead( previous );
+        }
+        return entry;
+    }
+
+    private void markDead( Entry entry )
+    {
+        final Segment segment = segments.get( entry.segmentId );
+        if ( segment != null )
+        {
+            segment.liveBytes.addAndGet( -entry.recordLength );
+        }
+    }
+
+    /**
+     * Returns the segment to which a record of a particular length is to be appended, sealing the active segment and
+     * creating a new one when needed. Must be invoked while holding the lock on 'this'.
+     */
+    private Segment getActive( long recordLength ) throws IOException
+    {
+        if ( active != null && ( active.size == 0 || active.size + recordLength <= segmentSize ) )
+        {
+            return active;
+        }
+
+        if ( active != null )
+        {
+            seal( active );
+        }
+
+        final long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        final Path path = directory.resolve( String.format( "%s%016x%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX ) );
+        active = new Segment( id, path, FileChannel.open( path, CREATE_NEW, READ, WRITE ) );
+        segments.put( id, active );
+        Log.debug( "Created segment {}.", path );
+        return active;
+    }
+
+    private void seal( Segment segment ) throws IOException
+    {
+        segment.channel.force( false );
+        segment.mapped = segment.channel.map( FileChannel.MapMode.READ_ONLY, 0, segment.size );
+        if ( segment == active )
+        {
+            active = null;
+        }
+    }
+
+    private static long parseSegmentId( Path path )
+    {
+        final String name = path.getFileName().toString();
+        if ( !name.startsWith( SEGMENT_PREFIX ) || !name.endsWith( SEGMENT_SUFFIX ) )
+        {
+            return -1;
+        }
+        try
+        {
+            return Long.parseLong( name.substring( SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length() ), 16 );
+        }
+        catch ( NumberFormatException e )
+        {
+            return -1;
+        }
+    }
+
+    private static void readFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException
+    {
+        while ( buffer.hasRemaining() )
+        {
+            if ( channel.read( buffer, position + buffer.position() ) < 0 )
+            {
+                throw new EOFException( "Unexpected end of segment at offset " + ( position + buffer.position() ) + "." );
+            }
+        }
+    }
+
+    private static void writeFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException
+    {
+        long offset = position;
+        while ( buffer.hasRemaining() )
+        {
+            offset += channel.write( buffer, offset );
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import nl.goodbytes.xmpp.xep0363.FileMetadata;
+import nl.goodbytes.xmpp.xep0363.Repository;
+import nl.goodbytes.xmpp.xep0363.SecureUniqueId;
+import nl.goodbytes.xmpp.xep0363.Slot;
+
+/**
+ * A repository that stores small files in segments: large files that each hold many small files, rather than in a file
+ * of their own. This reduces the amount of files (and thus the file system overhead) when many small files are stored.
+ *
+ * Larger files are stored by the repository that is decorated. Files that are already stored in the repository remain
+ * where they are. Files that are stored in segments are subject to the purges and evictions of the decorated repository.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public class SegmentedRepository extends FileSystemRepositoryDecorator implements StorageExtension
+{
+    private static final Logger Log = LoggerFactory.getLogger( SegmentedRepository.class );
+
+    /**
+     * The name of the directory (in the repository) that holds the segments.
+     */
+    public static final String SEGMENTS_DIRECTORY = ".segments";
+
+    /**
+     * The default size (in bytes) at which a segment is sealed, after which data is appended to a new segment.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The interval at which segments are compacted.
+     */
+    public static final Duration COMPACTION_INTERVAL = Duration.ofMinutes( 10 );
+
+    /**
+     * A sealed segment is compacted when less than this fraction of its content is still in use.
+     */
+    public static final double COMPACTION_THRESHOLD = 0.5;
+
+    private final long maxFileSize;
+
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    private SegmentStore segmentStore;
+
+    private ScheduledExecutorService compactionExecutor;
+
+    /**
+     * @param delegate    The repository to decorate: a file system repository, or a decorator of one.
+     * @param maxFileSize The maximum size (in bytes) of files that are stored in segments.
+     */
+    public SegmentedRepository( final Repository delegate, final long maxFileSize )
+    {
+        super( delegate );
+        if ( maxFileSize <= 0 )
+        {
+            throw new IllegalArgumentException( "Maximum file size must be positive: " + maxFileSize );
+        }
+        this.maxFileSize = maxFileSize;
+        repository.addStorageExtension( this );
+    }
+
+    public long getMaxFileSize()
+    {
+        return maxFileSize;
+    }
+
+    /**
+     * Sets the size at which a segment is sealed, after which data is appended to a new segment. Sealed segments are
+     * memory-mapped for reading. Must be invoked before {@link #initialize()}.
+     *
+     * @param segmentSize an amount of bytes, at most Integer.MAX_VALUE.
+     */
+    public void setSegmentSize( long segmentSize )
+    {
+        if ( segmentSize <= 0 || segmentSize > Integer.MAX_VALUE )
+        {
+            throw new IllegalArgumentException( "Segment size must be positive, and cannot exceed " + Integer.MAX_VALUE + ": " + segmentSize );
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public long getSegmentSize()
+    {
+        return segmentSize;
+    }
+
+    /**
+     * Returns the amount of files that are stored in segments.
+     */
+    public int getSegmentedFileCount()
+    {
+        return segmentStore == null ? 0 : segmentStore.size();
+    }
+
+    @Override
+    public void initialize() throws IOException
+    {
+        super.initialize();
+
+        compactionExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactoryBuilder().setNameFormat( "xmppfileupload-compaction" ).setDaemon( true ).build() );
+        compactionExecutor.scheduleWithFixedDelay( () -> {
+            try
+            {
+                final int compacted = segmentStore.compact( COMPACTION_THRESHOLD );
+                Log.debug( "Compacted {} segments.", compacted );
+            }
+            catch ( Exception e )
+            {
+                Log.warn( "An unexpected error occurred while compacting segments.", e );
+            }
+        }, COMPACTION_INTERVAL.toMillis(), COMPACTION_INTERVAL.toMillis(), TimeUnit.MILLISECONDS );
+    }
+
+    @Override
+    public void destroy()
+    {
+        if ( compactionExecutor != null )
+        {
+            compactionExecutor.shutdownNow();
+        }
+        super.destroy();
+    }
+
+    /**
+     * Opens the segments, and adds the files that they hold to the usage accounting of the repository.
+     */
+    @Override
+    public void open() throws IOException
+    {
+        segmentStore = new SegmentStore( repository.resolve( SEGMENTS_DIRECTORY ), segmentSize );
+        segmentStore.open();
+        segmentStore.forEach( ( name, entry ) -> repository.recordAdded( name, entry.recordLength, entry.metadata.getCreationDate().getTime() ) );
+        Log.info( "Files of up to {} bytes are stored in segments. Segments currently hold {} files.", maxFileSize, segmentStore.size() );
+    }
+
+    @Override
+    public void close()
+    {
+        if ( segmentStore != null )
+        {
+            segmentStore.close();
+        }
+    }
+
+    @Override
+    public long getStoredSize( String name )
+    {
+        final SegmentStore.Entry entry = segmentStore.get( name );
+        return entry == null ? -1 : entry.recordLength;
+    }
+
+    @Override
+    public long delete( String name ) throws IOException
+    {
+        final SegmentStore.Entry entry = segmentStore.delete( name );
+        if ( entry == null )
+        {
+            return -1;
+        }
+        repository.recordRemoved( name, entry.recordLength );
+        return entry.recordLength;
+    }
+
+    @Override
+    public FileMetadata getMetadata( SecureUniqueId uuid )
+    {
+        final SegmentStore.Entry entry = segmentStore.get( uuid.toString() );
+        if ( entry == null )
+        {
+            return super.getMetadata( uuid );
+        }
+
+        // Expired data is treated as absent, even if it has not been deleted yet.
+        return repository.getPurger().isExpired( entry.metadata ) ? null : entry.metadata;
+    }
+
+    @Override
+    protected FileMetadata publish( Slot slot, FileMetadata metadata ) throws IOException
+    {
+        if ( metadata.getSize() > maxFileSize )
+        {
+            return super.publish( slot, metadata );
+        }
+
+        final String name = slot.getUuid().toString();
+        final Path staged = repository.getStagingPath( slot.getUuid() );
+        final SegmentStore.Entry replaced = segmentStore.get( name );
+        final SegmentStore.Entry entry = segmentStore.put( name, metadata, staged );
+        Files.delete( staged );
+        if ( replaced != null )
+        {
+            repository.recordRemoved( name, replaced.recordLength );
+        }
+        repository.recordAdded( name, entry.recordLength, metadata.getCreationDate().getTime() );
+        repository.invalidateCaches( slot.getUuid() );
+        Log.debug( "UUID '{}' stored in a segment, with metadata: {}", slot.getUuid(), metadata );
+        return metadata;
+    }
+
+    @Override
+    public InputStream getInputStream( SecureUniqueId uuid ) throws IOException
+    {
+        final ByteBuffer segmented = segmentStore.read( uuid.toString() );
+        return segmented != null ? Channels.newInputStream( new ByteBufferChannel( segmented ) ) : super.getInputStream( uuid );
+    }
+
+    @Override
+    public ReadableByteChannel getReadableChannel( SecureUniqueId uuid ) throws IOException
+    {
+        final ByteBuffer segmented = segmentStore.read( uuid.toString() );
+        return segmented != null ? new ByteBufferChannel( segmented ) : super.getReadableChannel( uuid );
+    }
+
+    @Override
+    public ReadableByteChannel getReadableChannel( SecureUniqueId uuid, long position ) throws IOException
+    {
+        final ByteBuffer segmented = segmentStore.read( uuid.toString() );
+        if ( segmented == null )
+        {
+            return super.getReadableChannel( uuid, position );
+        }
+        segmented.position( (int) Math.min( position, segmented.limit() ) );
+        return new ByteBufferChannel( segmented );
+    }
+
+    @Override
+    public ReadableByteChannel getEncodedChannel( SecureUniqueId uuid ) throws IOException
+    {
+        // Data in segments is stored as it was uploaded.
+        final ByteBuffer segmented = segmentStore.read( uuid.toString() );
+        return segmented != null ? new ByteBufferChannel( segmented ) : super.getEncodedChannel( uuid );
+    }
+
+    @Override
+    public ByteBuffer getCachedContent( SecureUniqueId uuid ) throws IOException
+    {
+        if ( segmentStore.get( uuid.toString() ) == null )
+        {
+            return super.getCachedContent( uuid );
+        }
+
+        // Data in sealed segments is memory-mapped already. Caching it would only duplicate it. Data in the active segment
+        // is not held in memory: it is read from disk instead.
+        return segmentStore.readMapped( uuid.toString() );
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.repository;
+
+/**
+ * An amount of used space on a file store, expressed either as an absolute amount of bytes, or as a percentage of the
+ * total capacity of the file store.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public class SpaceThreshold
+{
+    private final long bytes;
+    private final double percentage;
+
+    private SpaceThreshold( long bytes, double percentage )
+    {
+        this.bytes = bytes;
+        this.percentage = percentage;
+    }
+
+    public static SpaceThreshold ofBytes( long bytes )
+    {
+        if ( bytes < 0 )
+        {
+            throw new IllegalArgumentException( "Amount of bytes cannot be negative: " + bytes );
+        }
+        return new SpaceThreshold( bytes, -1 );
+    }
+
+    public static SpaceThreshold ofPercentage( double percentage )
+    {
+        if ( !Double.isFinite( percentage ) || percentage < 0 || percentage > 100 )
+        {
+            throw new IllegalArgumentException( "Percentage must be a number in the range of 0 to 100: " + percentage );
+        }
+        return new SpaceThreshold( -1, percentage );
+    }
+
+    /**
+     * Parses a textual representation, being either an amount of bytes (eg: '1073741824') or a percentage (eg: '80%').
+     *
+     * @param value The value to parse.
+     * @return A threshold.
+     * @throws IllegalArgumentException when the value cannot be parsed.
+     */
+    public static SpaceThreshold parse( String value )
+    {
+        final String trimmed = value.trim();
+        try
+        {
+            if ( trimmed.endsWith( "%" ) )
+            {
+                return ofPercentage( Double.parseDouble( trimmed.substring( 0, trimmed.length() - 1 ).trim() ) );
+            }
+            return ofBytes( Long.parseLong( trimmed ) );
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new IllegalArgumentException( "Not an amount of bytes or a percentage: " + value, e );
+        }
+    }
+
+    /**
+     * Returns the amount of bytes represented by this threshold.
+     *
+     * @param capacity The total capacity (in bytes) of the file store that this threshold applies to.
+     * @return an amount of bytes.
+     */
+    public long toBytes( long capacity )
+    {
+        return bytes >= 0 ? bytes : (long) ( capacity * percentage / 100 );
+    }
+
+    @Override
+    public String toString()
+    {
+        return bytes >= 0 ? bytes + " bytes" : percentage + "%";
+    }
+}
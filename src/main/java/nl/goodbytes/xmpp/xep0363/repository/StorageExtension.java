@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import java.io.IOException;
+
+/**
+ * Takes part in storing the published data of an {@link AbstractFileSystemRepository}, on behalf of a decorator that
+ * stores (some of) that data differently (see {@link FileSystemRepositoryDecorator}).
+ *
+ * Extensions are registered with the repository before it is initialized, by
+ * {@link AbstractFileSystemRepository#addStorageExtension(StorageExtension)}. The repository consults its extensions
+ * whenever it determines the size of, or deletes, published data. That includes the deletions by purges and evictions,
+ * which thus apply to data that is stored by extensions, too. Extensions are to register such data with the
+ * repository, by {@link AbstractFileSystemRepository#recordAdded(String, long, long)}.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+interface StorageExtension
+{
+    /**
+     * Prepares the extension for use. Invoked by the repository when it is initialized, after it has accounted for the
+     * data that it stores itself, but before it is first purged.
+     */
+    void open() throws IOException;
+
+    /**
+     * Releases resources held by the extension. Invoked by the repository when it is destroyed.
+     */
+    void close();
+
+    /**
+     * Returns the amount of bytes that would be released by deleting published data, if this extension is involved in
+     * storing that data.
+     *
+     * @param name the name of the data.
+     * @return an amount of bytes, or -1 when this extension is not involved in storing the data.
+     */
+    long getStoredSize( String name );
+
+    /**
+     * Deletes published data, if this extension is involved in storing that data.
+     *
+     * @param name the name of the data.
+     * @return the amount of bytes that were released, or -1 when this extension is not involved in storing the data (in
+     *         which case the repository deletes the data).
+     */
+    long delete( String name ) throws IOException;
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2025 Guus der Kinderen. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import nl.goodbytes.xmpp.xep0363.SecureUniqueId;
+
+/**
+ * A repository of files that stores new data in a fast ('hot') directory, and moves data that is no longer frequently
+ * read to a slower, larger ('cold') directory in the background.
+ *
+ * Data is moved to the cold directory when it has been stored for longer than the migration age, unless it was read
+ * during that period. When the usage of the file store of the hot directory exceeds the hot watermark, the oldest data
+ * is moved regardless of its age. Metadata always remains in the hot directory. Reads of data that has been moved fall
+ * through to the cold directory.
+ *
+ * When space is to be reclaimed, the oldest data (typically stored in the cold directory) is deleted. The purge and
+ * eviction policies therefore apply to the file store of the cold directory.
+ *
+ * @author Guus der Kinderen, guus@goodbytes.nl
+ */
+public class TieredRepository extends DirectoryRepository
+{
+    private static final Logger Log = LoggerFactory.getLogger( TieredRepository.class );
+
+    public static final Duration DEFAULT_MIGRATION_AGE = Duration.ofDays( 1 );
+
+    /**
+     * The interval at which data is moved from the hot to the cold directory.
+     */
+    public static final Duration MIGRATION_INTERVAL = Duration.ofMinutes( 10 );
+
+    private final Path coldPath;
+
+    private Duration migrationAge = DEFAULT_MIGRATION_AGE;
+
+    private SpaceThreshold hotWatermark = null;
+
+    // The moment at which data was last read, by name. Entries older than the migration age are of no consequence.
+    private final Map<String, Long> lastRead = new ConcurrentHashMap<>();
+
+    // The data in the hot directory, ordered by the moment it was stored (or, if it was read since, last read).
+    private final AgeIndex hotIndex = new AgeIndex();
+
+    // Prevents data from being deleted while it is being moved.
+    private final Striped<Lock> locks = Striped.lock( 64 );
+
+    private final LongAdder migratedFiles = new LongAdder();
+
+    private final LongAdder migratedBytes = new LongAdder();
+
+    private ScheduledExecutorService migrationExecutor;
+
+    /**
+     * @param hotPath  The directory in which new data is stored.
+     * @param coldPath The directory to which data is moved when it is no longer frequently read.
+     */
+    public TieredRepository( final Path hotPath, final Path coldPath )
+    {
+        super( hotPath );
+        this.coldPath = coldPath;
+    }
+
+    /**
+     * Sets the duration after which data that has not been read is moved to the cold directory. Must be invoked before
+     * {@link #initialize()}.
+     */
+    public void setMigrationAge( Duration migrationAge )
+    {
+        if ( migrationAge.isNegative() )
+        {
+            throw new IllegalArgumentException( "Migration age cannot be negative: " + migrationAge );
+        }
+        this.migrationAge = migrationAge;
+    }
+
+    public Duration getMigrationAge()
+    {
+        return migrationAge;
+    }
+
+    /**
+     * Sets the usage of the file store of the hot directory above which the oldest data is moved to the cold directory,
+     * regardless of its age. Must be invoked before {@link #initialize()}.
+     *
+     * @param hotWatermark the usage threshold, or null to move data based on its age only (the default).
+     */
+    public void setHotWatermark( SpaceThreshold hotWatermark )
+    {
+        this.hotWatermark = hotWatermark;
+    }
+
+    public SpaceThreshold getHotWatermark()
+    {
+        return hotWatermark;
+    }
+
+    public Path getColdPath()
+    {
+        return coldPath;
+    }
+
+    /**
+     * Returns the amount of files that were moved to the cold directory since the repository was initialized.
+     */
+    public long getMigratedFileCount()
+    {
+        return migratedFiles.sum();
+    }
+
+    /**
+     * Returns the amount of bytes that were moved to the cold directory since the repository was initialized.
+     */
+    public long getMigratedBytes()
+    {
+        return migratedBytes.sum();
+    }
+
+    @Override
+    public void initialize() throws IOException
+    {
+        super.initialize();
+
+        migrationExecutor = Executors.newSingleThreadScheduledExecutor( new ThreadFactoryBuilder().setNameFormat( "xmppfileupload-tiering" ).setDaemon( true ).build() );
+        migrationExecutor.scheduleWithFixedDelay( () -> {
+            try
+            {
+                migrate();
+            }
+            catch ( Exception e )
+            {
+                Log.warn( "An unexpected error occurred while moving data to the cold directory.", e );
+            }
+        }, 0, MIGRATION_INTERVAL.toMillis(), TimeUnit.MILLISECONDS );
+        Log.info( "Data that has not been read for {} is moved to the cold directory: {} (hot watermark: {}).", migrationAge, coldPath, hotWatermark == null ? "(none)" : hotWatermark );
+    }
+
+    @Override
+    public void destroy()
+    {
+        if ( migrationExecutor != null )
+        {
+            migrationExecutor.shutdownNow();
+        }
+        super.destroy();
+    }
+
+    @Override
+    protected void calculateUsage() throws IOException
+    {
+        super.calculateUsage();
+
+        // Data in the cold directory is part of the repository. Its metadata is in the hot directory, and accounted for already.
+        Files.createDirectories( coldPath );
+        final long start = System.currentTimeMillis();
+        final List<DataFile> cold = listData( coldPath );
+        for ( final DataFile file : cold )
+        {
+            recordAdded( file.path.getFileName().toString(), file.size, file.lastModified );
+        }
+        Log.info( "The cold directory {} contains {} files (calculated in {} ms).", coldPath, cold.size(), System.currentTimeMillis() - start );
+    }
+
+    @Override
+    protected void recordStored( String name, long timestamp )
+    {
+        super.recordStored( name, timestamp );
+        hotIndex.add( name, timestamp );
+    }
+
+    @Override
+    protected FileStore getManagedFileStore() throws IOException
+    {
+        return Files.getFileStore( coldPath );
+    }
+
+    /**
+     * Returns the path of a file in the hot directory if it exists there, otherwise the path of the file in the cold
+     * directory, if it exists there.
+     */
+    @Override
+    protected Path getPath( String filename )
+    {
+        final Path hot = super.getPath( filename );
+        if ( filename.endsWith( METADATA_SUFFIX ) || Files.exists( hot ) )
+        {
+            return hot;
+        }
+
+        // Data is moved in the layout that was used for it in the hot directory.
+        final RepositoryLayout layout = getLayout();
+        final Path preferred = toCold( layout.getLayoutPath( filename ) );
+        if ( Files.exists( preferred ) )
+        {
+            return preferred;
+        }
+        final Path other = toCold( layout.isSharded() ? layout.getFlatPath( filename ) : layout.getShardedPath( filename ) );
+        return Files.exists( other ) ? other : hot;
+    }
+
+    private Path toCold( Path hot )
+    {
+        return coldPath.resolve( repository.relativize( hot ) );
+    }
+
+    // Data can be moved to the cold directory after its path was resolved, but before it was opened. Resolving the path
+    // again then finds the data in the cold directory.
+
+    @Override
+    public InputStream getInputStream( SecureUniqueId uuid ) throws IOException
+    {
+        recordRead( uuid );
+        try
+        {
+            return super.getInputStream( uuid );
+        }
+        catch ( NoSuchFileException e )
+        {
+            return super.getInputStream( uuid );
+        }
+    }
+
+    @Override
+    public ReadableByteChannel getReadableChannel( SecureUniqueId uuid ) throws IOException
+    {
+        recordRead( uuid );
+        try
+        {
+            return super.getReadableChannel( uuid );
+        }
+        catch ( NoSuchFileException e )
+        {
+            return super.getReadableChannel( uuid );
+        }
+    }
+
+    @Override
+    public ReadableByteChannel getReadableChannel( SecureUniqueId uuid, long position ) throws IOException
+    {
+        recordRead( uuid );
+        try
+        {
+            return super.getReadableChannel( uuid, position );
+        }
+        catch ( NoSuchFileException e )
+        {
+            return super.getReadableChannel( uuid, position );
+        }
+    }
+
+    @Override
+    ByteBuffer getCachedContent( SecureUniqueId uuid, ChannelOpener opener ) throws IOException
+    {
+        recordRead( uuid );
+        return super.getCachedContent( uuid, opener );
+    }
+
+    private void recordRead( SecureUniqueId uuid )
+    {
+        lastRead.put( uuid.toString(), System.currentTimeMillis() );
+    }
+
+    @Override
+    public boolean delete( SecureUniqueId uuid ) throws IOException
+    {
+        final Lock lock = locks.get( uuid.toString() );
+        lock.lock();
+        try
+        {
+            lastRead.remove( uuid.toString() );
+            return super.delete( uuid );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    long deletePublished( String name ) throws IOException
+    {
+        final Lock lock = locks.get( name );
+        lock.lock();
+        try
+        {
+            lastRead.remove( name );
+            hotIndex.remove( name );
+            return super.deletePublished( name );
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves data from the hot to the cold directory: data that has been stored for longer than the migration age and that
+     * was not read during that period, and when the hot watermark is exceeded, the oldest data.
+     *
+     * Candidates are taken from an index of the data in the hot directory, oldest first, rather than by inspecting all
+     * files in it. Data that was read during the migration age is re-indexed by the moment it was last read. Data that
+     * cannot be moved is re-indexed by the moment of this migration, to be considered again later.
+     *
+     * @return the amount of files that were moved.
+     */
+    public int migrate() throws IOException
+    {
+        final long start = System.currentTimeMillis();
+        final long cutoff = start - migrationAge.toMillis();
+        lastRead.values().removeIf( timestamp -> timestamp < cutoff );
+
+        long needed = 0;
+        if ( hotWatermark != null )
+        {
+            final FileStore store = Files.getFileStore( repository );
+            final long capacity = store.getTotalSpace();
+            needed = capacity - store.getUsableSpace() - hotWatermark.toBytes( capacity );
+        }
+
+        // Data that remains in the hot directory, by the moment from which it is to be considered for migration again.
+        final Map<String, Long> retained = new HashMap<>();
+        int count = 0;
+        try
+        {
+            String name;
+            while ( ( name = needed > 0 ? hotIndex.pollOldest() : hotIndex.pollOldestBefore( cutoff ) ) != null )
+            {
+                final Long read = lastRead.get( name );
+                if ( read != null && needed <= 0 )
+                {
+                    retained.put( name, read );
+                    continue;
+                }
+
+                final Path hot = super.getPath( name );
+                final long size = sizeIfExists( hot );
+
+                if ( size < 0 )
+                {
+                    continue;
+                }
+
+                // Moving deduplicated data to another file system would store a copy of it for every file that links to
+                // it. Such data remains in the hot directory, until no other file links to it.
+                if ( getLinkCount( hot ) > 1 )
+                {
+                    retained.put( name, start );
+                    continue;
+                }
+
+                try
+                {
+                    if ( migrate( name, hot ) )
+                    {
+                        count++;
+                        needed -= size;
+                        migratedFiles.increment();
+                        migratedBytes.add( size );
+                    }
+                }
+                catch ( IOException e )
+                {
+                    Log.warn( "Unable to move {} to the cold directory. It is retried later.", name, e );
+                    retained.put( name, start );
+                }
+            }
+        }
+        finally
+        {
+            retained.forEach( hotIndex::add );
+        }
+
+        if ( count > 0 )
+        {
+            Log.info( "Moved {} files to the cold directory in {} ms.", count, System.currentTimeMillis() - start );
+        }
+        return count;
+    }
+
+    /**
+     * Moves one file to the cold directory. The file is copied first, and removed from the hot directory only after the
+     * copy is complete, which keeps the data available while it is being moved.
+     *
+     * @return true if the file was moved.
+     */
+    private boolean migrate( String name, Path hot ) throws IOException
+    {
+        final Path cold = toCold( hot );
+        final Path temporary = cold.resolveSibling( "." + cold.getFileName() + ".migrating" );
+        final Lock lock = locks.get( name );
+        lock.lock();
+        try
+        {
+            if ( !Files.exists( hot ) )
+            {
+                return false;
+            }
+            Files.createDirectories( cold.getParent() );
+            Files.copy( hot, temporary, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES );
+            Files.move( temporary, cold, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+            Files.delete( hot );
+            recordMoved( hot );
+            Log.debug( "Moved {} to the cold directory.", name );
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+            Files.deleteIfExists( temporary );
+        }
+    }
+
+    private static class DataFile
+    {
+        final Path path;
+        final long size;
+        final long lastModified;
+
+        DataFile( Path path, long size, long lastModified )
+        {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Lists the files that hold data (not metadata) in a directory, in either layout. Entries of which the name starts
+     * with a dot are skipped.
+     */
+    private static List<DataFile> listData( Path root ) throws IOException
+    {
+        final List<DataFile> result = new ArrayList<>();
+        Files.walkFileTree( root, EnumSet.noneOf( FileVisitOption.class ), 3, new SimpleFileVisitor<>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs )
+            {
+                return !dir.equals( root ) && dir.getFileName().toString().startsWith( "." ) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+            {
+                final String name = file.getFileName().toString();
+                if ( attrs.isRegularFile() && !name.startsWith( "." ) && !name.endsWith( METADATA_SUFFIX ) )
+                {
+                    result.add( new DataFile( file, attrs.size(), attrs.lastModifiedTime().toMillis() ) );
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed( Path file, IOException exc )
+            {
+                Log.debug( "Unable to inspect {}.", file, exc );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+        return result;
+    }
+}
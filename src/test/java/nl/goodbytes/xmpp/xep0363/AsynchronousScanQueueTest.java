@@ -0,0 +1,103 @@
+package nl.goodbytes.xmpp.xep0363;
+
+import nl.goodbytes.xmpp.xep0363.repository.DirectoryRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.JID;
+
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AsynchronousScanQueueTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DirectoryRepository repository;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        repository = new DirectoryRepository(folder.newFolder().toPath());
+        repository.initialize();
+    }
+
+    @After
+    public void tearDown()
+    {
+        repository.destroy();
+    }
+
+    private Slot stage() throws Exception
+    {
+        final Slot slot = new Slot(new JID("user@example.org"), "test.bin", 3);
+        try (final OutputStream out = repository.getOutputStream(slot.getUuid())) {
+            out.write(new byte[] { 1, 2, 3 });
+        }
+        return slot;
+    }
+
+    private static MalwareScanner scanner(final boolean malware)
+    {
+        return new MalwareScanner()
+        {
+            @Override
+            public void initialize() {}
+
+            @Override
+            public void destroy() {}
+
+            @Override
+            public void scan(final SecureUniqueId uuid) throws MalwareDetectedException
+            {
+                if (malware) {
+                    throw new MalwareDetectedException();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void whenNoMalwareIsDetected_ThenUploadIsPublished() throws Exception
+    {
+        // Setup test fixture.
+        final AsynchronousScanQueue queue = new AsynchronousScanQueue(scanner(false), 1, 1);
+        final Slot slot = stage();
+
+        // Execute system under test.
+        assertTrue(queue.submit(repository, slot));
+        queue.shutdown();
+
+        // Verify result.
+        assertFalse(queue.isPending(slot.getUuid()));
+        assertTrue(repository.contains(slot.getUuid()));
+        assertEquals(1, queue.getScanCount());
+        assertEquals(0, queue.getMalwareDetectedCount());
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    public void whenMalwareIsDetected_ThenUploadIsDeleted() throws Exception
+    {
+        // Setup test fixture.
+        final AsynchronousScanQueue queue = new AsynchronousScanQueue(scanner(true), 1, 1);
+        final Slot slot = stage();
+
+        // Execute system under test.
+        assertTrue(queue.submit(repository, slot));
+        queue.shutdown();
+
+        // Verify result.
+        assertFalse(queue.isPending(slot.getUuid()));
+        assertNull(repository.getMetadata(slot.getUuid()));
+        assertEquals(1, queue.getScanCount());
+        assertEquals(1, queue.getMalwareDetectedCount());
+    }
+}
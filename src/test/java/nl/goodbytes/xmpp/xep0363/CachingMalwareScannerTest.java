@@ -0,0 +1,121 @@
+package nl.goodbytes.xmpp.xep0363;
+
+import nl.goodbytes.xmpp.xep0363.repository.DirectoryRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.JID;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CachingMalwareScannerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class CountingScanner implements MalwareScanner
+    {
+        int scans = 0;
+        String version = "1";
+        boolean failing = false;
+
+        @Override
+        public void initialize() {}
+
+        @Override
+        public void destroy() {}
+
+        @Override
+        public void scan(final SecureUniqueId uuid) throws IOException
+        {
+            scans++;
+            if (failing) {
+                throw new IOException("Unavailable");
+            }
+        }
+
+        @Override
+        public String getSignatureVersion()
+        {
+            return version;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        final DirectoryRepository repository = new DirectoryRepository(folder.newFolder().toPath());
+        repository.setHashUploads(true);
+        RepositoryManager.getInstance().initialize(repository);
+    }
+
+    @After
+    public void tearDown()
+    {
+        RepositoryManager.getInstance().destroy();
+    }
+
+    private static SecureUniqueId upload(byte[] data) throws Exception
+    {
+        final Slot slot = new Slot(new JID("user@example.org"), "test.bin", data.length);
+        try (final OutputStream out = RepositoryManager.getInstance().getRepository().getOutputStream(slot.getUuid())) {
+            out.write(data);
+        }
+        return slot.getUuid();
+    }
+
+    @Test
+    public void whenScanningIdenticalContent_ThenContentIsScannedOncePerSignatureVersion() throws Exception
+    {
+        // Setup test fixture.
+        final CountingScanner delegate = new CountingScanner();
+        final CachingMalwareScanner scanner = new CachingMalwareScanner(delegate, 10);
+
+        // Execute system under test.
+        scanner.scan(upload(new byte[] { 1, 2, 3 }));
+        scanner.scan(upload(new byte[] { 1, 2, 3 }));
+        scanner.scan(upload(new byte[] { 4, 5, 6 }));
+        delegate.version = "2";
+        scanner.scan(upload(new byte[] { 1, 2, 3 }));
+
+        // Verify result.
+        assertEquals(3, delegate.scans);
+        assertEquals(1, scanner.getHitCount());
+    }
+
+    @Test
+    public void whenCircuitIsOpen_ThenCacheHitDoesNotCloseCircuit() throws Exception
+    {
+        // Setup test fixture.
+        final CountingScanner delegate = new CountingScanner();
+        final CircuitBreakingMalwareScanner breaker = new CircuitBreakingMalwareScanner(delegate, Duration.ofSeconds(30), Duration.ofMillis(1));
+        final CachingMalwareScanner scanner = new CachingMalwareScanner(breaker, 10);
+        scanner.scan(upload(new byte[] { 1, 2, 3 }));
+        delegate.failing = true;
+        for (int i = 0; i < CircuitBreakingMalwareScanner.MINIMUM_SCANS; i++) {
+            try {
+                scanner.scan(upload(new byte[] { 4, 5, (byte) i }));
+                fail("A scan that cannot be performed should be rejected.");
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+        final int scans = delegate.scans;
+        Thread.sleep(5);
+
+        // Execute system under test.
+        scanner.scan(upload(new byte[] { 1, 2, 3 }));
+
+        // Verify result.
+        assertEquals(1, scanner.getHitCount());
+        assertEquals(CircuitBreakingMalwareScanner.State.OPEN, breaker.getState());
+        assertEquals(scans, delegate.scans);
+    }
+}
@@ -0,0 +1,135 @@
+package nl.goodbytes.xmpp.xep0363;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakingMalwareScannerTest
+{
+    private static class FailingScanner implements MalwareScanner
+    {
+        int scans = 0;
+        boolean failing = true;
+        Error error = null;
+
+        @Override
+        public void initialize() {}
+
+        @Override
+        public void destroy() {}
+
+        @Override
+        public void scan(final SecureUniqueId uuid) throws IOException
+        {
+            scans++;
+            if (error != null) {
+                throw error;
+            }
+            if (failing) {
+                throw new IOException("Unavailable");
+            }
+        }
+    }
+
+    @Test
+    public void whenScansFail_ThenCircuitOpensAndScansAreRejected() throws Exception
+    {
+        // Setup test fixture.
+        final FailingScanner delegate = new FailingScanner();
+        final CircuitBreakingMalwareScanner scanner = new CircuitBreakingMalwareScanner(delegate);
+        final SecureUniqueId uuid = SecureUUID.generate();
+
+        // Execute system under test.
+        for (int i = 0; i < CircuitBreakingMalwareScanner.MINIMUM_SCANS + 1; i++) {
+            try {
+                scanner.scan(uuid);
+                fail("A scan that cannot be performed should be rejected.");
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+
+        // Verify result.
+        assertEquals(CircuitBreakingMalwareScanner.State.OPEN, scanner.getState());
+        assertEquals(CircuitBreakingMalwareScanner.MINIMUM_SCANS, delegate.scans);
+        assertEquals(1, scanner.getRejectedCount());
+    }
+
+    @Test
+    public void whenProbeSucceeds_ThenCircuitCloses() throws Exception
+    {
+        // Setup test fixture.
+        final FailingScanner delegate = new FailingScanner();
+        final CircuitBreakingMalwareScanner scanner = new CircuitBreakingMalwareScanner(delegate, Duration.ofSeconds(30), Duration.ofMillis(1));
+        final SecureUniqueId uuid = SecureUUID.generate();
+        for (int i = 0; i < CircuitBreakingMalwareScanner.MINIMUM_SCANS; i++) {
+            try {
+                scanner.scan(uuid);
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+        delegate.failing = false;
+        Thread.sleep(5);
+
+        // Execute system under test.
+        scanner.scan(uuid);
+
+        // Verify result.
+        assertEquals(CircuitBreakingMalwareScanner.State.CLOSED, scanner.getState());
+    }
+
+    @Test
+    public void whenProbeThrowsError_ThenCircuitOpensAgain() throws Exception
+    {
+        // Setup test fixture.
+        final FailingScanner delegate = new FailingScanner();
+        final CircuitBreakingMalwareScanner scanner = new CircuitBreakingMalwareScanner(delegate, Duration.ofSeconds(30), Duration.ofMillis(1));
+        final SecureUniqueId uuid = SecureUUID.generate();
+        for (int i = 0; i < CircuitBreakingMalwareScanner.MINIMUM_SCANS; i++) {
+            try {
+                scanner.scan(uuid);
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+        delegate.error = new LinkageError("Test");
+        Thread.sleep(5);
+
+        // Execute system under test.
+        try {
+            scanner.scan(uuid);
+            fail("The error of the probe should be propagated.");
+        } catch (LinkageError e) {
+            // Expected.
+        }
+
+        // Verify result.
+        assertEquals(CircuitBreakingMalwareScanner.State.OPEN, scanner.getState());
+        assertEquals(2, scanner.getTripCount());
+    }
+
+    @Test
+    public void whenFailingOpen_ThenUnavailableScansAreAccepted() throws Exception
+    {
+        // Setup test fixture.
+        final FailingScanner delegate = new FailingScanner();
+        final CircuitBreakingMalwareScanner breaker = new CircuitBreakingMalwareScanner(delegate);
+        final FailOpenMalwareScanner scanner = new FailOpenMalwareScanner(breaker);
+        final SecureUniqueId uuid = SecureUUID.generate();
+
+        // Execute system under test.
+        for (int i = 0; i < CircuitBreakingMalwareScanner.MINIMUM_SCANS + 1; i++) {
+            scanner.scan(uuid);
+        }
+
+        // Verify result.
+        assertEquals(CircuitBreakingMalwareScanner.State.OPEN, breaker.getState());
+        assertEquals(CircuitBreakingMalwareScanner.MINIMUM_SCANS + 1, scanner.getAcceptedWithoutVerdictCount());
+        assertEquals(1, breaker.getRejectedCount());
+    }
+}
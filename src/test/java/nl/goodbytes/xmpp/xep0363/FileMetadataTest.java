@@ -0,0 +1,87 @@
+package nl.goodbytes.xmpp.xep0363;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FileMetadataTest
+{
+    @Test
+    public void whenSerializingAndDeserializing_ThenObjectIsTheSame() throws Exception
+    {
+        // Setup test fixture.
+        final Date creationDate = new Date();
+        final FileMetadata input = new FileMetadata("image/png", 41, creationDate, "unittest.png", FileMetadata.generateETag(41, creationDate));
+
+        // Execute system under test.
+        final FileMetadata result = FileMetadata.fromBytes(input.toBytes());
+
+        // Verify result.
+        assertEquals(input.getContentType(), result.getContentType());
+        assertEquals(input.getSize(), result.getSize());
+        assertEquals(input.getCreationDate(), result.getCreationDate());
+        assertEquals(input.getFilename(), result.getFilename());
+        assertEquals(input.getETag(), result.getETag());
+        assertNull(result.getDigest());
+        assertNull(result.getContentEncoding());
+        assertEquals(-1, result.getEncodedSize());
+    }
+
+    @Test
+    public void whenSerializingWithDigest_ThenDigestIsRetained() throws Exception
+    {
+        // Setup test fixture.
+        final FileMetadata input = new FileMetadata("image/png", 41, new Date(), "unittest.png", "12345", "a1b2c3");
+
+        // Execute system under test.
+        final FileMetadata result = FileMetadata.fromBytes(input.toBytes());
+
+        // Verify result.
+        assertEquals("a1b2c3", result.getDigest());
+    }
+
+    @Test
+    public void whenSerializingWithContentEncoding_ThenEncodingIsRetained() throws Exception
+    {
+        // Setup test fixture.
+        final FileMetadata input = new FileMetadata("text/plain", 4096, new Date(), "unittest.txt", "12345").withContentEncoding("gzip", 512);
+
+        // Execute system under test.
+        final FileMetadata result = FileMetadata.fromBytes(input.toBytes());
+
+        // Verify result.
+        assertEquals(4096, result.getSize());
+        assertEquals("gzip", result.getContentEncoding());
+        assertEquals(512, result.getEncodedSize());
+    }
+
+    @Test
+    public void whenSerializingWithoutOptionalValues_ThenValuesRemainAbsent() throws Exception
+    {
+        // Setup test fixture.
+        final FileMetadata input = new FileMetadata(null, 0, new Date(), null, "12345");
+
+        // Execute system under test.
+        final FileMetadata result = FileMetadata.fromBytes(input.toBytes());
+
+        // Verify result.
+        assertNull(result.getContentType());
+        assertNull(result.getFilename());
+        assertEquals("12345", result.getETag());
+    }
+
+    @Test(expected = IOException.class)
+    public void whenVersionIsUnsupported_ThenParsingFails() throws Exception
+    {
+        // Setup test fixture.
+        final byte[] data = new FileMetadata("image/png", 41, new Date(), "unittest.png", "12345").toBytes();
+        data[0] = 99;
+
+        // Execute system under test.
+        FileMetadata.fromBytes(data);
+    }
+}
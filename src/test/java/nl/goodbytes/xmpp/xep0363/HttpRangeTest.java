@@ -0,0 +1,86 @@
+package nl.goodbytes.xmpp.xep0363;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HttpRangeTest
+{
+    @Test
+    public void whenParsingSingleRange_ThenRangeIsReturned() throws Exception
+    {
+        // Execute system under test.
+        final List<HttpRange> result = HttpRange.parse("bytes=0-499", 10000);
+
+        // Verify result.
+        assertEquals(Collections.singletonList(new HttpRange(0, 499)), result);
+    }
+
+    @Test
+    public void whenParsingOpenEndedAndSuffixRanges_ThenRangesAreBoundedBySize() throws Exception
+    {
+        // Execute system under test.
+        final List<HttpRange> openEnded = HttpRange.parse("bytes=9500-", 10000);
+        final List<HttpRange> suffix = HttpRange.parse("bytes=-500", 10000);
+        final List<HttpRange> beyondEnd = HttpRange.parse("bytes=9500-20000", 10000);
+
+        // Verify result.
+        assertEquals(Collections.singletonList(new HttpRange(9500, 9999)), openEnded);
+        assertEquals(Collections.singletonList(new HttpRange(9500, 9999)), suffix);
+        assertEquals(Collections.singletonList(new HttpRange(9500, 9999)), beyondEnd);
+    }
+
+    @Test
+    public void whenParsingOverlappingRanges_ThenRangesAreCoalesced() throws Exception
+    {
+        // Execute system under test.
+        final List<HttpRange> result = HttpRange.parse("bytes=500-700, 0-99, 600-999, 100-199", 10000);
+
+        // Verify result.
+        assertEquals(Arrays.asList(new HttpRange(0, 199), new HttpRange(500, 999)), result);
+    }
+
+    @Test
+    public void whenParsingUnsatisfiableRange_ThenEmptyListIsReturned() throws Exception
+    {
+        // Execute system under test.
+        final List<HttpRange> result = HttpRange.parse("bytes=10000-10100", 10000);
+
+        // Verify result.
+        assertEquals(Collections.emptyList(), result);
+    }
+
+    @Test
+    public void whenParsingMalformedOrUnsupportedHeader_ThenNullIsReturned() throws Exception
+    {
+        // Verify result.
+        assertNull(HttpRange.parse(null, 10000));
+        assertNull(HttpRange.parse("items=0-5", 10000));
+        assertNull(HttpRange.parse("bytes=500-100", 10000));
+        assertNull(HttpRange.parse("bytes=abc", 10000));
+        assertNull(HttpRange.parse("bytes=+1-5", 10000));
+        assertNull(HttpRange.parse("bytes=", 10000));
+        assertNull(HttpRange.parse("bytes=,", 10000));
+        assertNull(HttpRange.parse("bytes= , ,", 10000));
+    }
+
+    @Test
+    public void whenParsingRangeBeyondTwoGigabytes_ThenOffsetsAreNotTruncated() throws Exception
+    {
+        // Setup test fixture.
+        final long size = 5L * 1024 * 1024 * 1024;
+
+        // Execute system under test.
+        final List<HttpRange> result = HttpRange.parse("bytes=4294967296-", size);
+
+        // Verify result.
+        assertEquals(Collections.singletonList(new HttpRange(4294967296L, size - 1)), result);
+        assertEquals(size - 4294967296L, result.get(0).getLength());
+        assertEquals("bytes 4294967296-5368709119/5368709120", result.get(0).toContentRange(size));
+    }
+}
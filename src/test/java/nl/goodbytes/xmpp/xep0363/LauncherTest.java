@@ -0,0 +1,126 @@
+package nl.goodbytes.xmpp.xep0363;
+
+import nl.goodbytes.xmpp.xep0363.repository.DirectoryRepository;
+import org.eclipse.jetty.http2.server.AbstractHTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LauncherTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Launcher launcher(final boolean virtualThreads, final Integer maxThreads, final boolean http2) throws Exception
+    {
+        return launcher(virtualThreads, maxThreads, http2, null);
+    }
+
+    private Launcher launcher(final boolean virtualThreads, final Integer maxThreads, final boolean http2, final Path keyStore) throws Exception
+    {
+        return new Launcher.Builder()
+            .sharedSecret("secret")
+            .webHost("localhost")
+            .webPort(0)
+            .repository(new DirectoryRepository(folder.newFolder().toPath()))
+            .virtualThreads(virtualThreads)
+            .maxThreads(maxThreads)
+            .http2(http2)
+            .http2MaxConcurrentStreams(64)
+            .keyStore(keyStore)
+            .build();
+    }
+
+    @Test
+    public void whenVirtualThreadsAreRequested_ThenTheyAreUsedWhenSupported() throws Exception
+    {
+        // Setup test fixture.
+        final Launcher launcher = launcher(true, 20, false);
+
+        // Execute system under test.
+        final QueuedThreadPool result = launcher.createThreadPool();
+
+        // Verify result.
+        assertEquals(VirtualThreads.areSupported(), result.getVirtualThreadsExecutor() != null);
+        assertEquals(20, result.getMaxThreads());
+    }
+
+    @Test
+    public void whenVirtualThreadsAreNotRequested_ThenPlatformThreadsAreUsed() throws Exception
+    {
+        // Setup test fixture.
+        final Launcher launcher = launcher(false, null, false);
+
+        // Execute system under test.
+        final QueuedThreadPool result = launcher.createThreadPool();
+
+        // Verify result.
+        assertNull(result.getVirtualThreadsExecutor());
+        assertEquals(Launcher.DEFAULT_MAX_THREADS, result.getMaxThreads());
+    }
+
+    @Test
+    public void whenHttp2IsNotEnabled_ThenOnlyHttp11IsAccepted() throws Exception
+    {
+        // Setup test fixture.
+        final Launcher launcher = launcher(false, null, false);
+
+        // Execute system under test.
+        final ServerConnector result = launcher.createConnector(new Server());
+
+        // Verify result.
+        assertEquals(List.of("http/1.1"), result.getProtocols());
+    }
+
+    @Test
+    public void whenHttp2IsEnabled_ThenCleartextHttp2IsAccepted() throws Exception
+    {
+        // Setup test fixture.
+        final Launcher launcher = launcher(false, null, true);
+
+        // Execute system under test.
+        final ServerConnector result = launcher.createConnector(new Server());
+
+        // Verify result.
+        assertEquals(List.of("http/1.1", "h2c"), result.getProtocols());
+        assertEquals(64, ((AbstractHTTP2ServerConnectionFactory) result.getConnectionFactory("h2c")).getMaxConcurrentStreams());
+    }
+
+    @Test
+    public void whenHttp2IsEnabledWithKeyStore_ThenHttp2IsNegotiatedOverTls() throws Exception
+    {
+        // Setup test fixture.
+        final Launcher launcher = launcher(false, null, true, folder.newFile("keystore.p12").toPath());
+
+        // Execute system under test.
+        final ServerConnector result = launcher.createConnector(new Server());
+
+        // Verify result.
+        assertEquals(List.of("ssl", "alpn", "h2", "http/1.1"), result.getProtocols());
+        assertEquals(64, ((AbstractHTTP2ServerConnectionFactory) result.getConnectionFactory("h2")).getMaxConcurrentStreams());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenMaxThreadsIsNotPositive_ThenItIsRejected()
+    {
+        // Execute system under test.
+        new Launcher.Builder().maxThreads(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenHttp2StreamWindowIsNotPositive_ThenItIsRejected()
+    {
+        // Execute system under test.
+        new Launcher.Builder().http2StreamWindow(-1);
+    }
+}
@@ -0,0 +1,235 @@
+package nl.goodbytes.xmpp.xep0363;
+
+import nl.goodbytes.xmpp.xep0363.repository.AbstractFileSystemRepository;
+import nl.goodbytes.xmpp.xep0363.repository.DirectoryRepository;
+import nl.goodbytes.xmpp.xep0363.slot.DefaultSlotProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.JID;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServletTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp()
+    {
+        SlotManager.getInstance().initialize(new DefaultSlotProvider());
+    }
+
+    @After
+    public void tearDown()
+    {
+        RepositoryManager.getInstance().destroy();
+        SlotManager.getInstance().destroy();
+    }
+
+    /**
+     * Returns a response that records the status codes of the errors that are sent through it.
+     */
+    private static HttpServletResponse response(final List<Integer> errors)
+    {
+        return response(errors, new HashMap<>());
+    }
+
+    /**
+     * Returns a response that records the status codes of the errors, and the headers, that are sent through it.
+     */
+    private static HttpServletResponse response(final List<Integer> errors, final Map<String, String> headers)
+    {
+        return (HttpServletResponse) Proxy.newProxyInstance(ServletTest.class.getClassLoader(), new Class[] { HttpServletResponse.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "isCommitted":
+                    return false;
+                case "sendError":
+                    errors.add((Integer) args[0]);
+                    return null;
+                case "setHeader":
+                    headers.put((String) args[0], (String) args[1]);
+                    return null;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * Returns a GET request for the data of a slot.
+     */
+    private static HttpServletRequest request(final Slot slot)
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletTest.class.getClassLoader(), new Class[] { HttpServletRequest.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getMethod":
+                    return "GET";
+                case "getRequestURI":
+                    return "/" + slot.getUuid() + "/" + slot.getFilename();
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * Returns an asynchronous PUT request that uploads data to a slot. Asynchronous processing is performed on the
+     * thread that invokes the servlet.
+     */
+    private static HttpServletRequest request(final Slot slot, final byte[] data)
+    {
+        final ServletInputStream in = new ServletInputStream()
+        {
+            private final ByteArrayInputStream delegate = new ByteArrayInputStream(data);
+
+            @Override
+            public boolean isFinished()
+            {
+                return delegate.available() == 0;
+            }
+
+            @Override
+            public boolean isReady()
+            {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(final ReadListener readListener)
+            {
+                try {
+                    readListener.onDataAvailable();
+                    readListener.onAllDataRead();
+                } catch (IOException e) {
+                    readListener.onError(e);
+                }
+            }
+
+            @Override
+            public int read()
+            {
+                return delegate.read();
+            }
+        };
+
+        final AsyncContext async = (AsyncContext) Proxy.newProxyInstance(ServletTest.class.getClassLoader(), new Class[] { AsyncContext.class }, (proxy, method, args) -> {
+            if (method.getName().equals("start")) {
+                ((Runnable) args[0]).run();
+            }
+            return null;
+        });
+
+        return (HttpServletRequest) Proxy.newProxyInstance(ServletTest.class.getClassLoader(), new Class[] { HttpServletRequest.class }, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getMethod":
+                    return "PUT";
+                case "getRequestURI":
+                    return "/" + slot.getUuid() + "/" + slot.getFilename();
+                case "getContentLengthLong":
+                    return (long) data.length;
+                case "getInputStream":
+                    return in;
+                case "isAsyncSupported":
+                    return true;
+                case "startAsync":
+                    return async;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    @Test
+    public void whenProcessingAsynchronousUploadFails_ThenDataIsRemovedAndInternalServerErrorIsSent() throws Exception
+    {
+        // Setup test fixture.
+        final Path path = folder.newFolder().toPath();
+        RepositoryManager.getInstance().initialize(new DirectoryRepository(path)
+        {
+            @Override
+            public FileMetadata publish(final Slot slot)
+            {
+                throw new UncheckedIOException(new IOException("Test"));
+            }
+        });
+        final Slot slot = SlotManager.getInstance().getSlot(new JID("user@example.org"), "test.bin", 3);
+        final List<Integer> errors = new ArrayList<>();
+
+        // Execute system under test.
+        new Servlet().doPut(request(slot, new byte[] { 1, 2, 3 }), response(errors));
+
+        // Verify result.
+        assertEquals(List.of(HttpServletResponse.SC_INTERNAL_SERVER_ERROR), errors);
+        assertFalse(Files.exists(path.resolve(AbstractFileSystemRepository.STAGING_DIRECTORY).resolve(slot.getUuid().toString())));
+    }
+
+    @Test
+    public void whenDataIsPendingScan_ThenServiceUnavailableIsSent() throws Exception
+    {
+        // Setup test fixture.
+        final DirectoryRepository repository = new DirectoryRepository(folder.newFolder().toPath());
+        RepositoryManager.getInstance().initialize(repository);
+        final CountDownLatch release = new CountDownLatch(1);
+        MalwareScannerManager.getInstance().initialize(new MalwareScanner()
+        {
+            @Override
+            public void initialize() {}
+
+            @Override
+            public void destroy() {}
+
+            @Override
+            public void scan(final SecureUniqueId uuid) throws IOException
+            {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }, 1, 1);
+        try {
+            final Slot slot = SlotManager.getInstance().getSlot(new JID("user@example.org"), "test.bin", 3);
+            try (final OutputStream out = repository.getOutputStream(slot.getUuid())) {
+                out.write(new byte[] { 1, 2, 3 });
+            }
+            assertTrue(MalwareScannerManager.getInstance().getScanQueue().submit(repository, slot));
+            final List<Integer> errors = new ArrayList<>();
+            final Map<String, String> headers = new HashMap<>();
+
+            // Execute system under test.
+            new Servlet().doGet(request(slot), response(errors, headers));
+
+            // Verify result.
+            assertEquals(List.of(HttpServletResponse.SC_SERVICE_UNAVAILABLE), errors);
+            assertEquals(String.valueOf(AsynchronousScanQueue.DEFAULT_RETRY_AFTER.getSeconds()), headers.get("Retry-After"));
+        } finally {
+            release.countDown();
+            MalwareScannerManager.getInstance().destroy();
+        }
+    }
+}
@@ -40,4 +40,30 @@ public class SlotTest
         assertEquals(input.getCreator(), ((Slot) result).getCreator());
         assertEquals(input.getCreationDate(), ((Slot) result).getCreationDate());
     }
+
+    @Test
+    public void whenSlotIsLargerThanTwoGigabytes_ThenSizeIsRetained() throws Exception
+    {
+        // Setup test fixture.
+        final long size = 3L * 1024 * 1024 * 1024;
+        final Slot input = new Slot(new JID("unit-test", "example.org", "test"), "unittest", size);
+
+        // Execute system under test.
+        byte[] buffer;
+        try (final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+             final ObjectOutputStream oos = new ObjectOutputStream(bos) ) {
+            oos.writeObject(input);
+            buffer = bos.toByteArray();
+        }
+
+        final Object result;
+        try (final ByteArrayInputStream bis = new ByteArrayInputStream(buffer);
+             final ObjectInputStream ois = new ObjectInputStream(bis)) {
+            result = ois.readObject();
+        }
+
+        // Verify result.
+        assertEquals(size, input.getSize());
+        assertEquals(size, ((Slot) result).getSize());
+    }
 }
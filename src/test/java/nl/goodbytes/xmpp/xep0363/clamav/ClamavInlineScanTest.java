@@ -0,0 +1,112 @@
+package nl.goodbytes.xmpp.xep0363.clamav;
+
+import nl.goodbytes.xmpp.xep0363.InlineScan;
+import nl.goodbytes.xmpp.xep0363.MalwareDetectedException;
+import nl.goodbytes.xmpp.xep0363.SecureUUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClamavInlineScanTest
+{
+    private FakeClamavDaemon daemon;
+
+    private ClamavMalwareScanner scanner;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        daemon = new FakeClamavDaemon();
+        scanner = new ClamavMalwareScanner("localhost", daemon.getPort(), Duration.ofSeconds(2));
+        scanner.setInlineScan(true);
+        scanner.setMaxConcurrentScans(1);
+        scanner.initialize();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        scanner.destroy();
+        daemon.close();
+    }
+
+    @Test(timeout = 10000)
+    public void whenDataIsClean_ThenItIsVerified() throws Exception
+    {
+        // Setup test fixture.
+        final InlineScan scan = scanner.startInlineScan(SecureUUID.generate());
+        assertNotNull(scan);
+        final byte[] data = new byte[100000];
+
+        // Execute system under test.
+        for (int offset = 0; offset < data.length; offset += 1000) {
+            scan.update(data, offset, 1000);
+        }
+        final boolean result = scan.verify();
+
+        // Verify result.
+        assertTrue(result);
+        assertEquals(1, scanner.getInlineScanCount());
+        assertEquals(1, scanner.getScanCount());
+        assertEquals(0, scanner.getActiveScanCount());
+    }
+
+    @Test(timeout = 10000, expected = MalwareDetectedException.class)
+    public void whenDataContainsMalware_ThenItIsDetected() throws Exception
+    {
+        // Setup test fixture.
+        final InlineScan scan = scanner.startInlineScan(SecureUUID.generate());
+        assertNotNull(scan);
+
+        // Execute system under test.
+        scan.update(FakeClamavDaemon.EICAR, 0, 10);
+        scan.update(FakeClamavDaemon.EICAR, 10, FakeClamavDaemon.EICAR.length - 10);
+        scan.verify();
+    }
+
+    @Test(timeout = 10000)
+    public void whenDaemonDoesNotAcceptData_ThenReceivingDataDoesNotBlock() throws Exception
+    {
+        // Setup test fixture.
+        daemon.setAccepting(false);
+        final InlineScan scan = scanner.startInlineScan(SecureUUID.generate());
+        assertNotNull(scan);
+        final byte[] chunk = new byte[64 * 1024];
+
+        // Execute system under test.
+        for (int i = 0; i < 8 * ClamavInlineScan.MAX_BUFFERED_BYTES / chunk.length; i++) {
+            scan.update(chunk, 0, chunk.length);
+        }
+        final boolean result = scan.verify();
+
+        // Verify result.
+        assertFalse(result);
+    }
+
+    @Test(timeout = 10000)
+    public void whenScanIsAbandoned_ThenItsConnectionBecomesAvailable() throws Exception
+    {
+        // Setup test fixture.
+        daemon.setAccepting(false);
+        final InlineScan scan = scanner.startInlineScan(SecureUUID.generate());
+        assertNotNull(scan);
+        final byte[] chunk = new byte[64 * 1024];
+        for (int i = 0; i < 8 * ClamavInlineScan.MAX_BUFFERED_BYTES / chunk.length; i++) {
+            scan.update(chunk, 0, chunk.length);
+        }
+
+        // Execute system under test.
+        final InlineScan next = scanner.startInlineScan(SecureUUID.generate());
+
+        // Verify result.
+        assertNotNull(next);
+        next.close();
+    }
+}
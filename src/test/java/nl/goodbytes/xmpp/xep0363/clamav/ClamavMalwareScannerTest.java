@@ -0,0 +1,99 @@
+package nl.goodbytes.xmpp.xep0363.clamav;
+
+import nl.goodbytes.xmpp.xep0363.MalwareDetectedException;
+import nl.goodbytes.xmpp.xep0363.RepositoryManager;
+import nl.goodbytes.xmpp.xep0363.SecureUUID;
+import nl.goodbytes.xmpp.xep0363.SecureUniqueId;
+import nl.goodbytes.xmpp.xep0363.repository.DirectoryRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ClamavMalwareScannerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeClamavDaemon daemon;
+
+    private DirectoryRepository repository;
+
+    private ClamavMalwareScanner scanner;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        daemon = new FakeClamavDaemon();
+        repository = new DirectoryRepository(folder.newFolder().toPath());
+        RepositoryManager.getInstance().initialize(repository);
+        scanner = new ClamavMalwareScanner("localhost", daemon.getPort(), Duration.ofSeconds(2));
+        scanner.setMaxConcurrentScans(1);
+        scanner.setQueueTimeout(Duration.ofSeconds(1));
+        scanner.initialize();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        scanner.destroy();
+        RepositoryManager.getInstance().destroy();
+        daemon.close();
+    }
+
+    private SecureUniqueId stage(final byte[] data) throws IOException
+    {
+        final SecureUniqueId uuid = SecureUUID.generate();
+        try (final OutputStream out = repository.getOutputStream(uuid)) {
+            out.write(data);
+        }
+        return uuid;
+    }
+
+    @Test(timeout = 10000)
+    public void whenScanFails_ThenItsPermitIsReleased() throws Exception
+    {
+        // Setup test fixture.
+        final SecureUniqueId missing = SecureUUID.generate();
+        try {
+            scanner.scan(missing);
+            fail("A scan of data that does not exist should fail.");
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        // Execute system under test.
+        scanner.scan(stage(new byte[] { 1, 2, 3 }));
+
+        // Verify result.
+        assertEquals(0, scanner.getActiveScanCount());
+        assertEquals(2, scanner.getScanCount());
+    }
+
+    @Test(timeout = 10000)
+    public void whenMalwareIsDetected_ThenItsPermitIsReleased() throws Exception
+    {
+        // Setup test fixture.
+        try {
+            scanner.scan(stage(FakeClamavDaemon.EICAR));
+            fail("Malware should be detected.");
+        } catch (MalwareDetectedException e) {
+            // Expected.
+        }
+
+        // Execute system under test.
+        scanner.scan(stage(new byte[] { 1, 2, 3 }));
+
+        // Verify result.
+        assertEquals(0, scanner.getActiveScanCount());
+        assertEquals(0, scanner.getQueuedScanCount());
+    }
+}
@@ -0,0 +1,97 @@
+package nl.goodbytes.xmpp.xep0363.clamav;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal Clamav daemon, that detects the EICAR test signature.
+ */
+class FakeClamavDaemon implements Closeable
+{
+    static final byte[] EICAR = "X5O!P%@AP[4\\PZX54(P^)7CC)7}$EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerSocket serverSocket;
+
+    // When false, the daemon does not read the data of a scan.
+    private volatile boolean accepting = true;
+
+    FakeClamavDaemon() throws IOException
+    {
+        serverSocket = new ServerSocket(0);
+        final Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    final Thread handler = new Thread(() -> handle(socket));
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    void setAccepting(final boolean accepting)
+    {
+        this.accepting = accepting;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        serverSocket.close();
+    }
+
+    private void handle(final Socket socket)
+    {
+        try (socket) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final OutputStream out = socket.getOutputStream();
+            final StringBuilder command = new StringBuilder();
+            int b;
+            while ((b = in.read()) > 0 && b != '\n') {
+                command.append((char) b);
+            }
+            if (command.toString().endsWith("VERSIONCOMMANDS")) {
+                out.write("ClamAV 1.0.0/27000/Mon Jan 1 00:00:00 2024| COMMANDS: SCAN QUIT RELOAD PING CONTSCAN VERSIONCOMMANDS VERSION END SHUTDOWN MULTISCAN FILDES STATS IDSESSION INSTREAM DETSTATSCLEAN DETSTATS ALLMATCHSCAN\n".getBytes(StandardCharsets.US_ASCII));
+            } else if (command.toString().endsWith("PING")) {
+                out.write("PONG\0".getBytes(StandardCharsets.US_ASCII));
+            } else if (command.toString().endsWith("VERSION")) {
+                out.write("ClamAV 1.0.0/27000/Mon Jan 1 00:00:00 2024\0".getBytes(StandardCharsets.US_ASCII));
+            } else if (command.toString().endsWith("INSTREAM")) {
+                if (!accepting) {
+                    // Wait for the client to give up.
+                    while (in.read() >= 0) {
+                        Thread.sleep(60000);
+                    }
+                    return;
+                }
+                final ByteArrayOutputStream data = new ByteArrayOutputStream();
+                int length;
+                while ((length = in.readInt()) > 0) {
+                    final byte[] chunk = new byte[length];
+                    in.readFully(chunk);
+                    data.write(chunk);
+                }
+                out.write((data.toString(StandardCharsets.US_ASCII).contains("EICAR") ? "stream: Eicar-Test-Signature FOUND\0" : "stream: OK\0").getBytes(StandardCharsets.US_ASCII));
+            }
+        } catch (IOException | InterruptedException e) {
+            // Connection closed.
+        }
+    }
+}
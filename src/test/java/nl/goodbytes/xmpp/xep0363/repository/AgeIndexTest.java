@@ -0,0 +1,101 @@
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AgeIndexTest
+{
+    @Test
+    public void whenPolling_ThenOldestIsReturnedFirst() throws Exception
+    {
+        // Setup test fixture.
+        final AgeIndex index = new AgeIndex();
+        index.add("b", 200);
+        index.add("c", 300);
+        index.add("a", 100);
+
+        // Execute system under test.
+        final String first = index.pollOldest();
+        final String second = index.pollOldest();
+        final String third = index.pollOldest();
+        final String fourth = index.pollOldest();
+
+        // Verify result.
+        assertEquals("a", first);
+        assertEquals("b", second);
+        assertEquals("c", third);
+        assertNull(fourth);
+    }
+
+    @Test
+    public void whenAddingWithEqualTimestamps_ThenAllAreIndexed() throws Exception
+    {
+        // Setup test fixture.
+        final AgeIndex index = new AgeIndex();
+
+        // Execute system under test.
+        index.add("a", 100);
+        index.add("b", 100);
+
+        // Verify result.
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void whenReAdding_ThenPreviousEntryIsReplaced() throws Exception
+    {
+        // Setup test fixture.
+        final AgeIndex index = new AgeIndex();
+        index.add("a", 100);
+        index.add("b", 200);
+
+        // Execute system under test.
+        index.add("a", 300);
+
+        // Verify result.
+        assertEquals(2, index.size());
+        assertEquals("b", index.pollOldest());
+        assertEquals("a", index.pollOldest());
+    }
+
+    @Test
+    public void whenRemoving_ThenEntryIsNoLongerPolled() throws Exception
+    {
+        // Setup test fixture.
+        final AgeIndex index = new AgeIndex();
+        index.add("a", 100);
+        index.add("b", 200);
+
+        // Execute system under test.
+        final boolean removed = index.remove("a");
+        final boolean removedAgain = index.remove("a");
+
+        // Verify result.
+        assertTrue(removed);
+        assertFalse(removedAgain);
+        assertEquals("b", index.pollOldest());
+        assertNull(index.pollOldest());
+    }
+
+    @Test
+    public void whenPollingBeforeTimestamp_ThenOnlyOlderEntriesAreReturned() throws Exception
+    {
+        // Setup test fixture.
+        final AgeIndex index = new AgeIndex();
+        index.add("a", 100);
+        index.add("b", 200);
+
+        // Execute system under test.
+        final String first = index.pollOldestBefore(200);
+        final String second = index.pollOldestBefore(200);
+
+        // Verify result.
+        assertEquals("a", first);
+        assertNull(second);
+        assertEquals(1, index.size());
+    }
+}
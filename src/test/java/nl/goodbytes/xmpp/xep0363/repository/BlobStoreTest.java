@@ -0,0 +1,105 @@
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class BlobStoreTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void whenSharingIdenticalData_ThenDataIsStoredOnce() throws Exception
+    {
+        // Setup test fixture.
+        final Path root = folder.getRoot().toPath();
+        assumeTrue(BlobStore.isSupported(root));
+        final BlobStore store = new BlobStore(root.resolve("blobs"));
+        store.open();
+        final Path first = Files.write(root.resolve("first"), new byte[] { 1, 2, 3 });
+        final Path second = Files.write(root.resolve("second"), new byte[] { 1, 2, 3 });
+
+        // Execute system under test.
+        final boolean sharedBeforeAdded = store.share("abcdef", first);
+        final boolean added = store.add("abcdef", first);
+        final boolean shared = store.share("abcdef", second);
+
+        // Verify result.
+        assertFalse(sharedBeforeAdded);
+        assertTrue(added);
+        assertTrue(shared);
+        assertEquals(3, AbstractFileSystemRepository.getLinkCount(store.getPath("abcdef")));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(second));
+    }
+
+    @Test
+    public void whenReleasing_ThenDataIsDeletedAfterLastReference() throws Exception
+    {
+        // Setup test fixture.
+        final Path root = folder.getRoot().toPath();
+        assumeTrue(BlobStore.isSupported(root));
+        final BlobStore store = new BlobStore(root.resolve("blobs"));
+        store.open();
+        final Path first = Files.write(root.resolve("first"), new byte[] { 1, 2, 3 });
+        final Path second = Files.write(root.resolve("second"), new byte[] { 1, 2, 3 });
+        store.add("abcdef", first);
+        store.share("abcdef", second);
+
+        // Execute system under test.
+        Files.delete(first);
+        final long releasedWhileReferenced = store.release("abcdef");
+        Files.delete(second);
+        final long releasedAfterLastReference = store.release("abcdef");
+
+        // Verify result.
+        assertEquals(0, releasedWhileReferenced);
+        assertEquals(3, releasedAfterLastReference);
+        assertFalse(Files.exists(store.getPath("abcdef")));
+    }
+
+    @Test
+    public void whenSharingDifferentDataWithSameKey_ThenExistingBlobIsNotReplaced() throws Exception
+    {
+        // Setup test fixture.
+        final Path root = folder.getRoot().toPath();
+        assumeTrue(BlobStore.isSupported(root));
+        final BlobStore store = new BlobStore(root.resolve("blobs"));
+        store.open();
+        store.add("abcdef", Files.write(root.resolve("first"), new byte[] { 1, 2, 3 }));
+        final Path second = Files.write(root.resolve("second"), new byte[] { 4, 5, 6 });
+
+        // Execute system under test.
+        final boolean shared = store.share("abcdef", second);
+        final boolean added = store.add("abcdef", second);
+
+        // Verify result.
+        assertFalse(shared);
+        assertFalse(added);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(store.getPath("abcdef")));
+        assertArrayEquals(new byte[] { 4, 5, 6 }, Files.readAllBytes(second));
+        assertEquals(1, AbstractFileSystemRepository.getLinkCount(second));
+    }
+
+    @Test
+    public void whenEncodingDiffers_ThenKeyDiffers()
+    {
+        // Execute system under test.
+        final String plain = BlobStore.getKey("abcdef", null);
+        final String compressed = BlobStore.getKey("abcdef", "gzip");
+
+        // Verify result.
+        assertEquals("abcdef", plain);
+        assertNotEquals(plain, compressed);
+    }
+}
@@ -0,0 +1,119 @@
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import nl.goodbytes.xmpp.xep0363.FileMetadata;
+import nl.goodbytes.xmpp.xep0363.Slot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.JID;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CompressingRepositoryTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CompressingRepository repository;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        repository = new CompressingRepository(new DirectoryRepository(folder.newFolder().toPath()));
+        repository.initialize();
+    }
+
+    @After
+    public void tearDown()
+    {
+        repository.destroy();
+    }
+
+    private Slot upload(String filename, byte[] data) throws Exception
+    {
+        final Slot slot = new Slot(new JID("user@example.org"), filename, data.length);
+        try (final OutputStream out = repository.getOutputStream(slot.getUuid())) {
+            out.write(data);
+        }
+        repository.publish(slot);
+        return slot;
+    }
+
+    private static byte[] text()
+    {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            result.append("line ").append(i).append(" of some log output\n");
+        }
+        return result.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void whenTextIsPublished_ThenItIsStoredCompressed() throws Exception
+    {
+        // Setup test fixture.
+        final byte[] data = text();
+
+        // Execute system under test.
+        final Slot slot = upload("test.txt", data);
+
+        // Verify result.
+        final FileMetadata metadata = repository.getMetadata(slot.getUuid());
+        assertEquals(Compression.ENCODING, metadata.getContentEncoding());
+        assertEquals(data.length, metadata.getSize());
+        assertEquals(1, repository.getCompressedFileCount());
+        try (final InputStream in = repository.getInputStream(slot.getUuid())) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        try (final ReadableByteChannel channel = repository.getEncodedChannel(slot.getUuid())) {
+            assertArrayEquals(data, Compression.decompress(Channels.newInputStream(channel)).readAllBytes());
+        }
+    }
+
+    @Test
+    public void whenCompressedDataIsReadFromPosition_ThenItIsDecompressed() throws Exception
+    {
+        // Setup test fixture.
+        final byte[] data = text();
+        final Slot slot = upload("test.txt", data);
+
+        // Execute system under test.
+        final byte[] result;
+        try (final InputStream in = Channels.newInputStream(repository.getReadableChannel(slot.getUuid(), 100))) {
+            result = in.readNBytes(10);
+        }
+
+        // Verify result.
+        assertArrayEquals(Arrays.copyOfRange(data, 100, 110), result);
+    }
+
+    @Test
+    public void whenDataDoesNotCompress_ThenItIsStoredAsIs() throws Exception
+    {
+        // Setup test fixture.
+        final byte[] data = new byte[4096];
+        new Random(1).nextBytes(data);
+
+        // Execute system under test.
+        final Slot slot = upload("test.txt", data);
+
+        // Verify result.
+        assertNull(repository.getMetadata(slot.getUuid()).getContentEncoding());
+        assertEquals(0, repository.getCompressedFileCount());
+        try (final ReadableByteChannel channel = repository.getEncodedChannel(slot.getUuid())) {
+            assertArrayEquals(data, Channels.newInputStream(channel).readAllBytes());
+        }
+    }
+}
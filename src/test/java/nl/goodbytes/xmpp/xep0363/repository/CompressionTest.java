@@ -0,0 +1,78 @@
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void whenContentTypeIsText_ThenDataIsCompressible() throws Exception
+    {
+        // Setup test fixture.
+        final Path path = Files.write(folder.newFile().toPath(), "{ \"key\": \"value\" }".getBytes(StandardCharsets.UTF_8));
+
+        // Execute system under test.
+        final boolean result = Compression.isCompressible("application/json; charset=utf-8", path);
+
+        // Verify result.
+        assertTrue(result);
+    }
+
+    @Test
+    public void whenContentTypeIsMedia_ThenDataIsNotCompressible() throws Exception
+    {
+        // Setup test fixture.
+        final Path path = Files.write(folder.newFile().toPath(), new byte[] { 1, 2, 3, 4 });
+
+        // Execute system under test.
+        final boolean result = Compression.isCompressible("video/mp4", path);
+
+        // Verify result.
+        assertFalse(result);
+    }
+
+    @Test
+    public void whenContentIsCompressedAlready_ThenDataIsNotCompressible() throws Exception
+    {
+        // Setup test fixture.
+        final Path path = Files.write(folder.newFile().toPath(), new byte[] { 'P', 'K', 0x03, 0x04, 0, 0, 0, 0 });
+
+        // Execute system under test.
+        final boolean result = Compression.isCompressible("text/plain", path);
+
+        // Verify result.
+        assertFalse(result);
+    }
+
+    @Test
+    public void whenDecompressing_ThenOriginalDataIsReturned() throws Exception
+    {
+        // Setup test fixture.
+        final byte[] data = "Lorem ipsum dolor sit amet. Lorem ipsum dolor sit amet.".getBytes(StandardCharsets.UTF_8);
+        final Path source = Files.write(folder.newFile().toPath(), data);
+        final Path target = folder.newFile().toPath();
+        Compression.compress(source, target);
+
+        // Execute system under test.
+        final byte[] result;
+        try (final InputStream in = Compression.decompress(Files.newInputStream(target))) {
+            result = in.readAllBytes();
+        }
+
+        // Verify result.
+        assertArrayEquals(data, result);
+    }
+}
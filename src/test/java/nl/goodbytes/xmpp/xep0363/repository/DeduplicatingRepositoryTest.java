@@ -0,0 +1,120 @@
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import nl.goodbytes.xmpp.xep0363.Slot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.JID;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+public class DeduplicatingRepositoryTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    private DirectoryRepository directoryRepository;
+
+    private DeduplicatingRepository repository;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        path = folder.newFolder().toPath();
+        assumeTrue(BlobStore.isSupported(path));
+        directoryRepository = new DirectoryRepository(path);
+        repository = new DeduplicatingRepository(directoryRepository);
+        repository.initialize();
+    }
+
+    @After
+    public void tearDown()
+    {
+        repository.destroy();
+    }
+
+    private Slot upload(byte[] data) throws Exception
+    {
+        final Slot slot = new Slot(new JID("user@example.org"), "test.bin", data.length);
+        try (final OutputStream out = repository.getOutputStream(slot.getUuid())) {
+            out.write(data);
+        }
+        repository.publish(slot);
+        return slot;
+    }
+
+    @Test
+    public void whenIdenticalDataIsPublished_ThenItIsStoredOnce() throws Exception
+    {
+        // Setup test fixture.
+        final byte[] data = new byte[] { 1, 2, 3 };
+        final Slot first = upload(data);
+        final long usedBytes = directoryRepository.getPurger().getUsedBytes();
+
+        // Execute system under test.
+        final Slot second = upload(data);
+
+        // Verify result.
+        assertEquals(1, repository.getDeduplicatedFileCount());
+        assertEquals(2, directoryRepository.getPurger().getFileCount());
+        assertEquals(usedBytes * 2 - data.length, directoryRepository.getPurger().getUsedBytes());
+        assertEquals(3, AbstractFileSystemRepository.getLinkCount(path.resolve(first.getUuid().toString())));
+        try (final InputStream in = repository.getInputStream(second.getUuid())) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void whenLastLinkIsDeleted_ThenDataIsDeleted() throws Exception
+    {
+        // Setup test fixture.
+        final byte[] data = new byte[] { 1, 2, 3 };
+        final Slot first = upload(data);
+        final Slot second = upload(data);
+        final long metadataSize = Files.size(path.resolve(second.getUuid() + AbstractFileSystemRepository.METADATA_SUFFIX));
+
+        // Execute system under test.
+        repository.delete(first.getUuid());
+        final long usedWhileReferenced = directoryRepository.getPurger().getUsedBytes();
+        repository.delete(second.getUuid());
+
+        // Verify result.
+        assertEquals(data.length + metadataSize, usedWhileReferenced);
+        assertEquals(0, directoryRepository.getPurger().getUsedBytes());
+        assertEquals(0, directoryRepository.getPurger().getFileCount());
+        try (final var blobs = Files.walk(path.resolve(DeduplicatingRepository.BLOBS_DIRECTORY))) {
+            assertFalse(blobs.anyMatch(Files::isRegularFile));
+        }
+    }
+
+    @Test
+    public void whenUploadStreamIsClosedTwice_ThenDataIsStillDeduplicated() throws Exception
+    {
+        // Setup test fixture.
+        final byte[] data = new byte[] { 1, 2, 3 };
+        upload(data);
+        final Slot slot = new Slot(new JID("user@example.org"), "test.bin", data.length);
+        final OutputStream out = repository.getOutputStream(slot.getUuid());
+        out.write(data);
+        out.close();
+
+        // Execute system under test.
+        out.close();
+        repository.publish(slot);
+
+        // Verify result.
+        assertEquals(1, repository.getDeduplicatedFileCount());
+    }
+}
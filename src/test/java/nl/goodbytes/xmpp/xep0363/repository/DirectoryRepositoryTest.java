@@ -0,0 +1,723 @@
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import nl.goodbytes.xmpp.xep0363.AsynchronousScanQueue;
+import nl.goodbytes.xmpp.xep0363.FileMetadata;
+import nl.goodbytes.xmpp.xep0363.MalwareScanner;
+import nl.goodbytes.xmpp.xep0363.SecureUUID;
+import nl.goodbytes.xmpp.xep0363.SecureUniqueId;
+import nl.goodbytes.xmpp.xep0363.Slot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.JID;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DirectoryRepositoryTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    private DirectoryRepository repository;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        path = folder.newFolder().toPath();
+        repository = new DirectoryRepository(path);
+    }
+
+    @After
+    public void tearDown()
+    {
+        repository.destroy();
+    }
+
+    private Slot stage(byte[] data) throws Exception
+    {
+        final Slot slot = new Slot(new JID("user@example.org"), "test.bin", data.length);
+        try (final OutputStream out = repository.getOutputStream(slot.getUuid())) {
+            out.write(data);
+        }
+        return slot;
+    }
+
+    private Slot upload(byte[] data) throws Exception
+    {
+        final Slot slot = stage(data);
+        repository.publish(slot);
+        return slot;
+    }
+
+    /**
+     * Replaces the repository by one that is stored on a file store of the provided capacity, of which the used space
+     * is the space used by the repository.
+     */
+    private void useFileStoreOfCapacity(final long capacity)
+    {
+        repository = new DirectoryRepository(path)
+        {
+            @Override
+            protected FileStore getManagedFileStore()
+            {
+                return new FileStore()
+                {
+                    @Override
+                    public String name()
+                    {
+                        return "test";
+                    }
+
+                    @Override
+                    public String type()
+                    {
+                        return "test";
+                    }
+
+                    @Override
+                    public boolean isReadOnly()
+                    {
+                        return false;
+                    }
+
+                    @Override
+                    public long getTotalSpace()
+                    {
+                        return capacity;
+                    }
+
+                    @Override
+                    public long getUsableSpace()
+                    {
+                        return capacity - getPurger().getUsedBytes();
+                    }
+
+                    @Override
+                    public long getUnallocatedSpace()
+                    {
+                        return getUsableSpace();
+                    }
+
+                    @Override
+                    public boolean supportsFileAttributeView(final Class<? extends FileAttributeView> type)
+                    {
+                        return false;
+                    }
+
+                    @Override
+                    public boolean supportsFileAttributeView(final String name)
+                    {
+                        return false;
+                    }
+
+                    @Override
+                    public <V extends FileStoreAttributeView> V getFileStoreAttributeView(final Class<V> type)
+                    {
+                        return null;
+                    }
+
+                    @Override
+                    public Object getAttribute(final String attribute)
+                    {
+                        return null;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Stores files of the provided size directly in the repository directory, each one second older than the next.
+     *
+     * @return the names of the files, oldest first.
+     */
+    private List<String> storeAgedFiles(final int count, final int size) throws Exception
+    {
+        final List<String> result = new ArrayList<>();
+        for (int i = count; i > 0; i--) {
+            final Path file = path.resolve(SecureUUID.generate().toString());
+            Files.write(file, new byte[size]);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - i * 1000L));
+            result.add(file.getFileName().toString());
+        }
+        return result;
+    }
+
+    @Test
+    public void whenReading_ThenDataIsProvidedByFileChannel() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final Slot slot = upload(new byte[] { 1, 2, 3, 4, 5 });
+
+        // Execute system under test.
+        try (final ReadableByteChannel result = repository.getReadableChannel(slot.getUuid())) {
+            // Verify result.
+            assertTrue("Data should be provided by a file channel, which allows it to be transferred without copying it.", result instanceof FileChannel);
+            final ByteBuffer buffer = ByteBuffer.allocate(5);
+            while (buffer.hasRemaining() && result.read(buffer) >= 0) {
+                // Read until the buffer is full, or the end of the data is reached.
+            }
+            buffer.flip();
+            assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }), buffer);
+        }
+    }
+
+    @Test
+    public void whenReadingFromPosition_ThenFileChannelStartsThere() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final Slot slot = upload(new byte[] { 1, 2, 3, 4, 5 });
+
+        // Execute system under test.
+        try (final ReadableByteChannel result = repository.getReadableChannel(slot.getUuid(), 2)) {
+            // Verify result.
+            assertTrue("Data should be provided by a file channel, which allows it to be transferred without copying it.", result instanceof FileChannel);
+            final ByteBuffer buffer = ByteBuffer.allocate(5);
+            while (buffer.hasRemaining() && result.read(buffer) >= 0) {
+                // Read until the buffer is full, or the end of the data is reached.
+            }
+            buffer.flip();
+            assertEquals(ByteBuffer.wrap(new byte[] { 3, 4, 5 }), buffer);
+        }
+    }
+
+    @Test
+    public void whenPublished_ThenMetadataIsReadFromSidecar() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final Slot slot = upload("%PDF-1.4".getBytes());
+        final FileMetadata published = repository.getMetadata(slot.getUuid());
+        repository.destroy();
+        repository = new DirectoryRepository(path);
+        repository.initialize();
+
+        // Execute system under test.
+        final FileMetadata result = repository.getMetadata(slot.getUuid());
+
+        // Verify result.
+        assertTrue(Files.exists(path.resolve(slot.getUuid() + AbstractFileSystemRepository.METADATA_SUFFIX)));
+        assertEquals(published.getETag(), result.getETag());
+        assertEquals(published.getCreationDate(), result.getCreationDate());
+        assertEquals("test.bin", result.getFilename());
+        assertEquals(8, result.getSize());
+    }
+
+    @Test
+    public void whenNoSidecarExists_ThenMetadataIsProbed() throws Exception
+    {
+        // Setup test fixture.
+        final SecureUniqueId uuid = SecureUUID.generate();
+        Files.write(path.resolve(uuid.toString()), new byte[] { 1, 2, 3, 4 });
+        repository.initialize();
+
+        // Execute system under test.
+        final FileMetadata result = repository.getMetadata(uuid);
+
+        // Verify result.
+        assertNotNull(result);
+        assertEquals(4, result.getSize());
+        assertNull(result.getFilename());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenMetadataCacheSizeIsNegative_ThenItIsRejected()
+    {
+        // Execute system under test.
+        repository.setMetadataCacheSize(-1);
+    }
+
+    @Test
+    public void whenDeleted_ThenCachedMetadataIsInvalidated() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final Slot slot = upload(new byte[] { 1, 2, 3 });
+        assertNotNull(repository.getMetadata(slot.getUuid()));
+
+        // Execute system under test.
+        repository.delete(slot.getUuid());
+
+        // Verify result.
+        assertNull(repository.getMetadata(slot.getUuid()));
+        assertEquals(1, repository.getMetadataCacheStats().hitCount());
+        assertEquals(1, repository.getMetadataCacheStats().missCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenContentCacheSizeIsNegative_ThenItIsRejected()
+    {
+        // Execute system under test.
+        repository.setContentCacheSize(-1);
+    }
+
+    @Test
+    public void whenSmallDataIsRead_ThenItIsServedFromTheContentCache() throws Exception
+    {
+        // Setup test fixture.
+        repository.setContentCacheSize(1024);
+        repository.setContentCacheMaxFileSize(16);
+        repository.initialize();
+        final Slot small = upload(new byte[] { 1, 2, 3 });
+        final Slot large = upload(new byte[17]);
+
+        // Execute system under test.
+        final ByteBuffer first = repository.getCachedContent(small.getUuid());
+        final ByteBuffer second = repository.getCachedContent(small.getUuid());
+        final ByteBuffer uncached = repository.getCachedContent(large.getUuid());
+
+        // Verify result.
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), first);
+        assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), second);
+        assertNull(uncached);
+        assertEquals(1, repository.getContentCacheStats().hitCount());
+    }
+
+    @Test
+    public void whenDeleted_ThenCachedContentIsInvalidated() throws Exception
+    {
+        // Setup test fixture.
+        repository.setContentCacheSize(1024);
+        repository.setContentCacheMaxFileSize(16);
+        repository.initialize();
+        final Slot slot = upload(new byte[] { 1, 2, 3 });
+        assertNotNull(repository.getCachedContent(slot.getUuid()));
+
+        // Execute system under test.
+        repository.delete(slot.getUuid());
+
+        // Verify result.
+        assertNull(repository.getCachedContent(slot.getUuid()));
+    }
+
+    @Test
+    public void whenStaged_ThenDataIsNotAvailableUntilPublished() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final Slot slot = stage(new byte[] { 1, 2, 3 });
+        final Path staged = path.resolve(AbstractFileSystemRepository.STAGING_DIRECTORY).resolve(slot.getUuid().toString());
+        assertFalse(repository.contains(slot.getUuid()));
+        assertNull(repository.getMetadata(slot.getUuid()));
+
+        // Execute system under test.
+        repository.publish(slot);
+
+        // Verify result.
+        assertTrue(repository.contains(slot.getUuid()));
+        assertEquals(3, repository.getMetadata(slot.getUuid()).getSize());
+        assertFalse(Files.exists(staged));
+    }
+
+    @Test
+    public void whenStagedDataIsDeleted_ThenNothingIsPublished() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final Slot slot = stage(new byte[] { 1, 2, 3 });
+        final Path staged = path.resolve(AbstractFileSystemRepository.STAGING_DIRECTORY).resolve(slot.getUuid().toString());
+
+        // Execute system under test.
+        final boolean result = repository.delete(slot.getUuid());
+
+        // Verify result.
+        assertTrue(result);
+        assertFalse(Files.exists(staged));
+        assertFalse(repository.contains(slot.getUuid()));
+        assertEquals(0, repository.getPurger().getFileCount());
+    }
+
+    @Test
+    public void whenMetadataExistsWithoutData_ThenNoMetadataIsProvided() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final Slot slot = upload(new byte[] { 1, 2, 3 });
+        Files.delete(path.resolve(slot.getUuid().toString()));
+        repository.destroy();
+        repository = new DirectoryRepository(path);
+        repository.initialize();
+
+        // Execute system under test.
+        final FileMetadata result = repository.getMetadata(slot.getUuid());
+
+        // Verify result.
+        assertNull(result);
+    }
+
+    @Test
+    public void whenMovingDataFails_ThenNoMetadataIsLeftBehind() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final Slot slot = stage(new byte[] { 1, 2, 3 });
+        final Path obstruction = Files.createDirectory(path.resolve(slot.getUuid().toString()));
+        Files.write(obstruction.resolve("occupied"), new byte[] { 0 });
+
+        // Execute system under test.
+        try {
+            repository.publish(slot);
+            fail("Publishing should fail when the data cannot be moved into place.");
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        // Verify result.
+        assertFalse(Files.exists(path.resolve(slot.getUuid() + AbstractFileSystemRepository.METADATA_SUFFIX)));
+    }
+
+    @Test
+    public void whenDataIsStoredAndDeleted_ThenUsageMatchesRecount() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        upload(new byte[100]);
+        final Slot deleted = upload(new byte[200]);
+        upload(new byte[300]);
+
+        // Execute system under test.
+        repository.delete(deleted.getUuid());
+
+        // Verify result.
+        final long usedBytes = repository.getPurger().getUsedBytes();
+        final long fileCount = repository.getPurger().getFileCount();
+        repository.destroy();
+        repository = new DirectoryRepository(path);
+        repository.initialize();
+        assertEquals(2, fileCount);
+        assertEquals(repository.getPurger().getFileCount(), fileCount);
+        assertEquals(repository.getPurger().getUsedBytes(), usedBytes);
+    }
+
+    @Test
+    public void whenMetadataOfMissingDataIsOld_ThenItIsPurged() throws Exception
+    {
+        // Setup test fixture.
+        final Path orphan = path.resolve(SecureUUID.generate() + AbstractFileSystemRepository.METADATA_SUFFIX);
+        Files.write(orphan, new byte[] { 1, 2, 3 });
+        Files.setLastModifiedTime(orphan, FileTime.fromMillis(System.currentTimeMillis() - 2 * AbstractFileSystemRepository.STAGING_EXPIRY_MILLIS));
+
+        // Execute system under test.
+        repository.initialize();
+
+        // Verify result.
+        assertFalse(Files.exists(orphan));
+        assertEquals(0, repository.getPurger().getUsedBytes());
+    }
+
+    @Test
+    public void whenFileIsOlderThanMaxFileAge_ThenItIsNotServed() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final Slot slot = upload(new byte[] { 1, 2, 3 });
+        assertNotNull(repository.getMetadata(slot.getUuid()));
+        repository.getPurger().setMaxFileAge(Duration.ofMillis(1));
+        Thread.sleep(10);
+
+        // Execute system under test.
+        final FileMetadata result = repository.getMetadata(slot.getUuid());
+
+        // Verify result.
+        assertNull(result);
+        assertTrue("Expired data should not be deleted before the next purge.", Files.exists(path.resolve(slot.getUuid().toString())));
+    }
+
+    @Test
+    public void whenFileIsOlderThanMaxFileAge_ThenPurgeDeletesIt() throws Exception
+    {
+        // Setup test fixture.
+        final SecureUniqueId expired = SecureUUID.generate();
+        Files.write(path.resolve(expired.toString()), new byte[] { 1, 2, 3 });
+        Files.setLastModifiedTime(path.resolve(expired.toString()), FileTime.fromMillis(System.currentTimeMillis() - Duration.ofDays(2).toMillis()));
+        final SecureUniqueId recent = SecureUUID.generate();
+        Files.write(path.resolve(recent.toString()), new byte[] { 4, 5, 6 });
+        repository.getPurger().setMaxFileAge(Duration.ofDays(1));
+        repository.initialize();
+
+        // Execute system under test.
+        repository.purge();
+
+        // Verify result.
+        assertFalse(Files.exists(path.resolve(expired.toString())));
+        assertTrue(Files.exists(path.resolve(recent.toString())));
+        assertEquals(1, repository.getPurger().getFileCount());
+        assertEquals(3, repository.getPurger().getUsedBytes());
+    }
+
+    @Test
+    public void whenHighWatermarkIsExceeded_ThenOldestFilesAreEvictedToLowWatermark() throws Exception
+    {
+        // Setup test fixture.
+        final List<String> names = storeAgedFiles(6, 100);
+        useFileStoreOfCapacity(1000);
+        repository.getPurger().setHighWatermark(SpaceThreshold.parse("50%"));
+        repository.getPurger().setLowWatermark(SpaceThreshold.parse("20%"));
+
+        // Execute system under test.
+        repository.initialize();
+
+        // Verify result.
+        for (final String name : names.subList(0, 4)) {
+            assertFalse("The oldest files should be evicted.", Files.exists(path.resolve(name)));
+        }
+        for (final String name : names.subList(4, 6)) {
+            assertTrue("Files should not be evicted once usage is at the low watermark.", Files.exists(path.resolve(name)));
+        }
+        assertEquals(200, repository.getPurger().getUsedBytes());
+    }
+
+    @Test
+    public void whenHighWatermarkIsNotExceeded_ThenNothingIsEvicted() throws Exception
+    {
+        // Setup test fixture.
+        storeAgedFiles(4, 100);
+        useFileStoreOfCapacity(1000);
+        repository.getPurger().setHighWatermark(SpaceThreshold.parse("50%"));
+        repository.getPurger().setLowWatermark(SpaceThreshold.parse("20%"));
+
+        // Execute system under test.
+        repository.initialize();
+
+        // Verify result.
+        assertEquals(4, repository.getPurger().getFileCount());
+    }
+
+    @Test
+    public void whenMaxBytesIsExceeded_ThenOldestFilesAreEvictedUntilRepositoryFits() throws Exception
+    {
+        // Setup test fixture.
+        final List<String> names = storeAgedFiles(6, 100);
+        useFileStoreOfCapacity(1000000);
+        repository.getPurger().setMaxBytes(250);
+
+        // Execute system under test.
+        repository.initialize();
+
+        // Verify result.
+        for (final String name : names.subList(0, 4)) {
+            assertFalse("The oldest files should be evicted.", Files.exists(path.resolve(name)));
+        }
+        for (final String name : names.subList(4, 6)) {
+            assertTrue("Files should not be evicted once the repository fits.", Files.exists(path.resolve(name)));
+        }
+        assertEquals(200, repository.getPurger().getUsedBytes());
+    }
+
+    @Test
+    public void whenEvictionBatchIsSmall_ThenEachRunEvictsAtMostOneBatch() throws Exception
+    {
+        // Setup test fixture.
+        final List<String> names = storeAgedFiles(6, 100);
+        useFileStoreOfCapacity(1000000);
+        repository.getPurger().setMaxBytes(250);
+        repository.getPurger().setEvictionBatchSize(1);
+        repository.initialize();
+        assertFalse(Files.exists(path.resolve(names.get(0))));
+        assertTrue(Files.exists(path.resolve(names.get(1))));
+
+        // Execute system under test.
+        repository.getPurger().evict();
+
+        // Verify result.
+        assertFalse(Files.exists(path.resolve(names.get(1))));
+        assertTrue(Files.exists(path.resolve(names.get(2))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenMaxBytesIsNegative_ThenItIsRejected()
+    {
+        // Execute system under test.
+        repository.getPurger().setMaxBytes(-1);
+    }
+
+    @Test
+    public void whenPurgeBudgetIsExhausted_ThenExpiredDataIsLeftForTheNextPurge() throws Exception
+    {
+        // Setup test fixture.
+        repository.getPurger().setMaxFileAge(Duration.ofMillis(1));
+        repository.getPurger().setPurgeBudget(Duration.ofSeconds(1));
+        repository.initialize();
+        final Slot slot = upload(new byte[] { 1, 2, 3 });
+        final Path data = path.resolve(slot.getUuid().toString());
+        Thread.sleep(10);
+
+        // Execute system under test.
+        repository.getPurger().purgeExpired(System.nanoTime() - Duration.ofMinutes(1).toNanos());
+        final boolean afterExhaustedPurge = Files.exists(data);
+        repository.getPurger().purgeExpired(System.nanoTime());
+
+        // Verify result.
+        assertTrue(afterExhaustedPurge);
+        assertFalse(Files.exists(data));
+    }
+
+    @Test
+    public void whenPurgeJitterOrBudgetIsNotPositive_ThenItIsDisabled()
+    {
+        // Execute system under test.
+        repository.getPurger().setPurgeJitter(Duration.ofSeconds(-1));
+        repository.getPurger().setPurgeBudget(Duration.ZERO);
+
+        // Verify result.
+        assertEquals(Duration.ZERO, repository.getPurger().getPurgeJitter());
+        assertNull(repository.getPurger().getPurgeBudget());
+    }
+
+    @Test
+    public void whenShardedLayoutIsUsed_ThenDataIsStoredInPrefixDirectories() throws Exception
+    {
+        // Setup test fixture.
+        repository.getLayout().setSharded(true);
+        repository.initialize();
+
+        // Execute system under test.
+        final Slot slot = upload(new byte[] { 1, 2, 3 });
+
+        // Verify result.
+        final String name = slot.getUuid().toString();
+        assertFalse(Files.exists(path.resolve(name)));
+        assertTrue(Files.exists(repository.getLayout().getShardedPath(name)));
+        assertTrue(Files.exists(repository.getLayout().getShardedPath(name + AbstractFileSystemRepository.METADATA_SUFFIX)));
+        assertEquals(3, path.relativize(repository.getLayout().getShardedPath(name)).getNameCount());
+        try (final InputStream in = repository.getInputStream(slot.getUuid())) {
+            assertArrayEquals(new byte[] { 1, 2, 3 }, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void whenFlatDataIsMigrated_ThenItRemainsAvailable() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final Slot slot = upload(new byte[] { 1, 2, 3 });
+        final FileMetadata published = repository.getMetadata(slot.getUuid());
+        repository.destroy();
+        repository = new DirectoryRepository(path);
+        repository.getLayout().setSharded(true);
+        repository.initialize();
+        assertTrue(repository.contains(slot.getUuid()));
+
+        // Execute system under test.
+        final long result = repository.getLayout().migrateToShardedLayout();
+
+        // Verify result.
+        final String name = slot.getUuid().toString();
+        assertEquals(1, result);
+        assertFalse(Files.exists(path.resolve(name)));
+        assertTrue(Files.exists(repository.getLayout().getShardedPath(name)));
+        assertEquals(published.getETag(), repository.getMetadata(slot.getUuid()).getETag());
+        assertTrue(repository.delete(slot.getUuid()));
+        assertFalse(Files.exists(repository.getLayout().getShardedPath(name)));
+        assertEquals(0, repository.getPurger().getFileCount());
+    }
+
+    @Test
+    public void whenAbandoned_ThenStagedDataIsPurged() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final Slot slot = stage(new byte[] { 1, 2, 3 });
+        final Path staged = path.resolve(AbstractFileSystemRepository.STAGING_DIRECTORY).resolve(slot.getUuid().toString());
+        Files.setLastModifiedTime(staged, FileTime.fromMillis(System.currentTimeMillis() - 2 * AbstractFileSystemRepository.STAGING_EXPIRY_MILLIS));
+
+        // Execute system under test.
+        repository.getPurger().purgeAbandonedUploads();
+
+        // Verify result.
+        assertFalse(Files.exists(staged));
+    }
+
+    @Test
+    public void whenRetainedDataIsReleased_ThenStagedDataIsPurged() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final Slot slot = stage(new byte[] { 1, 2, 3 });
+        final Path staged = path.resolve(AbstractFileSystemRepository.STAGING_DIRECTORY).resolve(slot.getUuid().toString());
+        Files.setLastModifiedTime(staged, FileTime.fromMillis(System.currentTimeMillis() - 2 * AbstractFileSystemRepository.STAGING_EXPIRY_MILLIS));
+        repository.retainUnpublished(slot.getUuid());
+        repository.getPurger().purgeAbandonedUploads();
+        assertTrue(Files.exists(staged));
+
+        // Execute system under test.
+        repository.releaseUnpublished(slot.getUuid());
+        repository.getPurger().purgeAbandonedUploads();
+
+        // Verify result.
+        assertFalse(Files.exists(staged));
+    }
+
+    @Test
+    public void whenPendingScan_ThenStagedDataIsNotPurged() throws Exception
+    {
+        // Setup test fixture.
+        repository.initialize();
+        final CountDownLatch scanning = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AsynchronousScanQueue queue = new AsynchronousScanQueue(new MalwareScanner()
+        {
+            @Override
+            public void initialize() {}
+
+            @Override
+            public void destroy() {}
+
+            @Override
+            public void scan(SecureUniqueId uuid) throws IOException
+            {
+                scanning.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }, 1, 1);
+        try {
+            final Slot slot = stage(new byte[] { 1, 2, 3 });
+            final Path staged = path.resolve(AbstractFileSystemRepository.STAGING_DIRECTORY).resolve(slot.getUuid().toString());
+            Files.setLastModifiedTime(staged, FileTime.fromMillis(System.currentTimeMillis() - 2 * AbstractFileSystemRepository.STAGING_EXPIRY_MILLIS));
+            assertTrue(queue.submit(repository, slot));
+            scanning.await();
+
+            // Execute system under test.
+            repository.getPurger().purgeAbandonedUploads();
+
+            // Verify result.
+            assertTrue(Files.exists(staged));
+        } finally {
+            release.countDown();
+            queue.shutdown();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import nl.goodbytes.xmpp.xep0363.FileMetadata;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentStoreTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path createData(int length, byte value) throws Exception
+    {
+        final byte[] data = new byte[length];
+        Arrays.fill(data, value);
+        return Files.write(folder.newFile().toPath(), data);
+    }
+
+    private static long countFiles(Path directory) throws Exception
+    {
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static FileMetadata createMetadata(long size)
+    {
+        final Date creationDate = new Date();
+        return new FileMetadata("text/plain", size, creationDate, "test.txt", FileMetadata.generateETag(size, creationDate));
+    }
+
+    @Test
+    public void whenReading_ThenStoredDataIsReturned() throws Exception
+    {
+        // Setup test fixture.
+        final SegmentStore store = new SegmentStore(folder.newFolder().toPath(), 1024);
+        store.open();
+        store.put("a", createMetadata(10), createData(10, (byte) 1));
+        store.put("b", createMetadata(20), createData(20, (byte) 2));
+
+        // Execute system under test.
+        final ByteBuffer result = store.read("b");
+
+        // Verify result.
+        assertNotNull(result);
+        assertEquals(20, result.remaining());
+        assertEquals(2, result.get(0));
+        assertEquals(20, store.get("b").metadata.getSize());
+        store.close();
+    }
+
+    @Test
+    public void whenReopening_ThenDeletedDataRemainsDeleted() throws Exception
+    {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final SegmentStore store = new SegmentStore(directory, 128);
+        store.open();
+        store.put("a", createMetadata(50), createData(50, (byte) 1));
+        store.put("b", createMetadata(50), createData(50, (byte) 2));
+        store.delete("a");
+        store.close();
+
+        // Execute system under test.
+        final SegmentStore reopened = new SegmentStore(directory, 128);
+        reopened.open();
+
+        // Verify result.
+        assertEquals(1, reopened.size());
+        assertNull(reopened.read("a"));
+        assertEquals(2, reopened.read("b").get(0));
+        reopened.close();
+    }
+
+    @Test
+    public void whenReopeningAfterIncompleteWrite_ThenIncompleteRecordIsDiscarded() throws Exception
+    {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final SegmentStore store = new SegmentStore(directory, 1024);
+        store.open();
+        store.put("a", createMetadata(10), createData(10, (byte) 1));
+        store.close();
+        try (final Stream<Path> segments = Files.list(directory)) {
+            Files.write(segments.findFirst().get(), new byte[] { 0x58, 0x46 }, StandardOpenOption.APPEND);
+        }
+
+        // Execute system under test.
+        final SegmentStore reopened = new SegmentStore(directory, 1024);
+        reopened.open();
+        reopened.put("b", createMetadata(10), createData(10, (byte) 2));
+
+        // Verify result.
+        assertEquals(1, reopened.read("a").get(0));
+        assertEquals(2, reopened.read("b").get(0));
+        reopened.close();
+    }
+
+    @Test
+    public void whenReopeningAfterDataIsCorrupted_ThenCorruptRecordIsDiscarded() throws Exception
+    {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final SegmentStore store = new SegmentStore(directory, 1024);
+        store.open();
+        store.put("a", createMetadata(10), createData(10, (byte) 1));
+        store.put("b", createMetadata(10), createData(10, (byte) 2));
+        store.close();
+        try (final Stream<Path> segments = Files.list(directory)) {
+            final Path segment = segments.findFirst().get();
+            final byte[] content = Files.readAllBytes(segment);
+            content[content.length - 1] = 3;
+            Files.write(segment, content);
+        }
+
+        // Execute system under test.
+        final SegmentStore reopened = new SegmentStore(directory, 1024);
+        reopened.open();
+
+        // Verify result.
+        assertEquals(1, reopened.size());
+        assertEquals(1, reopened.read("a").get(0));
+        assertNull(reopened.read("b"));
+        reopened.close();
+    }
+
+    @Test
+    public void whenReadingMappedDataFromActiveSegment_ThenNullIsReturned() throws Exception
+    {
+        // Setup test fixture.
+        final SegmentStore store = new SegmentStore(folder.newFolder().toPath(), 128);
+        store.open();
+        store.put("a", createMetadata(50), createData(50, (byte) 1));
+        store.put("b", createMetadata(50), createData(50, (byte) 2));
+        store.put("c", createMetadata(50), createData(50, (byte) 3));
+
+        // Execute system under test.
+        final ByteBuffer sealed = store.readMapped("a");
+        final ByteBuffer active = store.readMapped("c");
+
+        // Verify result.
+        assertNotNull(sealed);
+        assertEquals(1, sealed.get(0));
+        assertNull(active);
+        assertEquals(3, store.read("c").get(0));
+        store.close();
+    }
+
+    @Test
+    public void whenCompacting_ThenLiveDataIsRetained() throws Exception
+    {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final SegmentStore store = new SegmentStore(directory, 128);
+        store.open();
+        for (int i = 0; i < 6; i++) {
+            store.put("file" + i, createMetadata(50), createData(50, (byte) i));
+        }
+        for (int i = 0; i < 5; i++) {
+            store.delete("file" + i);
+        }
+        final long segmentsBefore = countFiles(directory);
+
+        // Execute system under test.
+        final int compacted = store.compact(0.5);
+
+        // Verify result.
+        assertTrue(compacted > 0);
+        assertTrue(countFiles(directory) < segmentsBefore);
+        assertEquals(1, store.size());
+        assertEquals(5, store.read("file5").get(0));
+        store.close();
+    }
+}
@@ -0,0 +1,144 @@
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import nl.goodbytes.xmpp.xep0363.Slot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.JID;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedRepositoryTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    private DirectoryRepository directoryRepository;
+
+    private SegmentedRepository repository;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        path = folder.newFolder().toPath();
+        directoryRepository = new DirectoryRepository(path);
+        repository = new SegmentedRepository(directoryRepository, 16);
+        repository.initialize();
+    }
+
+    @After
+    public void tearDown()
+    {
+        repository.destroy();
+    }
+
+    private Slot upload(byte[] data) throws Exception
+    {
+        final Slot slot = new Slot(new JID("user@example.org"), "test.bin", data.length);
+        try (final OutputStream out = repository.getOutputStream(slot.getUuid())) {
+            out.write(data);
+        }
+        repository.publish(slot);
+        return slot;
+    }
+
+    @Test
+    public void whenSmallFileIsPublished_ThenItIsStoredInSegment() throws Exception
+    {
+        // Setup test fixture.
+        final byte[] data = new byte[] { 1, 2, 3 };
+
+        // Execute system under test.
+        final Slot slot = upload(data);
+
+        // Verify result.
+        assertFalse(Files.exists(path.resolve(slot.getUuid().toString())));
+        assertEquals(1, repository.getSegmentedFileCount());
+        assertEquals(1, directoryRepository.getPurger().getFileCount());
+        assertEquals(3, repository.getSize(slot.getUuid()));
+        try (final InputStream in = repository.getInputStream(slot.getUuid())) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void whenFileIsInActiveSegment_ThenNoCachedContentIsReturned() throws Exception
+    {
+        // Setup test fixture.
+        final Slot slot = upload(new byte[] { 1, 2, 3 });
+
+        // Execute system under test.
+        final ByteBuffer result = repository.getCachedContent(slot.getUuid());
+
+        // Verify result.
+        assertNull(result);
+        try (final InputStream in = repository.getInputStream(slot.getUuid())) {
+            assertArrayEquals(new byte[] { 1, 2, 3 }, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void whenLargeFileIsPublished_ThenItIsStoredByDecoratedRepository() throws Exception
+    {
+        // Setup test fixture.
+        final byte[] data = new byte[17];
+
+        // Execute system under test.
+        final Slot slot = upload(data);
+
+        // Verify result.
+        assertTrue(Files.exists(path.resolve(slot.getUuid().toString())));
+        assertEquals(0, repository.getSegmentedFileCount());
+        assertEquals(17, repository.getSize(slot.getUuid()));
+    }
+
+    @Test
+    public void whenSegmentedFileIsDeleted_ThenUsageIsReleased() throws Exception
+    {
+        // Setup test fixture.
+        final Slot slot = upload(new byte[] { 1, 2, 3 });
+
+        // Execute system under test.
+        final boolean result = repository.delete(slot.getUuid());
+
+        // Verify result.
+        assertTrue(result);
+        assertNull(repository.getMetadata(slot.getUuid()));
+        assertEquals(0, repository.getSegmentedFileCount());
+        assertEquals(0, directoryRepository.getPurger().getFileCount());
+        assertEquals(0, directoryRepository.getPurger().getUsedBytes());
+    }
+
+    @Test
+    public void whenReopened_ThenSegmentedFilesAreAccountedFor() throws Exception
+    {
+        // Setup test fixture.
+        final Slot slot = upload(new byte[] { 1, 2, 3 });
+        final long usedBytes = directoryRepository.getPurger().getUsedBytes();
+        repository.destroy();
+        directoryRepository = new DirectoryRepository(path);
+        repository = new SegmentedRepository(directoryRepository, 16);
+
+        // Execute system under test.
+        repository.initialize();
+
+        // Verify result.
+        assertEquals(1, directoryRepository.getPurger().getFileCount());
+        assertEquals(usedBytes, directoryRepository.getPurger().getUsedBytes());
+        assertEquals(3, repository.getSize(slot.getUuid()));
+    }
+}
@@ -0,0 +1,55 @@
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SpaceThresholdTest
+{
+    @Test
+    public void whenParsingBytes_ThenCapacityIsIgnored() throws Exception
+    {
+        // Setup test fixture.
+        final String input = "1024";
+
+        // Execute system under test.
+        final SpaceThreshold result = SpaceThreshold.parse(input);
+
+        // Verify result.
+        assertEquals(1024, result.toBytes(1000000));
+    }
+
+    @Test
+    public void whenParsingPercentage_ThenCapacityIsApplied() throws Exception
+    {
+        // Setup test fixture.
+        final String input = "80%";
+
+        // Execute system under test.
+        final SpaceThreshold result = SpaceThreshold.parse(input);
+
+        // Verify result.
+        assertEquals(800000, result.toBytes(1000000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenParsingPercentageAboveHundred_ThenExceptionIsThrown() throws Exception
+    {
+        // Execute system under test.
+        SpaceThreshold.parse("101%");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenParsingGarbage_ThenExceptionIsThrown() throws Exception
+    {
+        // Execute system under test.
+        SpaceThreshold.parse("lots");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenParsingNonFinitePercentage_ThenExceptionIsThrown() throws Exception
+    {
+        // Execute system under test.
+        SpaceThreshold.parse("NaN%");
+    }
+}
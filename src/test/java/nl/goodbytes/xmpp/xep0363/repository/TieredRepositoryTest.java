@@ -0,0 +1,122 @@
+package nl.goodbytes.xmpp.xep0363.repository;
+
+import nl.goodbytes.xmpp.xep0363.Slot;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.JID;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class TieredRepositoryTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void whenMigrated_ThenDataIsReadFromColdDirectory() throws Exception
+    {
+        // Setup test fixture.
+        final Path hot = folder.newFolder().toPath();
+        final Path cold = folder.newFolder().toPath();
+        final TieredRepository repository = new TieredRepository(hot, cold);
+        repository.setMigrationAge(Duration.ZERO);
+        repository.initialize();
+        final byte[] data = new byte[2048];
+        Arrays.fill(data, (byte) 7);
+        final Slot slot = new Slot(new JID("user@example.org"), "test.bin", data.length);
+        try (final OutputStream out = repository.getOutputStream(slot.getUuid())) {
+            out.write(data);
+        }
+        repository.publish(slot);
+        Thread.sleep(5);
+
+        // Execute system under test.
+        repository.migrate();
+
+        // Verify result.
+        assertFalse(Files.exists(hot.resolve(slot.getUuid().toString())));
+        assertTrue(Files.exists(cold.resolve(slot.getUuid().toString())));
+        try (final InputStream in = repository.getInputStream(slot.getUuid())) {
+            assertArrayEquals(data, in.readAllBytes());
+        }
+        assertTrue(repository.delete(slot.getUuid()));
+        assertFalse(Files.exists(cold.resolve(slot.getUuid().toString())));
+        assertEquals(1, repository.getMigratedFileCount());
+        repository.destroy();
+    }
+
+    @Test
+    public void whenRecentlyRead_ThenDataIsNotMigrated() throws Exception
+    {
+        // Setup test fixture.
+        final Path hot = folder.newFolder().toPath();
+        final Path cold = folder.newFolder().toPath();
+        final TieredRepository repository = new TieredRepository(hot, cold);
+        repository.setMigrationAge(Duration.ofMillis(50));
+        repository.initialize();
+        final Slot slot = new Slot(new JID("user@example.org"), "test.bin", 16);
+        try (final OutputStream out = repository.getOutputStream(slot.getUuid())) {
+            out.write(new byte[16]);
+        }
+        repository.publish(slot);
+        Thread.sleep(100);
+        try (final InputStream in = repository.getInputStream(slot.getUuid())) {
+            in.readAllBytes();
+        }
+
+        // Execute system under test.
+        final int first = repository.migrate();
+        Thread.sleep(100);
+        final int second = repository.migrate();
+
+        // Verify result.
+        assertEquals(0, first);
+        assertEquals(1, second);
+        assertTrue(Files.exists(cold.resolve(slot.getUuid().toString())));
+        repository.destroy();
+    }
+
+    @Test
+    public void whenDataIsNoLongerLinked_ThenItIsMigratedLater() throws Exception
+    {
+        // Setup test fixture.
+        final Path hot = folder.newFolder().toPath();
+        final Path cold = folder.newFolder().toPath();
+        final TieredRepository repository = new TieredRepository(hot, cold);
+        repository.setMigrationAge(Duration.ZERO);
+        repository.initialize();
+        final Slot slot = new Slot(new JID("user@example.org"), "test.bin", 16);
+        try (final OutputStream out = repository.getOutputStream(slot.getUuid())) {
+            out.write(new byte[16]);
+        }
+        repository.publish(slot);
+        final Path link = folder.getRoot().toPath().resolve("link");
+        Files.createLink(link, hot.resolve(slot.getUuid().toString()));
+        assumeTrue(AbstractFileSystemRepository.getLinkCount(link) == 2);
+        Thread.sleep(5);
+
+        // Execute system under test.
+        final int whileLinked = repository.migrate();
+        Files.delete(link);
+        Thread.sleep(5);
+        final int afterUnlinked = repository.migrate();
+
+        // Verify result.
+        assertEquals(0, whileLinked);
+        assertEquals(1, afterUnlinked);
+        assertTrue(Files.exists(cold.resolve(slot.getUuid().toString())));
+        repository.destroy();
+    }
+}